@@ -7,6 +7,10 @@ import uk.nhs.ciao.exceptions.CIAOConfigurationException;
 
 /**
  * The main ciao-cda-builder application
+ * <p>
+ * During startup the configured processors are warmed up (see
+ * {@link uk.nhs.ciao.cda.builder.processor.TransformerWarmUp}) before the camel context
+ * (and therefore the JMS consumers) is started.
  */
 public class CDABuilderApplication extends CamelApplication {
 	/**
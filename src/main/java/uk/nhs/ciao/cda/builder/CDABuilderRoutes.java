@@ -26,6 +26,33 @@ import uk.nhs.ciao.docs.parser.route.InProgressFolderManagerRoute;
  * 
  * <dt>outputQueue<dt>
  * <dd>The name of the queue output messages should be sent to</dd>
+ * 
+ * <dt>batchSize<dt>
+ * <dd>Optional: The maximum number of messages to consume and commit in a single transaction (default: 1)</dd>
+ * 
+ * <dt>batchTimeout<dt>
+ * <dd>Optional: The maximum time in milliseconds to wait for a batch to fill (default: 1000)</dd>
+ * 
+ * <dt>concurrentConsumers<dt>
+ * <dd>Optional: The number of concurrent JMS consumers for the input queue (default: 1)</dd>
+ * 
+ * <dt>maxConcurrentConsumers<dt>
+ * <dd>Optional: The maximum number of concurrent JMS consumers for the input queue (default: concurrentConsumers)</dd>
+ * 
+ * <dt>transformThreads<dt>
+ * <dd>Optional: The size of the dedicated executor used to transform documents (default: transform on the consumer thread)</dd>
+ * 
+ * <dt>executionMode<dt>
+ * <dd>Optional: <code>platform</code> or <code>virtual</code> - the type of threads used to consume and transform documents (default: platform)</dd>
+ * 
+ * <dt>validationSchema<dt>
+ * <dd>Optional: The file path of the XML schema used to validate outgoing documents (default: no validation)</dd>
+ * 
+ * <dt>validationSampleRate<dt>
+ * <dd>Optional: The fraction (0.0 - 1.0) of outgoing documents validated against the schema (default: 1.0)</dd>
+ * 
+ * <dt>transformStylesheet<dt>
+ * <dd>Optional: The file path of an XSLT stylesheet used to post-process outgoing documents (default: no transform)</dd>
  */
 public class CDABuilderRoutes implements RoutesBuilder {
 	/**
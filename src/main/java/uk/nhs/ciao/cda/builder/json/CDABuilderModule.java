@@ -47,15 +47,36 @@ public class CDABuilderModule extends SimpleModule {
 	 * Creates a new Jackson module to handle non coded CDA documents
 	 */
 	public CDABuilderModule() {
+		this(DateValueDeserializer.DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * Creates a new Jackson module to handle non coded CDA documents
+	 * 
+	 * @param dateValueCacheSize The maximum number of parsed dates to cache - or zero to disable the cache
+	 */
+	public CDABuilderModule(final int dateValueCacheSize) {
+		this(dateValueCacheSize, true);
+	}
+	
+	/**
+	 * Creates a new Jackson module to handle non coded CDA documents
+	 * 
+	 * @param dateValueCacheSize The maximum number of parsed dates to cache - or zero to disable the cache
+	 * @param flatDeserializers true if the flat (single-pass) deserializers should be used for types
+	 * 		with unwrapped properties, or false to use the standard jackson handling
+	 * @see FlatBeanDeserializer
+	 */
+	public CDABuilderModule(final int dateValueCacheSize, final boolean flatDeserializers) {
 		super("cda-builder");
 		
-		init();
+		init(dateValueCacheSize, flatDeserializers);
 	}
 	
 	/**
 	 * Initialize the module by adding jackson mixins, serializers, deserializers etc
 	 */
-	private void init() {
+	private void init(final int dateValueCacheSize, final boolean flatDeserializers) {
 		setMixInAnnotation(Address.class, AddressMixin.class);
 		setMixInAnnotation(DateRange.class, DateRangeMixin.class);
 		setMixInAnnotation(PersonName.class, PersonNameMixin.class);
@@ -64,7 +85,7 @@ public class CDABuilderModule extends SimpleModule {
 		setMixInAnnotation(CDADocumentParticipant.class, CDADocumentParticipantMixin.class);
 		setMixInAnnotation(JsonTransferOfCareFields.class, JsonTransferOfCareFieldsMixin.class);
 		
-		addDeserializer(DateValue.class, new DateValueDeserializer());
+		addDeserializer(DateValue.class, new DateValueDeserializer(dateValueCacheSize));
 
 		// Vocab deserializers
 		addSexDeserializer();
@@ -79,6 +100,11 @@ public class CDABuilderModule extends SimpleModule {
 		addSerializer(VocabularyEntry.class, new VocabularyEntrySerializer());
 		
 		addAbstractTypeMapping(HL7Date.class, DateValue.class);
+		
+		if (flatDeserializers) {
+			setDeserializerModifier(new FlatBeanDeserializer.Modifier(JsonTransferOfCareFields.class,
+					DocumentRecipient.class, CDADocumentParticipant.class));
+		}
 	}
 
 	/**
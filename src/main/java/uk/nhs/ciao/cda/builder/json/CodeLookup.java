@@ -0,0 +1,105 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import java.util.Arrays;
+
+/**
+ * A trie mapping codes to values which can be queried directly from a character buffer
+ * (e.g. the text buffer of a <code>JsonParser</code>) without creating intermediate strings.
+ * <p>
+ * Each node holds its child characters as a sorted array, so a lookup is one binary search
+ * per character. If the lookup is case-insensitive, characters are lower-cased as they are
+ * added and compared.
+ * <p>
+ * Entries should be added before the lookup is shared between threads.
+ *
+ * @param <T> The type of value held in the lookup
+ */
+class CodeLookup<T> {
+	private final boolean caseSensitive;
+	private final Node<T> root = new Node<T>();
+
+	public CodeLookup(final boolean caseSensitive) {
+		this.caseSensitive = caseSensitive;
+	}
+
+	/**
+	 * Adds (or replaces) the value associated with the specified code
+	 */
+	public void put(final String code, final T value) {
+		Node<T> node = root;
+		for (int index = 0; index < code.length(); index++) {
+			node = node.getOrAddChild(fold(code.charAt(index)));
+		}
+		node.value = value;
+	}
+
+	/**
+	 * Returns the value associated with the specified code, or <code>null</code> if there is no match
+	 */
+	public T get(final String code) {
+		Node<T> node = root;
+		for (int index = 0; node != null && index < code.length(); index++) {
+			node = node.getChild(fold(code.charAt(index)));
+		}
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * Returns the value associated with the code held in the specified range of characters, or
+	 * <code>null</code> if there is no match
+	 */
+	public T get(final char[] chars, final int offset, final int length) {
+		Node<T> node = root;
+		final int end = offset + length;
+		for (int index = offset; node != null && index < end; index++) {
+			node = node.getChild(fold(chars[index]));
+		}
+		return node == null ? null : node.value;
+	}
+
+	private char fold(final char c) {
+		return caseSensitive ? c : Character.toLowerCase(c);
+	}
+
+	private static class Node<T> {
+		private static final char[] NO_KEYS = new char[0];
+
+		private char[] keys = NO_KEYS;
+		private Node<T>[] children = newArray(0);
+		private T value;
+
+		public Node<T> getChild(final char key) {
+			final int index = Arrays.binarySearch(keys, key);
+			return index < 0 ? null : children[index];
+		}
+
+		public Node<T> getOrAddChild(final char key) {
+			int index = Arrays.binarySearch(keys, key);
+			if (index >= 0) {
+				return children[index];
+			}
+
+			// Insert the new child - maintaining the sort order
+			index = -index - 1;
+			final char[] newKeys = new char[keys.length + 1];
+			final Node<T>[] newChildren = newArray(children.length + 1);
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+
+			final Node<T> child = new Node<T>();
+			newKeys[index] = key;
+			newChildren[index] = child;
+			keys = newKeys;
+			children = newChildren;
+
+			return child;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Node<T>[] newArray(final int length) {
+			return new Node[length];
+		}
+	}
+}
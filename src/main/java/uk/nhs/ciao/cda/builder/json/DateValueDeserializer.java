@@ -1,12 +1,17 @@
 package uk.nhs.ciao.cda.builder.json;
 
 import java.io.IOException;
+import java.util.Date;
 
 import uk.nhs.interoperability.payloads.DateValue;
+import uk.nhs.interoperability.payloads.vocabularies.internal.DatePrecision;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.deser.std.FromStringDeserializer;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 /**
  * Deserializer for {@link DateValue} instances.
@@ -16,20 +21,91 @@ import com.fasterxml.jackson.databind.deser.std.FromStringDeserializer;
  * Also consider adding an abstract type mapping for HL7Date -> DateValue to Jackson
  * at startup. With this added, jackson uses this class to handle fields declared
  * as the HL7Date interface (as well as DateValue)
+ * <p>
+ * The same dates (effective times, birth dates, etc) tend to repeat across documents, so
+ * the parsed components (time and precision) are held in a bounded cache keyed by the serialized
+ * value. <code>DateValue</code> is mutable, so a new instance is created from the cached components
+ * each time - instances are never shared between documents or threads. Values which cannot be
+ * reproduced exactly from their components are not cached.
  */
 class DateValueDeserializer extends FromStringDeserializer<DateValue> {
 	private static final long serialVersionUID = -5953739794572642066L;
 	
+	/**
+	 * The default maximum number of parsed dates to cache
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+	
+	private final transient Cache<String, DateComponents> cache;
+	
 	/**
 	 * Creates a new deserializer instance for {@link DateValue}
 	 */
 	public DateValueDeserializer() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * Creates a new deserializer instance for {@link DateValue} with the specified cache size
+	 * 
+	 * @param cacheSize The maximum number of parsed dates to cache - or zero to disable the cache
+	 */
+	public DateValueDeserializer(final int cacheSize) {
 		super(DateValue.class);
+		
+		this.cache = cacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(cacheSize).<String, DateComponents>build() : null;
 	}
 
 	@Override
 	protected DateValue _deserialize(final String value, final DeserializationContext ctxt)
 			throws IOException, JsonProcessingException {
-		return new DateValue(value);
-	}	
+		if (cache == null) {
+			return new DateValue(value);
+		}
+		
+		final DateComponents cached = cache.getIfPresent(value);
+		if (cached != null) {
+			return cached.createDateValue();
+		}
+		
+		final DateValue dateValue = new DateValue(value);
+		final DateComponents components = DateComponents.of(dateValue);
+		if (components != null) {
+			cache.put(value, components);
+		}
+		return dateValue;
+	}
+	
+	/**
+	 * The (immutable) parsed components of a date
+	 */
+	private static final class DateComponents {
+		private final long time;
+		private final DatePrecision precision;
+		
+		private DateComponents(final long time, final DatePrecision precision) {
+			this.time = time;
+			this.precision = precision;
+		}
+		
+		/**
+		 * The components of the parsed date - or <code>null</code> if the date cannot be reproduced
+		 * exactly from its components
+		 */
+		public static DateComponents of(final DateValue dateValue) {
+			if (dateValue.getDate() == null) {
+				return null;
+			}
+			
+			final DateComponents components = new DateComponents(dateValue.getDate().getTime(), dateValue.getPrecision());
+			return Objects.equal(dateValue.toString(), components.createDateValue().toString()) ? components : null;
+		}
+		
+		/**
+		 * Creates a new (unshared) date value
+		 */
+		public DateValue createDateValue() {
+			return new DateValue(new Date(time), precision);
+		}
+	}
 }
@@ -0,0 +1,138 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import java.io.IOException;
+
+import uk.nhs.ciao.docs.parser.Document;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Strings;
+
+/**
+ * A JSON encoded {@link Document} where the content is maintained in the original base64 encoded
+ * form.
+ * <p>
+ * The content of the original document is only ever embedded (as base64) into the outgoing CDA
+ * document - keeping the encoded text avoids a decode to bytes followed by a re-encode to base64.
+ * <p>
+ * Large content may instead be held as {@link SpooledContent} outside of the heap.
+ */
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class EncodedDocument {
+	private final String name;
+	private final String base64Content;
+	private final SpooledContent spooledContent;
+	private final String mediaType;
+
+	@JsonCreator
+	public EncodedDocument(@JsonProperty("name") final String name,
+			@JsonProperty("content") final String base64Content,
+			@JsonProperty("mediaType") final String mediaType) {
+		this.name = name;
+		this.base64Content = base64Content;
+		this.spooledContent = null;
+		this.mediaType = mediaType;
+	}
+	
+	/**
+	 * Creates a new document where the base64 content has been spooled out of the heap
+	 */
+	public EncodedDocument(final String name, final SpooledContent spooledContent, final String mediaType) {
+		this.name = name;
+		this.base64Content = null;
+		this.spooledContent = spooledContent;
+		this.mediaType = mediaType;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The document content - as base64 encoded text (or <code>null</code> if the content has been spooled)
+	 */
+	public String getBase64Content() {
+		return base64Content;
+	}
+	
+	/**
+	 * The spooled document content - or <code>null</code> if the content is held on the heap
+	 */
+	public SpooledContent getSpooledContent() {
+		return spooledContent;
+	}
+	
+	public boolean isSpooled() {
+		return spooledContent != null;
+	}
+	
+	/**
+	 * The text to embed into an outgoing document - either the base64 content or, if the content
+	 * has been spooled, the placeholder to be replaced when the document is encoded
+	 */
+	public String getEmbeddedContent() {
+		return isSpooled() ? spooledContent.getPlaceholder() : base64Content;
+	}
+
+	public String getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * Tests if the document has any content
+	 */
+	public boolean isEmpty() {
+		return isSpooled() ? spooledContent.length() == 0 : Strings.isNullOrEmpty(base64Content);
+	}
+
+	/**
+	 * Validates that the content is well-formed base64 (ignoring whitespace) without decoding it
+	 *
+	 * @throws IOException If the content is not valid base64
+	 */
+	public void validateContent() throws IOException {
+		if (!isValidBase64(isSpooled() ? spooledContent : base64Content)) {
+			throw new IOException("The content of originalDocument is not valid base64 - name: " + name);
+		}
+	}
+
+	/**
+	 * Tests if the specified text is valid base64 in a single pass over the characters.
+	 * <p>
+	 * Whitespace (e.g. MIME line breaks) is ignored, and the encoded length must be a
+	 * multiple of four characters with padding only allowed in the final quantum.
+	 */
+	static boolean isValidBase64(final CharSequence text) {
+		if (text == null) {
+			return true;
+		}
+
+		int count = 0;
+		int padding = 0;
+		for (int index = 0; index < text.length(); index++) {
+			final char c = text.charAt(index);
+			if (c == ' ' || c == '\r' || c == '\n' || c == '\t') {
+				continue;
+			}
+
+			if (c == '=') {
+				padding++;
+				if (padding > 2) {
+					return false;
+				}
+			} else if (padding > 0 || !isBase64Char(c)) {
+				// padding can only appear at the end
+				return false;
+			}
+			count++;
+		}
+
+		return count % 4 == 0;
+	}
+
+	private static boolean isBase64Char(final char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+				|| c == '+' || c == '/';
+	}
+}
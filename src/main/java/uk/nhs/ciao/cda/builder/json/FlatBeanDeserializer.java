@@ -0,0 +1,312 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerBase;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.deser.SettableBeanProperty;
+import com.fasterxml.jackson.databind.deser.std.DelegatingDeserializer;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMember;
+import com.fasterxml.jackson.databind.introspect.AnnotatedMethod;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.util.NameTransformer;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Deserializes a bean containing <code>@JsonUnwrapped</code> properties by mapping every flat
+ * JSON key directly to its target in a single pass.
+ * <p>
+ * Jackson handles unwrapped properties by buffering <em>all</em> unknown properties into a
+ * <code>TokenBuffer</code> and replaying the whole buffer once for each unwrapped property (and
+ * again for any nested unwrapped properties). Here the flat names of the unwrapped properties
+ * (e.g. <code>patientAddressPostcode</code>) are resolved up-front from the same Jackson metadata
+ * (mixins, name transformers, case-insensitivity) and compiled into a {@link CodeLookup}:
+ * <ul>
+ * <li>Standard properties are deserialized and set directly</li>
+ * <li>Flat keys of an unwrapped property are copied (with the prefix removed) into a buffer
+ * for that property only - the buffer is deserialized once all keys have been read</li>
+ * <li>Unknown keys are skipped without being buffered</li>
+ * </ul>
+ * As with Jackson, every unwrapped property is set - even if none of its keys were present.
+ * <p>
+ * The standard bean deserializer is retained as the delegate for non-object values, and is used
+ * for everything if the bean cannot be created via a default constructor.
+ */
+class FlatBeanDeserializer extends DelegatingDeserializer {
+	private static final long serialVersionUID = 5219865463541297380L;
+
+	private transient FlatProperties flatProperties;
+
+	public FlatBeanDeserializer(final BeanDeserializerBase delegate) {
+		super(delegate);
+	}
+
+	private FlatBeanDeserializer(final JsonDeserializer<?> delegate, final FlatProperties flatProperties) {
+		super(delegate);
+		this.flatProperties = flatProperties;
+	}
+
+	@Override
+	protected JsonDeserializer<?> newDelegatingInstance(final JsonDeserializer<?> newDelegatee) {
+		return new FlatBeanDeserializer(newDelegatee, flatProperties);
+	}
+
+	@Override
+	public void resolve(final DeserializationContext ctxt) throws JsonMappingException {
+		// Unwrapped properties are removed from the delegate when it is resolved - take a copy first
+		final BeanDeserializerBase delegate = (BeanDeserializerBase)_delegatee;
+		final List<SettableBeanProperty> properties = Lists.newArrayList(delegate.properties());
+
+		super.resolve(ctxt);
+
+		if (delegate.getValueInstantiator().canCreateUsingDefault()) {
+			flatProperties = new FlatProperties(ctxt, delegate, properties);
+		}
+	}
+
+	@Override
+	public Object deserialize(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
+		JsonToken token = jp.getCurrentToken();
+		if (flatProperties == null || (token != JsonToken.START_OBJECT && token != JsonToken.FIELD_NAME)) {
+			return _delegatee.deserialize(jp, ctxt);
+		}
+
+		final Object bean = ((BeanDeserializerBase)_delegatee).getValueInstantiator().createUsingDefault(ctxt);
+		final TokenBuffer[] buffers = new TokenBuffer[flatProperties.unwrappedProperties.size()];
+
+		if (token == JsonToken.START_OBJECT) {
+			token = jp.nextToken();
+		}
+		for (; token == JsonToken.FIELD_NAME; token = jp.nextToken()) {
+			final Target target = flatProperties.lookup.get(jp.getTextCharacters(), jp.getTextOffset(), jp.getTextLength());
+			jp.nextToken();
+
+			if (target == null || target.isEmpty()) {
+				jp.skipChildren();
+			} else if (target.property != null) {
+				target.property.deserializeAndSet(jp, ctxt, bean);
+			} else {
+				copyToBuffers(jp, target, buffers);
+			}
+		}
+
+		// Unwrapped properties are handled once all keys have been read (matching jackson)
+		for (int index = 0; index < buffers.length; index++) {
+			final UnwrappedProperty unwrappedProperty = flatProperties.unwrappedProperties.get(index);
+
+			TokenBuffer buffer = buffers[index];
+			if (buffer == null) {
+				buffer = new TokenBuffer(jp.getCodec(), false);
+				buffer.writeStartObject();
+			}
+			buffer.writeEndObject();
+
+			final JsonParser bufferParser = buffer.asParser();
+			bufferParser.nextToken();
+			unwrappedProperty.property.set(bean, unwrappedProperty.deserializer.deserialize(bufferParser, ctxt));
+		}
+
+		return bean;
+	}
+
+	/**
+	 * Copies the current value into the buffer of each unwrapped property targeted by the key
+	 */
+	private void copyToBuffers(final JsonParser jp, final Target target, final TokenBuffer[] buffers) throws IOException {
+		JsonParser source = jp;
+		TokenBuffer value = null;
+		if (target.unwrappedIndexes.length > 1) {
+			// The value is needed more than once - the parser can only be read once
+			value = new TokenBuffer(jp.getCodec(), false);
+			value.copyCurrentStructure(jp);
+		}
+
+		for (int index = 0; index < target.unwrappedIndexes.length; index++) {
+			final int unwrappedIndex = target.unwrappedIndexes[index];
+			if (buffers[unwrappedIndex] == null) {
+				buffers[unwrappedIndex] = new TokenBuffer(jp.getCodec(), false);
+				buffers[unwrappedIndex].writeStartObject();
+			}
+
+			if (value != null) {
+				source = value.asParser();
+				source.nextToken();
+			}
+
+			buffers[unwrappedIndex].writeFieldName(target.fieldNames[index]);
+			buffers[unwrappedIndex].copyCurrentStructure(source);
+		}
+	}
+
+	/**
+	 * Installs {@link FlatBeanDeserializer} for the specified bean types
+	 */
+	public static class Modifier extends BeanDeserializerModifier {
+		private final List<Class<?>> beanTypes;
+
+		public Modifier(final Class<?>... beanTypes) {
+			this.beanTypes = Lists.newArrayList(beanTypes);
+		}
+
+		@Override
+		public JsonDeserializer<?> modifyDeserializer(final DeserializationConfig config,
+				final BeanDescription beanDesc, final JsonDeserializer<?> deserializer) {
+			if (beanTypes.contains(beanDesc.getBeanClass()) && deserializer instanceof BeanDeserializerBase) {
+				return new FlatBeanDeserializer((BeanDeserializerBase)deserializer);
+			}
+			return deserializer;
+		}
+	}
+
+	/**
+	 * The target of a single flat key - either a standard property or the buffers of one or
+	 * more unwrapped properties (with the name to use in each buffer)
+	 */
+	private static class Target {
+		private final SettableBeanProperty property;
+		private int[] unwrappedIndexes = new int[0];
+		private String[] fieldNames = new String[0];
+
+		public Target(final SettableBeanProperty property) {
+			this.property = property;
+		}
+
+		public boolean isEmpty() {
+			return property == null && unwrappedIndexes.length == 0;
+		}
+
+		public void addUnwrapped(final int unwrappedIndex, final String fieldName) {
+			final int length = unwrappedIndexes.length;
+			unwrappedIndexes = Arrays.copyOf(unwrappedIndexes, length + 1);
+			fieldNames = Arrays.copyOf(fieldNames, length + 1);
+			unwrappedIndexes[length] = unwrappedIndex;
+			fieldNames[length] = fieldName;
+		}
+	}
+
+	private static class UnwrappedProperty {
+		private final SettableBeanProperty property;
+		private final JsonDeserializer<Object> deserializer;
+
+		public UnwrappedProperty(final SettableBeanProperty property, final JsonDeserializer<Object> deserializer) {
+			this.property = property;
+			this.deserializer = deserializer;
+		}
+	}
+
+	/**
+	 * The compiled flat key to target mappings of a bean type
+	 */
+	private static class FlatProperties {
+		private final CodeLookup<Target> lookup;
+		private final List<UnwrappedProperty> unwrappedProperties = Lists.newArrayList();
+
+		public FlatProperties(final DeserializationContext ctxt, final BeanDeserializerBase delegate,
+				final List<SettableBeanProperty> properties) throws JsonMappingException {
+			final boolean caseSensitive = !ctxt.isEnabled(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES);
+			final AnnotationIntrospector introspector = ctxt.getAnnotationIntrospector();
+
+			// Standard properties take precedence over the flattened names (as jackson only buffers unknown keys)
+			final Map<String, Target> targets = Maps.newLinkedHashMap();
+			final List<SettableBeanProperty> unwrapped = Lists.newArrayList();
+			for (final SettableBeanProperty property: properties) {
+				final NameTransformer transformer = property.getMember() == null ? null
+						: introspector.findUnwrappingNameTransformer(property.getMember());
+				if (transformer == null) {
+					final SettableBeanProperty resolved = delegate.findProperty(property.getName());
+					if (resolved != null) {
+						targets.put(getKey(property.getName(), caseSensitive), new Target(resolved));
+					}
+				} else {
+					unwrapped.add(property);
+				}
+			}
+
+			for (final SettableBeanProperty property: unwrapped) {
+				final int unwrappedIndex = unwrappedProperties.size();
+				unwrappedProperties.add(new UnwrappedProperty(property,
+						ctxt.findContextualValueDeserializer(property.getType(), property)));
+
+				addUnwrappedNames(ctxt, targets, caseSensitive, unwrappedIndex, property.getType().getRawClass(),
+						introspector.findUnwrappingNameTransformer(property.getMember()), NameTransformer.NOP);
+			}
+
+			this.lookup = new CodeLookup<Target>(caseSensitive);
+			for (final Map.Entry<String, Target> entry: targets.entrySet()) {
+				lookup.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		/**
+		 * Adds the flat names of each property of the unwrapped type - recursing into nested unwrapped properties
+		 *
+		 * @param prefix Transforms a name relative to the unwrapped property into a flat name
+		 * @param relative Transforms a property name of the current type into a name relative to the unwrapped property
+		 */
+		private void addUnwrappedNames(final DeserializationContext ctxt, final Map<String, Target> targets,
+				final boolean caseSensitive, final int unwrappedIndex, final Class<?> type,
+				final NameTransformer prefix, final NameTransformer relative) {
+			final DeserializationConfig config = ctxt.getConfig();
+			final AnnotationIntrospector introspector = ctxt.getAnnotationIntrospector();
+
+			for (final BeanPropertyDefinition definition: getProperties(config, type)) {
+				if (!definition.couldDeserialize()) {
+					continue;
+				}
+
+				final AnnotatedMember mutator = definition.getMutator();
+				final NameTransformer nested = introspector.findUnwrappingNameTransformer(mutator);
+				if (nested != null) {
+					addUnwrappedNames(ctxt, targets, caseSensitive, unwrappedIndex, getRawType(mutator), prefix,
+							NameTransformer.chainedTransformer(relative, nested));
+					continue;
+				}
+
+				final String fieldName = relative.transform(definition.getName());
+				final String key = getKey(prefix.transform(fieldName), caseSensitive);
+				Target target = targets.get(key);
+				if (target == null) {
+					target = new Target(null);
+					targets.put(key, target);
+				} else if (target.property != null) {
+					continue; // standard properties take precedence
+				}
+				target.addUnwrapped(unwrappedIndex, fieldName);
+			}
+		}
+
+		private static List<BeanPropertyDefinition> getProperties(final DeserializationConfig config, final Class<?> type) {
+			if (type == null) {
+				return Collections.emptyList();
+			}
+			return config.introspect(config.constructType(type)).findProperties();
+		}
+
+		private static Class<?> getRawType(final AnnotatedMember member) {
+			if (member instanceof AnnotatedMethod && ((AnnotatedMethod)member).getParameterCount() == 1) {
+				return ((AnnotatedMethod)member).getRawParameterType(0);
+			}
+			return member == null ? null : member.getRawType();
+		}
+
+		private static String getKey(final String name, final boolean caseSensitive) {
+			// The lookup folds case itself - the key is only normalised to detect duplicates
+			return caseSensitive ? name : name.toLowerCase();
+		}
+	}
+}
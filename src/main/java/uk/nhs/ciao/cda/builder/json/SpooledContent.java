@@ -0,0 +1,155 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Large base64 encoded (ASCII) content which has been spooled out of the heap into a
+ * memory-mapped temporary file.
+ * <p>
+ * The content is exposed as a read-only {@link CharSequence} (one byte per character) so it can
+ * be validated in place. When building a document, {@link #getPlaceholder()} is embedded instead
+ * of the content, and the placeholder is replaced by the mapped bytes when the document is
+ * finally encoded.
+ * <p>
+ * The temporary file is deleted by {@link #close()}.
+ */
+public class SpooledContent implements CharSequence, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpooledContent.class);
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final String placeholder;
+
+	private SpooledContent(final File file, final MappedByteBuffer buffer) {
+		this.file = file;
+		this.buffer = buffer;
+		this.placeholder = "ciao-spooled-content-" + UUID.randomUUID();
+	}
+
+	/**
+	 * Spools the specified characters into a new memory-mapped temporary file
+	 *
+	 * @param folder The folder to create the file in (or <code>null</code> for the default temporary folder)
+	 */
+	public static SpooledContent spool(final char[] chars, final int offset, final int length,
+			final File folder) throws IOException {
+		final File file = File.createTempFile("ciao-cda-builder-", ".b64", folder);
+		boolean spooled = false;
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			final ByteBuffer writeBuffer = ByteBuffer.allocate(Math.min(WRITE_BUFFER_SIZE, Math.max(length, 1)));
+			for (int index = 0; index < length; index++) {
+				if (!writeBuffer.hasRemaining()) {
+					writeBuffer.flip();
+					writeFully(channel, writeBuffer);
+					writeBuffer.clear();
+				}
+
+				// base64 is pure ASCII - anything else is replaced (and rejected if the content is validated)
+				final char c = chars[offset + index];
+				writeBuffer.put(c < 0x80 ? (byte)c : (byte)'?');
+			}
+			writeBuffer.flip();
+			writeFully(channel, writeBuffer);
+
+			final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, length);
+			spooled = true;
+			return new SpooledContent(file, buffer);
+		} finally {
+			// The mapping remains valid after the channel is closed
+			randomAccessFile.close();
+			if (!spooled) {
+				delete(file);
+			}
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * A unique token to embed in place of the content
+	 */
+	public String getPlaceholder() {
+		return placeholder;
+	}
+
+	/**
+	 * Copies the spooled content into the specified array
+	 */
+	public void copyTo(final byte[] bytes, final int offset) {
+		buffer.duplicate().get(bytes, offset, length());
+	}
+
+	/**
+	 * Writes the spooled content to the specified stream
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		final ByteBuffer source = buffer.duplicate();
+		final byte[] chunk = new byte[Math.min(WRITE_BUFFER_SIZE, Math.max(source.remaining(), 1))];
+		while (source.hasRemaining()) {
+			final int length = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	@Override
+	public int length() {
+		return buffer.capacity();
+	}
+
+	@Override
+	public char charAt(final int index) {
+		return (char)(buffer.get(index) & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(final int start, final int end) {
+		final StringBuilder builder = new StringBuilder(end - start);
+		for (int index = start; index < end; index++) {
+			builder.append(charAt(index));
+		}
+		return builder;
+	}
+
+	@Override
+	public String toString() {
+		return subSequence(0, length()).toString();
+	}
+
+	/**
+	 * Deletes the temporary file.
+	 * <p>
+	 * The mapped memory itself is released once this instance has been garbage collected.
+	 */
+	@Override
+	public void close() {
+		delete(file);
+	}
+
+	private static void delete(final File file) {
+		if (file.exists() && !file.delete()) {
+			// Some platforms do not allow mapped files to be deleted
+			LOGGER.debug("Unable to delete spooled content file - will retry on exit: {}", file);
+			file.deleteOnExit();
+		}
+	}
+}
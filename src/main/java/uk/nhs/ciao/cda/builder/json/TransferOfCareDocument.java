@@ -3,7 +3,7 @@ package uk.nhs.ciao.cda.builder.json;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.cda.builder.metrics.FlightRecorderEvents;
 import uk.nhs.interoperability.payloads.exceptions.MissingMandatoryFieldException;
 import uk.nhs.interoperability.payloads.helpers.TransferOfCareDraftBDocumentCreationHelper;
 import uk.nhs.interoperability.payloads.toc_edischarge_draftB.ClinicalDocument;
@@ -11,11 +11,11 @@ import uk.nhs.interoperability.payloads.vocabularies.internal.AttachmentType;
 
 public class TransferOfCareDocument {
 	private JsonTransferOfCareFields properties;	
-	private Document originalDocument;
+	private EncodedDocument originalDocument;
 	
 	@JsonCreator
 	public TransferOfCareDocument(@JsonProperty("properties") final JsonTransferOfCareFields properties,
-			@JsonProperty("originalDocument") final Document originalDocument) {
+			@JsonProperty("originalDocument") final EncodedDocument originalDocument) {
 		this.properties = properties == null ? new JsonTransferOfCareFields() : properties;
 		this.originalDocument = originalDocument;
 	}
@@ -26,24 +26,37 @@ public class TransferOfCareDocument {
 	}
 	
 	@JsonProperty
-	public Document getOriginalDocument() {
+	public EncodedDocument getOriginalDocument() {
 		return originalDocument;
 	}
 	
+	/**
+	 * Tests if the original document will be attached to the clinical document (as a NonXMLBody)
+	 */
+	public boolean isOriginalDocumentAttached() {
+		return properties.isAttachOriginalDocument() && originalDocument != null && !originalDocument.isEmpty();
+	}
+	
 	public ClinicalDocument createClinicalDocument() throws MissingMandatoryFieldException {
+		final Object normaliseEvent = FlightRecorderEvents.begin();
 		if (properties != null) {
 			properties.normalise();
 		}
+		FlightRecorderEvents.commit(normaliseEvent, "normalise");
+		
+		final Object createEvent = FlightRecorderEvents.begin();
 		final ClinicalDocument document = TransferOfCareDraftBDocumentCreationHelper.createDocument(properties);
 
-		if (properties.isAttachOriginalDocument() && originalDocument != null && !originalDocument.isEmpty()) {
+		if (isOriginalDocumentAttached()) {
+			// The content is embedded as-is - it is already base64 encoded
 			TransferOfCareDraftBDocumentCreationHelper.addNonXMLBody(document,
 					AttachmentType.Base64, originalDocument.getMediaType(),
-					originalDocument.getBase64Content());
+					originalDocument.getEmbeddedContent());
 		} else {
 			// Add the PRSB headings
 			TransferOfCareDraftBDocumentCreationHelper.addPRSBSections(properties, document);
 		}
+		FlightRecorderEvents.commit(createEvent, "createDocument");
 		
 		return document;
 	}
@@ -1,15 +1,15 @@
 package uk.nhs.ciao.cda.builder.json;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import uk.nhs.interoperability.payloads.vocabularies.VocabularyEntry;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.deser.std.FromStringDeserializer;
-import com.google.common.collect.Maps;
 
 /**
  * Jackson deserializer for {@link VocabularyEntry} enums.
@@ -17,15 +17,17 @@ import com.google.common.collect.Maps;
  * The serialized value is {@link VocabularyEntry#getCode()}.
  * <p>
  * On construction, the set of known values is supplied and a code
- * to instance lookup map is compiled. Additional mappings
+ * to instance lookup trie is compiled. Additional mappings
  * can be added later via {@link #addEntry(String, VocabularyEntry)}
+ * <p>
+ * String values are matched directly against the text buffer of the parser, so
+ * no intermediate (or lower-cased) strings are created for known codes.
  * 
  * @param <T> The concrete type of entry handled by this deserializer
  */
 class VocabularyEntryDeserializer<T extends VocabularyEntry> extends FromStringDeserializer<T> {
 	private static final long serialVersionUID = 3689147032997601765L;
-	private final HashMap<String, T> entriesByKey;
-	private final boolean caseSensitive;
+	private final CodeLookup<T> entriesByKey;
 	
 	/**
 	 * Constructs a new case-sensitive deserializer
@@ -40,8 +42,7 @@ class VocabularyEntryDeserializer<T extends VocabularyEntry> extends FromStringD
 	public VocabularyEntryDeserializer(final Class<T> entryType, final T[] entries, final boolean caseSensitive) {
 		super(entryType);
 		
-		this.entriesByKey = Maps.newHashMap();
-		this.caseSensitive = caseSensitive;
+		this.entriesByKey = new CodeLookup<T>(caseSensitive);
 		
 		for (final T entry: entries) {
 			addEntry(entry.getCode(), entry);
@@ -53,8 +54,9 @@ class VocabularyEntryDeserializer<T extends VocabularyEntry> extends FromStringD
 	 * Adds a new code to instance entry mapping
 	 */
 	public final void addEntry(final String code, final T entry) {
-		final String key = getKey(code);
-		entriesByKey.put(key, entry);
+		if (code != null) {
+			entriesByKey.put(code, entry);
+		}
 	}
 	
 	/**
@@ -66,21 +68,38 @@ class VocabularyEntryDeserializer<T extends VocabularyEntry> extends FromStringD
 		}
 	}
 	
+	@Override
+	public T deserialize(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
+		if (jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+			final char[] chars = jp.getTextCharacters();
+			int start = jp.getTextOffset();
+			int end = start + jp.getTextLength();
+			
+			// Trim whitespace (matching String.trim)
+			while (start < end && chars[start] <= ' ') {
+				start++;
+			}
+			while (end > start && chars[end - 1] <= ' ') {
+				end--;
+			}
+			
+			final T entry = start < end ? entriesByKey.get(chars, start, end - start) : null;
+			if (entry != null) {
+				return entry;
+			}
+		}
+		
+		// Empty values, unknown codes and other tokens are handled by the standard string handling
+		return super.deserialize(jp, ctxt);
+	}
+	
 	@Override
 	protected final T _deserialize(final String code, final DeserializationContext ctxt)
 			throws IOException {
-		final String key = getKey(code);
-		final T entry = entriesByKey.get(key);
+		final T entry = entriesByKey.get(code);
 		if (entry == null) {
 			throw new IllegalArgumentException("Unsupported code: " + code);
 		}
 		return entry;
 	}
-	
-	/**
-	 * Returns the lookup key to use for the specified code
-	 */
-	private String getKey(final String code) {
-		return code == null || caseSensitive ? code : code.toLowerCase();
-	}
 }
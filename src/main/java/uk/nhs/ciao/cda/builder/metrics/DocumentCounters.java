@@ -0,0 +1,63 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput counters of the documents handled by a route / interaction
+ * <p>
+ * Counters only ever increase - rates are derived by the monitoring system.
+ */
+public class DocumentCounters implements DocumentCountersMBean {
+	private final AtomicLong messagesIn = new AtomicLong();
+	private final AtomicLong messagesOut = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	
+	public void received(final long bytes) {
+		messagesIn.incrementAndGet();
+		bytesIn.addAndGet(bytes);
+	}
+	
+	public void completed(final long bytes) {
+		messagesOut.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+	}
+	
+	public void failed() {
+		failures.incrementAndGet();
+	}
+	
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.get();
+	}
+	
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.get();
+	}
+	
+	@Override
+	public long getFailures() {
+		return failures.get();
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	/**
+	 * The number of received documents which have not yet completed or failed
+	 */
+	@Override
+	public long getInFlight() {
+		return Math.max(0, getMessagesIn() - getMessagesOut() - getFailures());
+	}
+}
@@ -0,0 +1,18 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+/**
+ * JMX view of {@link DocumentCounters}
+ */
+public interface DocumentCountersMBean {
+	long getMessagesIn();
+	
+	long getMessagesOut();
+	
+	long getFailures();
+	
+	long getBytesIn();
+	
+	long getBytesOut();
+	
+	long getInFlight();
+}
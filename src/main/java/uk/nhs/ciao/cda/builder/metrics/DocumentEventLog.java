@@ -0,0 +1,142 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.nhs.ciao.docs.parser.HeaderNames;
+
+/**
+ * Writes a single structured (<code>key=value</code>) log event for each completed or failed document -
+ * including the wall time of each stage, the CPU time and allocated bytes of the transforming thread,
+ * the input / output sizes and the interaction.
+ * <p>
+ * Events are logged at <code>INFO</code> level to the <code>uk.nhs.ciao.cda.builder.metrics.DocumentEventLog</code>
+ * logger - so they can be routed to a dedicated appender, or disabled, via the logging configuration.
+ */
+public final class DocumentEventLog {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DocumentEventLog.class);
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	private DocumentEventLog() {
+		// Suppress default constructor
+	}
+	
+	public static boolean isEnabled() {
+		return LOGGER.isInfoEnabled();
+	}
+	
+	public static void completed(final String routeName, final Exchange exchange, final DocumentTimings timings,
+			final long bytesOut) {
+		if (isEnabled()) {
+			LOGGER.info(format(routeName, exchange, timings, "cda-document-completed", bytesOut));
+		}
+	}
+	
+	public static void failed(final String routeName, final Exchange exchange, final DocumentTimings timings) {
+		if (isEnabled()) {
+			LOGGER.info(format(routeName, exchange, timings, "cda-document-failed", 0));
+		}
+	}
+	
+	static String format(final String routeName, final Exchange exchange, final DocumentTimings timings,
+			final String eventName, final long bytesOut) {
+		final StringBuilder event = new StringBuilder(256);
+		append(event, "eventName", eventName);
+		append(event, "route", routeName);
+		append(event, "documentId", exchange.getIn().getHeader(Exchange.CORRELATION_ID, String.class));
+		append(event, "originalFileName", exchange.getIn().getHeader(HeaderNames.SOURCE_FILE_NAME, String.class));
+		append(event, "interaction", timings.getInteraction());
+		append(event, "inputBytes", timings.getBytesIn());
+		append(event, "outputBytes", bytesOut);
+		appendMillis(event, "totalMillis", timings.getElapsedNanos());
+		for (final Stage stage: Stage.values()) {
+			appendMillis(event, stage.getKey() + "Millis", timings.getNanos(stage));
+		}
+		if (timings.getCpuNanos() >= 0) {
+			appendMillis(event, "cpuMillis", timings.getCpuNanos());
+		}
+		if (timings.getAllocatedBytes() >= 0) {
+			append(event, "allocatedBytes", timings.getAllocatedBytes());
+		}
+		return event.toString();
+	}
+	
+	/**
+	 * Appends the key and value to the event - values which could otherwise be mistaken for the end of
+	 * the value or the event (e.g. a file name containing whitespace, line breaks or <code>=</code>) are
+	 * quoted and escaped, so values from incoming messages cannot forge additional keys or events
+	 */
+	static void append(final StringBuilder event, final String key, final Object value) {
+		if (value == null) {
+			return;
+		}
+		
+		if (event.length() > 0) {
+			event.append(' ');
+		}
+		event.append(key).append('=');
+		
+		final String text = value.toString();
+		if (!requiresQuotes(text)) {
+			event.append(text);
+			return;
+		}
+		
+		event.append('"');
+		for (int index = 0; index < text.length(); index++) {
+			final char c = text.charAt(index);
+			switch (c) {
+			case '"':
+				event.append("\\\"");
+				break;
+			case '\\':
+				event.append("\\\\");
+				break;
+			case '\n':
+				event.append("\\n");
+				break;
+			case '\r':
+				event.append("\\r");
+				break;
+			case '\t':
+				event.append("\\t");
+				break;
+			default:
+				if (isControl(c)) {
+					event.append(String.format(Locale.ROOT, "\\u%04x", (int)c));
+				} else {
+					event.append(c);
+				}
+			}
+		}
+		event.append('"');
+	}
+	
+	private static boolean requiresQuotes(final String text) {
+		if (text.isEmpty()) {
+			return true;
+		}
+		
+		for (int index = 0; index < text.length(); index++) {
+			final char c = text.charAt(index);
+			if (c == '"' || c == '\\' || c == '=' || Character.isWhitespace(c) || Character.isSpaceChar(c)
+					|| isControl(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isControl(final char c) {
+		// Includes the unicode line / paragraph separators
+		return Character.isISOControl(c) || c == 0x2028 || c == 0x2029;
+	}
+	
+	private static void appendMillis(final StringBuilder event, final String key, final long nanos) {
+		append(event, key, String.format(Locale.ROOT, "%.3f", nanos / NANOS_PER_MILLI));
+	}
+}
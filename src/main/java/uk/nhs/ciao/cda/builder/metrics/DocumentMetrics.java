@@ -0,0 +1,52 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The counters and stage latencies of the documents handled by a single scope (route / interaction)
+ */
+public class DocumentMetrics {
+	private final DocumentCounters counters = new DocumentCounters();
+	private final Map<Stage, LatencyHistogram> stageLatencies = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+	private final LatencyHistogram totalLatency = new LatencyHistogram();
+	
+	public DocumentMetrics() {
+		for (final Stage stage: Stage.values()) {
+			stageLatencies.put(stage, new LatencyHistogram());
+		}
+	}
+	
+	public DocumentCounters getCounters() {
+		return counters;
+	}
+	
+	public LatencyHistogram getLatency(final Stage stage) {
+		return stageLatencies.get(stage);
+	}
+	
+	/**
+	 * The end-to-end latency of successfully completed documents
+	 */
+	public LatencyHistogram getTotalLatency() {
+		return totalLatency;
+	}
+	
+	/**
+	 * Records the timings of a completed document - stages which were not timed are ignored
+	 */
+	public void completed(final DocumentTimings timings, final long bytesOut) {
+		counters.completed(bytesOut);
+		for (final Stage stage: Stage.values()) {
+			final long nanos = timings.getNanos(stage);
+			if (nanos > 0) {
+				stageLatencies.get(stage).record(nanos);
+			}
+		}
+		totalLatency.record(timings.getElapsedNanos());
+	}
+	
+	public void failed() {
+		counters.failed();
+	}
+}
@@ -0,0 +1,235 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+/**
+ * The stage timings of a single document as it passes through a route.
+ * <p>
+ * The timings travel with the exchange (see {@link #PROPERTY}). While the document is transformed
+ * the timings are also bound to the transforming thread - so the transformer can time its internal
+ * stages (see {@link #mark()} / {@link #lap(Stage)}) without knowing about the exchange. When no timings
+ * are bound (e.g. during warm-up) the static methods do nothing.
+ * <p>
+ * The CPU time and bytes allocated by the transforming thread are also accounted for (see
+ * {@link #startAccounting()} / {@link #stopAccounting()}).
+ * <p>
+ * Each timed stage is also reported as a JFR event when enabled in a running recording (see
+ * {@link FlightRecorderEvents}).
+ */
+public class DocumentTimings {
+	/**
+	 * The exchange property holding the timings of the document
+	 */
+	public static final String PROPERTY = "ciao.cdaBuilder.documentTimings";
+	
+	/**
+	 * The interaction recorded for documents which are not handled by a registered payload handler
+	 */
+	public static final String UNKNOWN_INTERACTION = "unknown";
+	
+	private static final ThreadLocal<DocumentTimings> CURRENT = new ThreadLocal<DocumentTimings>();
+	
+	private final long startNanos;
+	private final String correlationId;
+	private final long bytesIn;
+	private final Object[] stageEvents = new Object[Stage.values().length];
+	private Object lapEvent;
+	private long bytesOut;
+	private final long[] stageNanos = new long[Stage.values().length];
+	private final long[] stageStartNanos = new long[Stage.values().length];
+	private long markNanos;
+	private String interaction;
+	private long accountingThreadId = -1;
+	private long cpuStartNanos;
+	private long allocatedStartBytes;
+	private long cpuNanos = -1;
+	private long allocatedBytes = -1;
+	private boolean counted;
+	
+	public DocumentTimings(final String correlationId, final long bytesIn) {
+		this.startNanos = System.nanoTime();
+		this.correlationId = correlationId;
+		this.bytesIn = bytesIn;
+	}
+	
+	/**
+	 * Whether the document has been counted as received by the route
+	 */
+	boolean isCounted() {
+		return counted;
+	}
+	
+	void setCounted(final boolean counted) {
+		this.counted = counted;
+	}
+	
+	/**
+	 * The timings bound to the current thread - or <code>null</code> if no timings are bound
+	 */
+	public static DocumentTimings current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Binds the timings to the current thread - replacing any previous binding
+	 */
+	public void bind() {
+		CURRENT.set(this);
+		markNanos = System.nanoTime();
+		lapEvent = FlightRecorderEvents.begin();
+	}
+	
+	/**
+	 * Removes the timings bound to the current thread
+	 */
+	public static void unbind() {
+		CURRENT.remove();
+	}
+	
+	/**
+	 * Starts the next lap of the timings bound to the current thread
+	 */
+	public static void mark() {
+		final DocumentTimings timings = CURRENT.get();
+		if (timings != null) {
+			timings.markNanos = System.nanoTime();
+			timings.lapEvent = FlightRecorderEvents.begin();
+		}
+	}
+	
+	/**
+	 * Adds the time since the last mark / lap to the stage of the timings bound to the current thread
+	 */
+	public static void lap(final Stage stage) {
+		final DocumentTimings timings = CURRENT.get();
+		if (timings != null) {
+			final long now = System.nanoTime();
+			timings.stageNanos[stage.ordinal()] += now - timings.markNanos;
+			timings.markNanos = now;
+			
+			FlightRecorderEvents.commit(timings.lapEvent, stage.getKey(), timings);
+			timings.lapEvent = FlightRecorderEvents.begin();
+		}
+	}
+	
+	/**
+	 * Records the interaction of the document against the timings bound to the current thread.
+	 * <p>
+	 * The interaction is used to name the per-interaction metrics - so it must be one of the configured
+	 * interactions (or {@link #UNKNOWN_INTERACTION}), never a value taken directly from the incoming document.
+	 */
+	public static void interaction(final String interaction) {
+		final DocumentTimings timings = CURRENT.get();
+		if (timings != null) {
+			timings.interaction = interaction;
+		}
+	}
+	
+	/**
+	 * Starts accounting for the resources used by the current thread
+	 */
+	public void startAccounting() {
+		accountingThreadId = Thread.currentThread().getId();
+		cpuStartNanos = ThreadResources.getCpuNanos();
+		allocatedStartBytes = ThreadResources.getAllocatedBytes();
+	}
+	
+	/**
+	 * Adds the resources used by the current thread since accounting was started.
+	 * <p>
+	 * Does nothing if accounting was not started on the current thread.
+	 */
+	public void stopAccounting() {
+		if (accountingThreadId != Thread.currentThread().getId()) {
+			return;
+		}
+		accountingThreadId = -1;
+		
+		final long cpuEndNanos = ThreadResources.getCpuNanos();
+		if (cpuStartNanos >= 0 && cpuEndNanos >= 0) {
+			cpuNanos = Math.max(0, cpuNanos) + cpuEndNanos - cpuStartNanos;
+		}
+		
+		final long allocatedEndBytes = ThreadResources.getAllocatedBytes();
+		if (allocatedStartBytes >= 0 && allocatedEndBytes >= 0) {
+			allocatedBytes = Math.max(0, allocatedBytes) + allocatedEndBytes - allocatedStartBytes;
+		}
+	}
+	
+	/**
+	 * Records the size of the outgoing document against the timings bound to the current thread
+	 */
+	public static void bytesOut(final long bytesOut) {
+		final DocumentTimings timings = CURRENT.get();
+		if (timings != null) {
+			timings.bytesOut = bytesOut;
+		}
+	}
+	
+	public void start(final Stage stage) {
+		stageEvents[stage.ordinal()] = FlightRecorderEvents.begin();
+		stageStartNanos[stage.ordinal()] = System.nanoTime();
+	}
+	
+	public void stop(final Stage stage) {
+		stageNanos[stage.ordinal()] += System.nanoTime() - stageStartNanos[stage.ordinal()];
+		
+		FlightRecorderEvents.commit(stageEvents[stage.ordinal()], stage.getKey(), this);
+		stageEvents[stage.ordinal()] = null;
+	}
+	
+	/**
+	 * The time spent in the stage (in nanoseconds) - or zero if the stage was not timed
+	 */
+	public long getNanos(final Stage stage) {
+		return stageNanos[stage.ordinal()];
+	}
+	
+	/**
+	 * The time (in nanoseconds) since the document was received
+	 */
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+	
+	/**
+	 * The CPU time (in nanoseconds) accounted to the document - or <code>-1</code> if not available
+	 */
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+	
+	/**
+	 * The bytes allocated while building the document - or <code>-1</code> if not available
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	/**
+	 * The correlation id of the document (if known)
+	 */
+	public String getCorrelationId() {
+		return correlationId;
+	}
+	
+	public long getBytesIn() {
+		return bytesIn;
+	}
+	
+	/**
+	 * The size of the outgoing document - or zero if not yet known
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+	
+	public void setBytesOut(final long bytesOut) {
+		this.bytesOut = bytesOut;
+	}
+	
+	/**
+	 * The (resolved) interaction of the document - or <code>null</code> if the document was not parsed
+	 */
+	public String getInteraction() {
+		return interaction;
+	}
+}
@@ -0,0 +1,191 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder (JFR) events for the stages of building a CDA document - without requiring
+ * JFR at compile time.
+ * <p>
+ * The module is still built for older JVMs, so the event type (<code>uk.nhs.ciao.cda.builder.DocumentStage</code>)
+ * is defined at runtime via <code>jdk.jfr.EventFactory</code> when the running JVM supports JFR. Each event
+ * records the duration of a single stage of a document along with the stage name, correlation id,
+ * interaction and payload sizes.
+ * <p>
+ * When JFR is not available, or the event is not enabled in any running recording, {@link #begin()}
+ * returns <code>null</code> and no event is created - the overhead is a single enabled check.
+ */
+public final class FlightRecorderEvents {
+	/**
+	 * The name of the JFR event type
+	 */
+	public static final String EVENT_NAME = "uk.nhs.ciao.cda.builder.DocumentStage";
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecorderEvents.class);
+	
+	private static final int STAGE_FIELD = 0;
+	private static final int CORRELATION_ID_FIELD = 1;
+	private static final int INTERACTION_FIELD = 2;
+	private static final int INPUT_BYTES_FIELD = 3;
+	private static final int OUTPUT_BYTES_FIELD = 4;
+	
+	private static final EventSupport SUPPORT = EventSupport.create();
+	
+	private FlightRecorderEvents() {
+		// Suppress default constructor
+	}
+	
+	/**
+	 * Tests if JFR events are supported by the running JVM
+	 */
+	public static boolean isAvailable() {
+		return SUPPORT != null;
+	}
+	
+	/**
+	 * Begins timing a new event
+	 * 
+	 * @return The event - or <code>null</code> if the event is not enabled
+	 */
+	public static Object begin() {
+		if (SUPPORT == null) {
+			return null;
+		}
+		
+		try {
+			if (!(Boolean)SUPPORT.isEnabled.invoke(SUPPORT.eventType)) {
+				return null;
+			}
+			
+			final Object event = SUPPORT.newEvent.invoke(SUPPORT.factory);
+			SUPPORT.begin.invoke(event);
+			return event;
+		} catch (IllegalAccessException e) {
+			return null;
+		} catch (InvocationTargetException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Ends and commits the event using the details of the timings bound to the current thread
+	 * 
+	 * @param event The event returned by {@link #begin()} (may be <code>null</code>)
+	 */
+	public static void commit(final Object event, final String stage) {
+		commit(event, stage, DocumentTimings.current());
+	}
+	
+	/**
+	 * Ends and commits the event using the details of the specified timings
+	 * 
+	 * @param event The event returned by {@link #begin()} (may be <code>null</code>)
+	 * @param timings The timings of the document (may be <code>null</code>)
+	 */
+	public static void commit(final Object event, final String stage, final DocumentTimings timings) {
+		if (event == null) {
+			return;
+		}
+		
+		try {
+			SUPPORT.end.invoke(event);
+			if (!(Boolean)SUPPORT.shouldCommit.invoke(event)) {
+				return;
+			}
+			
+			SUPPORT.set.invoke(event, STAGE_FIELD, stage);
+			if (timings != null) {
+				SUPPORT.set.invoke(event, CORRELATION_ID_FIELD, timings.getCorrelationId());
+				SUPPORT.set.invoke(event, INTERACTION_FIELD, timings.getInteraction());
+				SUPPORT.set.invoke(event, INPUT_BYTES_FIELD, timings.getBytesIn());
+				SUPPORT.set.invoke(event, OUTPUT_BYTES_FIELD, timings.getBytesOut());
+			}
+			SUPPORT.commit.invoke(event);
+		} catch (IllegalAccessException e) {
+			LOGGER.trace("Unable to commit JFR event", e);
+		} catch (InvocationTargetException e) {
+			LOGGER.trace("Unable to commit JFR event", e.getCause());
+		}
+	}
+	
+	/**
+	 * The reflectively resolved JFR event factory and methods
+	 */
+	private static class EventSupport {
+		private final Object factory;
+		private final Object eventType;
+		private final Method isEnabled;
+		private final Method newEvent;
+		private final Method begin;
+		private final Method end;
+		private final Method shouldCommit;
+		private final Method set;
+		private final Method commit;
+		
+		private EventSupport(final Object factory) throws ReflectiveOperationException {
+			final Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+			final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			
+			this.factory = factory;
+			this.eventType = factory.getClass().getMethod("getEventType").invoke(factory);
+			this.isEnabled = eventTypeClass.getMethod("isEnabled");
+			this.newEvent = factory.getClass().getMethod("newEvent");
+			this.begin = eventClass.getMethod("begin");
+			this.end = eventClass.getMethod("end");
+			this.shouldCommit = eventClass.getMethod("shouldCommit");
+			this.set = eventClass.getMethod("set", int.class, Object.class);
+			this.commit = eventClass.getMethod("commit");
+		}
+		
+		/**
+		 * Registers the event type
+		 * 
+		 * @return The event support - or <code>null</code> if JFR is not supported by the running JVM
+		 */
+		public static EventSupport create() {
+			try {
+				final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+				final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+				final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+				
+				final Constructor<?> annotation = annotationElementClass.getConstructor(Class.class, Object.class);
+				final Constructor<?> field = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+				
+				final List<Object> annotations = Arrays.asList(
+						annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME),
+						annotation.newInstance(Class.forName("jdk.jfr.Label"), "CDA Document Stage"),
+						annotation.newInstance(Class.forName("jdk.jfr.Description"),
+								"A single stage of building a CDA document"),
+						annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"CIAO", "CDA Builder"}));
+				
+				// The order must match the *_FIELD indexes
+				final Object bytes = annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES");
+				final List<Object> fields = Arrays.asList(
+						field.newInstance(String.class, "stage", Collections.emptyList()),
+						field.newInstance(String.class, "correlationId", Collections.emptyList()),
+						field.newInstance(String.class, "interaction", Collections.emptyList()),
+						field.newInstance(long.class, "inputBytes", Collections.singletonList(bytes)),
+						field.newInstance(long.class, "outputBytes", Collections.singletonList(bytes)));
+				
+				final Object factory = eventFactoryClass.getMethod("create", List.class, List.class)
+						.invoke(null, annotations, fields);
+				return new EventSupport(factory);
+			} catch (ClassNotFoundException e) {
+				return null; // JFR is not available
+			} catch (ReflectiveOperationException e) {
+				LOGGER.debug("Unable to register JFR events", e);
+				return null;
+			} catch (RuntimeException e) {
+				LOGGER.debug("Unable to register JFR events", e);
+				return null;
+			}
+		}
+	}
+}
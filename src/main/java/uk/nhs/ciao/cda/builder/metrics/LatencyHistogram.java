@@ -0,0 +1,143 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies (in nanoseconds).
+ * <p>
+ * Values are counted in log-linear buckets (in the style of HdrHistogram): each power of two is split
+ * into 16 linear sub-buckets, so any recorded value is reported to within ~6% across the full range
+ * of a long. Recording a value is a few atomic increments - no allocation, no locks.
+ * <p>
+ * Counts accumulate for the lifetime of the histogram - the same as JMX counters, rates / windows
+ * are left to the monitoring system.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a single latency - negative values are recorded as zero
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		counts.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+	
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * The mean recorded value in nanoseconds
+	 */
+	public long getMean() {
+		final long recorded = count.get();
+		return recorded == 0 ? 0 : total.get() / recorded;
+	}
+	
+	/**
+	 * The maximum recorded value in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * The (approximate) recorded value in nanoseconds at the specified percentile (0 - 100)
+	 * <p>
+	 * The upper bound of the matching bucket is returned - never more than the maximum recorded value.
+	 */
+	public long getValueAtPercentile(final double percentile) {
+		final long recorded = count.get();
+		if (recorded == 0) {
+			return 0;
+		}
+		
+		final long target = Math.max(1, (long)Math.ceil(recorded * Math.min(100, percentile) / 100));
+		long cumulative = 0;
+		for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+			cumulative += counts.get(bucket);
+			if (cumulative >= target) {
+				return Math.min(getUpperBound(bucket), getMax());
+			}
+		}
+		
+		// Counts were recorded concurrently with this read
+		return getMax();
+	}
+	
+	@Override
+	public double getMeanMillis() {
+		return getMean() / NANOS_PER_MILLI;
+	}
+	
+	@Override
+	public double getMaxMillis() {
+		return getMax() / NANOS_PER_MILLI;
+	}
+	
+	@Override
+	public double getMedianMillis() {
+		return getValueAtPercentile(50) / NANOS_PER_MILLI;
+	}
+	
+	@Override
+	public double get90thPercentileMillis() {
+		return getValueAtPercentile(90) / NANOS_PER_MILLI;
+	}
+	
+	@Override
+	public double get99thPercentileMillis() {
+		return getValueAtPercentile(99) / NANOS_PER_MILLI;
+	}
+	
+	@Override
+	public double get999thPercentileMillis() {
+		return getValueAtPercentile(99.9) / NANOS_PER_MILLI;
+	}
+	
+	/**
+	 * Values below the sub-bucket count have a bucket each, larger values share a bucket
+	 * with the values having the same magnitude and leading sub-bucket bits
+	 */
+	static int getBucket(final long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+		
+		final int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKET_COUNT + (int)((value >>> shift) - SUB_BUCKET_COUNT);
+	}
+	
+	/**
+	 * The largest value counted in the specified bucket
+	 */
+	static long getUpperBound(final int bucket) {
+		if (bucket < SUB_BUCKET_COUNT) {
+			return bucket;
+		}
+		
+		final int shift = bucket / SUB_BUCKET_COUNT - 1;
+		final long subBucket = bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		final long upperBound = ((subBucket + 1) << shift) - 1;
+		return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+	}
+}
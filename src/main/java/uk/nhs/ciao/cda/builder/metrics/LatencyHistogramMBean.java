@@ -0,0 +1,20 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram} - all latencies are reported in milliseconds
+ */
+public interface LatencyHistogramMBean {
+	long getCount();
+	
+	double getMeanMillis();
+	
+	double getMaxMillis();
+	
+	double getMedianMillis();
+	
+	double get90thPercentileMillis();
+	
+	double get99thPercentileMillis();
+	
+	double get999thPercentileMillis();
+}
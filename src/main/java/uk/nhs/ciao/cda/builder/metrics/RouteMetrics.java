@@ -0,0 +1,343 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The metrics of a single CDA builder route - for the route as a whole and for each interaction.
+ * <p>
+ * The metrics are registered with the platform MBean server while the service is started:
+ * <ul>
+ * <li><code>uk.nhs.ciao.cda.builder:type=Documents,route=${route}</code> - messages / bytes in and out, failures</li>
+ * <li><code>uk.nhs.ciao.cda.builder:type=Latency,route=${route},stage=${stage}</code> - parse, build,
+ * serialise, marshal, send and total latency histograms</li>
+ * </ul>
+ * Each interaction has the same set of metrics with an additional <code>interaction</code> key - registered
+ * when the first document of the interaction is seen. Only the interactions resolved by the transformer are
+ * used (see {@link DocumentTimings#interaction(String)}) - documents of any other interaction, and any
+ * interactions beyond {@link #MAX_INTERACTIONS}, are recorded against {@link DocumentTimings#UNKNOWN_INTERACTION}.
+ * <p>
+ * The sizes of text message bodies are measured in characters (equal to the encoded bytes for the ASCII JSON
+ * / XML documents) - so the body is never re-encoded just to be measured.
+ * <p>
+ * Documents are tracked via a {@link DocumentTimings} exchange property - see the processors returned by
+ * {@link #documentReceived()}, {@link #documentCompleted()}, etc. Each completed / failed document is
+ * also reported as a single log event (see {@link DocumentEventLog}).
+ */
+public class RouteMetrics extends ServiceSupport {
+	/**
+	 * The JMX domain of the registered metrics
+	 */
+	public static final String DOMAIN = "uk.nhs.ciao.cda.builder";
+	
+	/**
+	 * The maximum number of interactions with their own metrics (including the unknown interaction)
+	 */
+	public static final int MAX_INTERACTIONS = 64;
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(RouteMetrics.class);
+	
+	private final String routeName;
+	private final DocumentMetrics routeMetrics = new DocumentMetrics();
+	private final ConcurrentMap<String, DocumentMetrics> interactionMetrics = Maps.newConcurrentMap();
+	private final List<ObjectName> registeredNames = Lists.newCopyOnWriteArrayList();
+	private final MBeanServer mbeanServer;
+	
+	public RouteMetrics(final String routeName) {
+		this(routeName, ManagementFactory.getPlatformMBeanServer());
+	}
+	
+	public RouteMetrics(final String routeName, final MBeanServer mbeanServer) {
+		this.routeName = routeName;
+		this.mbeanServer = mbeanServer;
+	}
+	
+	public String getRouteName() {
+		return routeName;
+	}
+	
+	/**
+	 * The metrics of all documents handled by the route
+	 */
+	public DocumentMetrics getMetrics() {
+		return routeMetrics;
+	}
+	
+	/**
+	 * The metrics of the documents of the specified interaction - or <code>null</code> if no
+	 * documents of the interaction have been seen
+	 */
+	public DocumentMetrics getMetrics(final String interaction) {
+		return interactionMetrics.get(Strings.isNullOrEmpty(interaction) ? DocumentTimings.UNKNOWN_INTERACTION : interaction);
+	}
+	
+	/**
+	 * Starts tracking the document of the exchange - and counts it as received
+	 */
+	public void received(final Exchange exchange) {
+		final DocumentTimings timings = track(exchange);
+		routeMetrics.getCounters().received(timings.getBytesIn());
+		timings.setCounted(true);
+	}
+	
+	/**
+	 * Starts tracking the document of the exchange - without counting it as received. The document is
+	 * counted when it is completed / failed (e.g. once the batch containing the document is committed).
+	 */
+	public DocumentTimings track(final Exchange exchange) {
+		final DocumentTimings timings = new DocumentTimings(
+				exchange.getIn().getHeader(Exchange.CORRELATION_ID, String.class), getBodyLength(exchange));
+		exchange.setProperty(DocumentTimings.PROPERTY, timings);
+		return timings;
+	}
+	
+	private void countReceived(final DocumentTimings timings) {
+		if (!timings.isCounted()) {
+			routeMetrics.getCounters().received(timings.getBytesIn());
+			timings.setCounted(true);
+		}
+	}
+	
+	/**
+	 * Records the document of the exchange as successfully completed
+	 */
+	public void completed(final Exchange exchange) {
+		final DocumentTimings timings = getTimings(exchange);
+		if (timings != null) {
+			final long bytesOut = getBodyLength(exchange);
+			timings.setBytesOut(bytesOut);
+			countReceived(timings);
+			routeMetrics.completed(timings, bytesOut);
+			
+			final DocumentMetrics metrics = getOrCreateMetrics(timings.getInteraction());
+			metrics.getCounters().received(timings.getBytesIn());
+			metrics.completed(timings, bytesOut);
+			
+			DocumentEventLog.completed(routeName, exchange, timings, bytesOut);
+		}
+	}
+	
+	/**
+	 * Records the document of the exchange as failed
+	 */
+	public void failed(final Exchange exchange) {
+		final DocumentTimings timings = getTimings(exchange);
+		if (timings != null) {
+			// Only completes if the document failed on the transforming thread
+			timings.stopAccounting();
+			DocumentTimings.unbind();
+			
+			countReceived(timings);
+			routeMetrics.failed();
+			
+			final DocumentMetrics metrics = getOrCreateMetrics(timings.getInteraction());
+			metrics.getCounters().received(timings.getBytesIn());
+			metrics.failed();
+			
+			DocumentEventLog.failed(routeName, exchange, timings);
+		}
+	}
+	
+	public Processor documentReceived() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				received(exchange);
+			}
+		};
+	}
+	
+	public Processor documentTracked() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				track(exchange);
+			}
+		};
+	}
+	
+	public Processor documentCompleted() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				completed(exchange);
+			}
+		};
+	}
+	
+	public Processor documentFailed() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				failed(exchange);
+			}
+		};
+	}
+	
+	/**
+	 * Binds the timings of the exchange to the transforming thread and starts accounting for
+	 * the resources used by the thread
+	 */
+	public Processor transformStarted() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final DocumentTimings timings = getTimings(exchange);
+				if (timings != null) {
+					timings.bind();
+					timings.startAccounting();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Stops accounting and unbinds the timings from the transforming thread.
+	 * <p>
+	 * If the transform fails on another thread, the timings remain bound until replaced by the
+	 * next document transformed on the same thread.
+	 */
+	public Processor transformCompleted() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final DocumentTimings timings = getTimings(exchange);
+				if (timings != null) {
+					timings.stopAccounting();
+				}
+				DocumentTimings.unbind();
+			}
+		};
+	}
+	
+	public Processor stageStarted(final Stage stage) {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final DocumentTimings timings = getTimings(exchange);
+				if (timings != null) {
+					timings.start(stage);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Stops timing the stage - the size of the message body at the end of the stage is recorded
+	 * as the outgoing size
+	 */
+	public Processor stageCompleted(final Stage stage) {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) throws Exception {
+				final DocumentTimings timings = getTimings(exchange);
+				if (timings != null) {
+					timings.setBytesOut(getBodyLength(exchange));
+					timings.stop(stage);
+				}
+			}
+		};
+	}
+	
+	public static DocumentTimings getTimings(final Exchange exchange) {
+		return exchange.getProperty(DocumentTimings.PROPERTY, DocumentTimings.class);
+	}
+	
+	@Override
+	protected void doStart() throws Exception {
+		register(routeMetrics, null);
+		for (final String interaction: interactionMetrics.keySet()) {
+			register(interactionMetrics.get(interaction), interaction);
+		}
+	}
+	
+	@Override
+	protected void doStop() throws Exception {
+		for (final ObjectName name: registeredNames) {
+			try {
+				if (mbeanServer.isRegistered(name)) {
+					mbeanServer.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				LOGGER.debug("Unable to unregister metrics: {}", name, e);
+			}
+		}
+		registeredNames.clear();
+	}
+	
+	private DocumentMetrics getOrCreateMetrics(final String interaction) {
+		String key = Strings.isNullOrEmpty(interaction) ? DocumentTimings.UNKNOWN_INTERACTION : interaction;
+		DocumentMetrics metrics = interactionMetrics.get(key);
+		if (metrics == null && !DocumentTimings.UNKNOWN_INTERACTION.equals(key)
+				&& interactionMetrics.size() >= MAX_INTERACTIONS - 1) {
+			// Bounds the number of registered MBeans - one slot is kept for the unknown interaction
+			key = DocumentTimings.UNKNOWN_INTERACTION;
+			metrics = interactionMetrics.get(key);
+		}
+		if (metrics == null) {
+			final DocumentMetrics created = new DocumentMetrics();
+			metrics = interactionMetrics.putIfAbsent(key, created);
+			if (metrics == null) {
+				metrics = created;
+				if (isStarted()) {
+					register(metrics, key);
+				}
+			}
+		}
+		return metrics;
+	}
+	
+	private void register(final DocumentMetrics metrics, final String interaction) {
+		final String scope = "route=" + ObjectName.quote(routeName) +
+				(interaction == null ? "" : ",interaction=" + ObjectName.quote(interaction));
+		
+		register(metrics.getCounters(), DOMAIN + ":type=Documents," + scope);
+		for (final Stage stage: Stage.values()) {
+			register(metrics.getLatency(stage), DOMAIN + ":type=Latency," + scope + ",stage=" + stage.getKey());
+		}
+		register(metrics.getTotalLatency(), DOMAIN + ":type=Latency," + scope + ",stage=total");
+	}
+	
+	private void register(final Object mbean, final String name) {
+		try {
+			final ObjectName objectName = new ObjectName(name);
+			if (mbeanServer.isRegistered(objectName)) {
+				// e.g. left behind by a previous context in the same JVM
+				mbeanServer.unregisterMBean(objectName);
+			}
+			mbeanServer.registerMBean(mbean, objectName);
+			registeredNames.add(objectName);
+		} catch (JMException e) {
+			LOGGER.warn("Unable to register metrics: {}", name, e);
+		}
+	}
+	
+	/**
+	 * The length of the message body (in bytes, or characters for a text body) - or zero if the body is
+	 * not a known type
+	 */
+	private static long getBodyLength(final Exchange exchange) {
+		final Object body = exchange.getIn().getBody();
+		if (body instanceof byte[]) {
+			return ((byte[])body).length;
+		} else if (body instanceof CharSequence) {
+			return ((CharSequence)body).length();
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,40 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.util.Locale;
+
+/**
+ * The timed stages of building a single CDA document
+ */
+public enum Stage {
+	/**
+	 * Reading the incoming JSON document
+	 */
+	PARSE,
+	
+	/**
+	 * Binding the incoming fields and creating the payload model
+	 */
+	BUILD,
+	
+	/**
+	 * Serialising and encoding the CDA document
+	 */
+	SERIALISE,
+	
+	/**
+	 * Marshalling the outgoing message
+	 */
+	MARSHAL,
+	
+	/**
+	 * Publishing the outgoing message
+	 */
+	SEND;
+	
+	/**
+	 * The name of the stage used in JMX object names / log events
+	 */
+	public String getKey() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,91 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time and allocated bytes of the current thread (via {@link ThreadMXBean}).
+ * <p>
+ * Each value is reported as <code>-1</code> if it is not supported by the running JVM (or for the
+ * current thread - e.g. a virtual thread).
+ */
+public final class ThreadResources {
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME_SUPPORTED = isCpuTimeSupported();
+	private static final com.sun.management.ThreadMXBean ALLOCATION_MX_BEAN = getAllocationMXBean();
+	
+	private ThreadResources() {
+		// Suppress default constructor
+	}
+	
+	/**
+	 * The CPU time (in nanoseconds) used by the current thread - or <code>-1</code> if not available
+	 */
+	public static long getCpuNanos() {
+		if (!CPU_TIME_SUPPORTED) {
+			return -1;
+		}
+		
+		try {
+			return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+		} catch (UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * The total bytes allocated by the current thread - or <code>-1</code> if not available
+	 */
+	public static long getAllocatedBytes() {
+		if (ALLOCATION_MX_BEAN == null) {
+			return -1;
+		}
+		
+		try {
+			return ALLOCATION_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+		} catch (UnsupportedOperationException e) {
+			return -1;
+		}
+	}
+	
+	private static boolean isCpuTimeSupported() {
+		try {
+			if (!THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+				return false;
+			}
+			if (!THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+				THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+			}
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		} catch (SecurityException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * The HotSpot extension of the thread MX bean - or <code>null</code> if allocation accounting
+	 * is not available
+	 */
+	private static com.sun.management.ThreadMXBean getAllocationMXBean() {
+		try {
+			if (!(THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean)) {
+				return null;
+			}
+			
+			final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)THREAD_MX_BEAN;
+			if (!bean.isThreadAllocatedMemorySupported()) {
+				return null;
+			}
+			if (!bean.isThreadAllocatedMemoryEnabled()) {
+				bean.setThreadAllocatedMemoryEnabled(true);
+			}
+			return bean;
+		} catch (NoClassDefFoundError e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+}
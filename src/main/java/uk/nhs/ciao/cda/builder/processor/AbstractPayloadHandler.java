@@ -0,0 +1,48 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.IOException;
+
+import uk.nhs.interoperability.payloads.Payload;
+import uk.nhs.interoperability.payloads.exceptions.MissingMandatoryFieldException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Base class for payload handlers which can transform an incoming document already read by
+ * {@link IncomingDocumentReader}.
+ * <p>
+ * By default the incoming document is replayed as JSON (see {@link IncomingDocument#asParser(ObjectMapper)})
+ * to {@link #transformPayload(ObjectMapper, JsonParser)} - so a handler only has to implement the
+ * JSON method. Handlers should override {@link #transformPayload(ObjectMapper, IncomingDocument)} to bind
+ * the document directly.
+ * <p>
+ * Handlers which only implement {@link PayloadHandler} are also supported - the document is replayed
+ * in the same way.
+ */
+public abstract class AbstractPayloadHandler implements PayloadHandler {
+	/**
+	 * Transforms an incoming document (already read by the transformer) into a payload
+	 * 
+	 * @param objectMapper The JSON object mapper to use when handling type conversions
+	 * @param document The incoming document to transform
+	 * @return The transformed payload
+	 */
+	public Payload transformPayload(final ObjectMapper objectMapper, final IncomingDocument document)
+			throws IOException, MissingMandatoryFieldException {
+		return transformPayload(this, objectMapper, document);
+	}
+	
+	/**
+	 * Transforms the incoming document by replaying it as JSON to the handler
+	 */
+	static Payload transformPayload(final PayloadHandler payloadHandler, final ObjectMapper objectMapper,
+			final IncomingDocument document) throws IOException, MissingMandatoryFieldException {
+		final JsonParser parser = document.asParser(objectMapper);
+		try {
+			return payloadHandler.transformPayload(objectMapper, parser);
+		} finally {
+			parser.close();
+		}
+	}
+}
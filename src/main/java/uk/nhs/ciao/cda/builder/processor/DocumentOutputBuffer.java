@@ -0,0 +1,91 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A growable byte buffer which is re-used between documents (by a single thread).
+ * <p>
+ * Unlike <code>ByteArrayOutputStream</code> the backing array is kept when the buffer is reset,
+ * so writing a document does not re-allocate (and copy) the buffer each time it grows. Arrays
+ * larger than the maximum retained capacity are released on reset - so a single large document
+ * does not pin a large array to the thread.
+ */
+public class DocumentOutputBuffer extends OutputStream {
+	private final int initialCapacity;
+	private final int maxRetainedCapacity;
+	private byte[] bytes;
+	private int size;
+	
+	public DocumentOutputBuffer(final int initialCapacity, final int maxRetainedCapacity) {
+		Preconditions.checkArgument(initialCapacity > 0, "initialCapacity must be positive");
+		Preconditions.checkArgument(maxRetainedCapacity >= initialCapacity,
+				"maxRetainedCapacity must be at least initialCapacity");
+		
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+		this.bytes = new byte[initialCapacity];
+	}
+	
+	@Override
+	public void write(final int b) {
+		ensureCapacity(size + 1);
+		bytes[size++] = (byte)b;
+	}
+	
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		ensureCapacity(size + len);
+		System.arraycopy(b, off, bytes, size, len);
+		size += len;
+	}
+	
+	/**
+	 * The number of bytes written since the buffer was last reset
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns an exactly sized copy of the bytes written since the buffer was last reset
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+	
+	/**
+	 * Writes the buffered bytes to the specified stream
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		out.write(bytes, 0, size);
+	}
+	
+	/**
+	 * Discards the buffered bytes - keeping the backing array unless it exceeds the maximum
+	 * retained capacity
+	 */
+	public void reset() {
+		size = 0;
+		if (bytes.length > maxRetainedCapacity) {
+			bytes = new byte[initialCapacity];
+		}
+	}
+	
+	private void ensureCapacity(final int capacity) {
+		if (capacity < 0) {
+			throw new OutOfMemoryError("Document is too large to buffer");
+		} else if (capacity > bytes.length) {
+			final int newCapacity = Math.max(capacity, bytes.length > Integer.MAX_VALUE / 2
+					? Integer.MAX_VALUE : bytes.length * 2);
+			bytes = Arrays.copyOf(bytes, newCapacity);
+		}
+	}
+}
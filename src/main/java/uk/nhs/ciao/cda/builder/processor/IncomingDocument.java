@@ -0,0 +1,95 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+import uk.nhs.ciao.cda.builder.json.EncodedDocument;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.base.Strings;
+
+/**
+ * An incoming JSON-encoded parsed document, as read in a single pass by {@link IncomingDocumentReader}.
+ * <p>
+ * The same instances are used both to create the payload and as the pass-through
+ * name and properties of the outgoing document.
+ * <p>
+ * The document should be closed once processing has completed, releasing any spooled content.
+ */
+public class IncomingDocument implements Closeable {
+	private final Map<String, Object> properties;
+	private final EncodedDocument originalDocument;
+
+	public IncomingDocument(final Map<String, Object> properties, final EncodedDocument originalDocument) {
+		this.properties = properties;
+		this.originalDocument = originalDocument;
+	}
+
+	/**
+	 * The (untyped) properties of the incoming document - may be <code>null</code>
+	 */
+	public Map<String, Object> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * The original document (with the content still base64 encoded) - may be <code>null</code>
+	 */
+	public EncodedDocument getOriginalDocument() {
+		return originalDocument;
+	}
+
+	/**
+	 * The name of the original document - may be <code>null</code>
+	 */
+	public String getName() {
+		return originalDocument == null ? null : originalDocument.getName();
+	}
+
+	/**
+	 * The ITK interaction determined by <code>properties.itkHandlingSpec</code> (or an empty string
+	 * if the interaction is not specified)
+	 */
+	public String getInteraction() {
+		final Object interaction = properties == null ? null : properties.get("itkHandlingSpec");
+		return interaction == null ? "" : Strings.nullToEmpty(interaction.toString()).trim();
+	}
+	
+	/**
+	 * Replays the document as JSON - in the parsed document form it was read from.
+	 * <p>
+	 * This is a second pass over the document, and any spooled content is copied back onto the heap - it
+	 * is only used for handlers which cannot bind an incoming document directly (see {@link AbstractPayloadHandler}).
+	 */
+	public JsonParser asParser(final ObjectMapper objectMapper) throws IOException {
+		final TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+		buffer.writeStartObject();
+		if (properties != null) {
+			buffer.writeFieldName("properties");
+			objectMapper.writeValue(buffer, properties);
+		}
+		if (originalDocument != null) {
+			buffer.writeObjectFieldStart("originalDocument");
+			buffer.writeStringField("name", originalDocument.getName());
+			buffer.writeStringField("content", originalDocument.isSpooled()
+					? originalDocument.getSpooledContent().toString() : originalDocument.getBase64Content());
+			buffer.writeStringField("mediaType", originalDocument.getMediaType());
+			buffer.writeEndObject();
+		}
+		buffer.writeEndObject();
+		return buffer.asParser();
+	}
+	
+	/**
+	 * Releases any spooled content associated with the original document
+	 */
+	@Override
+	public void close() {
+		if (originalDocument != null && originalDocument.isSpooled()) {
+			originalDocument.getSpooledContent().close();
+		}
+	}
+}
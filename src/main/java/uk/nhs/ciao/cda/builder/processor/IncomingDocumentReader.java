@@ -0,0 +1,158 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import uk.nhs.ciao.cda.builder.json.EncodedDocument;
+import uk.nhs.ciao.cda.builder.json.SpooledContent;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+
+/**
+ * Reads an {@link IncomingDocument} from a JSON stream in a single pass.
+ * <p>
+ * Unlike <code>ObjectMapper.readTree()</code>, no intermediate JSON tree is created:
+ * <code>properties</code> and <code>originalDocument</code> are bound directly
+ * from the parser and any other top-level fields are skipped.
+ * <p>
+ * The content of the original document is not decoded - see {@link EncodedDocument}. If
+ * the content is larger than the configured spool threshold it is moved out of the heap
+ * into a memory-mapped temporary file - see {@link SpooledContent}.
+ * <p>
+ * Spooling does not stream the content: Jackson has no streaming access to a string value, so
+ * the parser still buffers the complete base64 text (as a <code>char[]</code>) while the value is
+ * read. The content is copied from that buffer to the file without creating a <code>String</code>,
+ * and the buffer is released (or re-used) once the value has been read - so spooling bounds the
+ * heap held while the document is built, not the peak while it is parsed.
+ */
+public class IncomingDocumentReader {
+	private static final TypeReference<Map<String, Object>> PROPERTIES_TYPE = new TypeReference<Map<String, Object>>() {
+		// Type token only
+	};
+
+	private final ObjectMapper objectMapper;
+	private long spoolThreshold = -1;
+	private File spoolFolder;
+
+	public IncomingDocumentReader(final ObjectMapper objectMapper) {
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+	}
+
+	/**
+	 * The number of characters of original document content above which the content is spooled
+	 * to a temporary file. A negative value (the default) disables spooling.
+	 */
+	public void setSpoolThreshold(final long spoolThreshold) {
+		this.spoolThreshold = spoolThreshold;
+	}
+
+	/**
+	 * The folder to spool content to (defaults to the system temporary folder)
+	 */
+	public void setSpoolFolder(final File spoolFolder) {
+		this.spoolFolder = spoolFolder;
+	}
+
+	/**
+	 * Reads the incoming document from the parser
+	 * <p>
+	 * The parser is left positioned at the end of the root object and is not closed.
+	 */
+	public IncomingDocument read(final JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == null) {
+			parser.nextToken();
+		}
+
+		if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			throw JsonMappingException.from(parser, "Expected the start of a JSON object - found: " + parser.getCurrentToken());
+		}
+
+		Map<String, Object> properties = null;
+		EncodedDocument originalDocument = null;
+		boolean completed = false;
+		try {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				parser.nextToken();
+	
+				// Property names are matched case-insensitively - consistent with the configured object mapper
+				if ("properties".equalsIgnoreCase(fieldName)) {
+					properties = objectMapper.readValue(parser, PROPERTIES_TYPE);
+				} else if ("originalDocument".equalsIgnoreCase(fieldName)) {
+					closeQuietly(originalDocument);
+					originalDocument = readOriginalDocument(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				closeQuietly(originalDocument);
+			}
+		}
+
+		return new IncomingDocument(properties, originalDocument);
+	}
+
+	private EncodedDocument readOriginalDocument(final JsonParser parser) throws IOException {
+		if (spoolThreshold < 0 || parser.getCurrentToken() != JsonToken.START_OBJECT) {
+			return objectMapper.readValue(parser, EncodedDocument.class);
+		}
+
+		String name = null;
+		String mediaType = null;
+		String base64Content = null;
+		SpooledContent spooledContent = null;
+		boolean completed = false;
+		try {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				final JsonToken token = parser.nextToken();
+	
+				if ("name".equalsIgnoreCase(fieldName)) {
+					name = parser.getValueAsString();
+				} else if ("mediaType".equalsIgnoreCase(fieldName)) {
+					mediaType = parser.getValueAsString();
+				} else if ("content".equalsIgnoreCase(fieldName) && token == JsonToken.VALUE_STRING) {
+					if (spooledContent != null) {
+						spooledContent.close();
+						spooledContent = null;
+					}
+	
+					if (parser.getTextLength() > spoolThreshold) {
+						// Copy straight from the parser buffer - the content is never materialised as a String
+						spooledContent = SpooledContent.spool(parser.getTextCharacters(), parser.getTextOffset(),
+								parser.getTextLength(), spoolFolder);
+						base64Content = null;
+					} else {
+						base64Content = parser.getText();
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			completed = true;
+		} finally {
+			// The spool file is deleted on any failure - including runtime exceptions
+			if (!completed && spooledContent != null) {
+				spooledContent.close();
+			}
+		}
+
+		return spooledContent == null ? new EncodedDocument(name, base64Content, mediaType)
+				: new EncodedDocument(name, spooledContent, mediaType);
+	}
+
+	private void closeQuietly(final EncodedDocument document) {
+		if (document != null && document.isSpooled()) {
+			document.getSpooledContent().close();
+		}
+	}
+}
@@ -1,15 +1,30 @@
 package uk.nhs.ciao.cda.builder.processor;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 
+import uk.nhs.ciao.cda.builder.json.EncodedDocument;
+import uk.nhs.ciao.cda.builder.json.SpooledContent;
+import uk.nhs.ciao.cda.builder.metrics.DocumentTimings;
+import uk.nhs.ciao.cda.builder.metrics.Stage;
 import uk.nhs.ciao.docs.parser.Document;
 import uk.nhs.ciao.docs.parser.ParsedDocument;
 import uk.nhs.interoperability.payloads.Payload;
@@ -21,14 +36,57 @@ import uk.nhs.interoperability.payloads.exceptions.MissingMandatoryFieldExceptio
  * To register additional interaction->payload conversions use: {@link #setPayloadHandlers(Collection)}.
  * <p>
  * A default/fall-back payload handler can be registered via {@link #setDefaultPayloadHandler(PayloadHandler)}
+ * <p>
+ * By default the incoming JSON is read in a single streaming pass (see {@link IncomingDocumentReader}) and
+ * handed to handlers extending {@link AbstractPayloadHandler} without being replayed. The
+ * original tree-based behaviour (<code>readTree</code> followed by two traversals of the tree) can be
+ * restored via {@link #setStreaming(boolean)}.
+ * <p>
+ * When streaming, large original documents can be spooled out of the heap while the CDA document
+ * is built - see {@link #setOriginalDocumentSpoolThreshold(long)}.
+ * <p>
+ * When streaming, handlers implementing {@link StreamingPayloadHandler} are given the chance to write
+ * the encoded document directly before falling back to the payload object.
+ * <p>
+ * The CDA document can also be written to an output stream (see {@link #transformTo(byte[], OutputStream)}).
+ * Only documents written by a {@link StreamingPayloadHandler} (e.g. the {@link SerialisationEngine#TEMPLATE}
+ * engine) are streamed - other documents are still serialised to a single XML string by itk-payloads,
+ * and only the UTF-8 encoded copy of that string is avoided.
+ * <p>
+ * Results can optionally be cached by a hash of the incoming JSON - see {@link #setResultCache(TransformResultCache)}.
+ * <p>
+ * The parse, build and serialise stages are timed against any {@link DocumentTimings} bound to the
+ * transforming thread.
  */
 public class JsonToCDADocumentTransformer {
+	private static final int OUTPUT_BUFFER_INITIAL_CAPACITY = 64 * 1024;
+	private static final int OUTPUT_BUFFER_MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+	
 	private final ObjectMapper objectMapper;
+	private final IncomingDocumentReader documentReader;
+	private final ObjectReader parsedDocumentReader;
 	private final Map<String, PayloadHandler> payloadHandlersByInteration = Maps.newHashMap();
+	private final ThreadLocal<DocumentOutputBuffer> outputBuffers = new ThreadLocal<DocumentOutputBuffer>() {
+		@Override
+		protected DocumentOutputBuffer initialValue() {
+			return new DocumentOutputBuffer(OUTPUT_BUFFER_INITIAL_CAPACITY, OUTPUT_BUFFER_MAX_RETAINED_CAPACITY);
+		}
+	};
 	private PayloadHandler defaultPayloadHandler;
+	private TransformResultCache resultCache;
+	private boolean streaming = true;
 	
 	public JsonToCDADocumentTransformer(final ObjectMapper objectMapper) {
 		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		this.documentReader = new IncomingDocumentReader(objectMapper);
+		this.parsedDocumentReader = objectMapper.reader(ParsedDocument.class);
+	}
+	
+	/**
+	 * The object mapper used to read incoming documents
+	 */
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
 	}
 	
 	public void setPayloadHandlers(final Collection<? extends PayloadHandler> payloadHandlers) {
@@ -43,37 +101,324 @@ public class JsonToCDADocumentTransformer {
 		this.defaultPayloadHandler = defaultPayloadHandler;
 	}
 	
+	/**
+	 * Enables / disables single-pass streaming of the incoming JSON (enabled by default)
+	 */
+	public void setStreaming(final boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * The size (in base64 characters) above which the content of an incoming original document is
+	 * spooled to a memory-mapped temporary file. A negative value disables spooling.
+	 * <p>
+	 * Spooling only applies when streaming is enabled.
+	 */
+	public void setOriginalDocumentSpoolThreshold(final long originalDocumentSpoolThreshold) {
+		documentReader.setSpoolThreshold(originalDocumentSpoolThreshold);
+	}
+	
+	/**
+	 * The folder used to spool large original documents (defaults to the system temporary folder)
+	 */
+	public void setSpoolFolder(final File spoolFolder) {
+		documentReader.setSpoolFolder(spoolFolder);
+	}
+	
+	/**
+	 * Caches transformed documents by a hash of the incoming JSON - so re-sent documents are not
+	 * rebuilt. Applies to documents transformed from a String or byte array.
+	 */
+	public void setResultCache(final TransformResultCache resultCache) {
+		this.resultCache = resultCache == null || !resultCache.isEnabled() ? null : resultCache;
+	}
+	
+	/**
+	 * The result cache (or <code>null</code> if results are not cached)
+	 */
+	public TransformResultCache getResultCache() {
+		return resultCache;
+	}
+	
 	public final void registerPayloadHandler(final PayloadHandler payloadHandler) {
 		if (payloadHandler != null) {
 			payloadHandlersByInteration.put(payloadHandler.getInteraction(), payloadHandler);
 		}
 	}
 	
+	/**
+	 * All registered payload handlers - including the default handler (if specified)
+	 */
+	public Set<PayloadHandler> getPayloadHandlers() {
+		final Set<PayloadHandler> payloadHandlers = Sets.newLinkedHashSet(payloadHandlersByInteration.values());
+		if (defaultPayloadHandler != null) {
+			payloadHandlers.add(defaultPayloadHandler);
+		}
+		return payloadHandlers;
+	}
+	
 	/**
 	 * Transforms the incoming JSON document into a CDA encoded parsed document
 	 */
 	public ParsedDocument transform(final String json) throws IOException, MissingMandatoryFieldException {
-		// Only parse the JSON once - then traverse the parsed nodes on each pass
-		final JsonNode rootNode = objectMapper.readTree(json);
-
-		final String interaction = getInteration(rootNode);
-		final PayloadHandler payloadHandler = getPayloadHandler(interaction);
-		if (payloadHandler == null) {
-			throw new IOException("Cannot create CDA document - no handler is available to create the payload");
+		if (resultCache == null) {
+			return transform(objectMapper.getFactory().createParser(json));
 		}
 		
-		final Payload payload = payloadHandler.transformPayload(objectMapper, rootNode.traverse());
-		if (payload == null) {
-			throw new IOException("Cannot create CDA document - no payload is available");
+		final HashCode key = resultCache.hash(json);
+		final ParsedDocument cached = resultCache.get(key);
+		return cached != null ? cached : transformAndCache(key, objectMapper.getFactory().createParser(json));
+	}
+	
+	/**
+	 * Transforms the incoming JSON document into a CDA encoded parsed document.
+	 * <p>
+	 * The bytes are read directly by the JSON parser (UTF-8, or as detected from the JSON content)
+	 * avoiding a copy into an intermediate string.
+	 */
+	public ParsedDocument transform(final byte[] json) throws IOException, MissingMandatoryFieldException {
+		if (resultCache == null) {
+			return transform(objectMapper.getFactory().createParser(json));
 		}
 		
-		final ParsedDocument parsedDocument = objectMapper.readValue(rootNode.traverse(), ParsedDocument.class);
+		final HashCode key = resultCache.hash(json);
+		final ParsedDocument cached = resultCache.get(key);
+		return cached != null ? cached : transformAndCache(key, objectMapper.getFactory().createParser(json));
+	}
+	
+	/**
+	 * Transforms the incoming JSON document into a CDA encoded parsed document.
+	 * <p>
+	 * The stream is read directly by the JSON parser (UTF-8, or as detected from the JSON content)
+	 * and is closed once the document has been read.
+	 */
+	public ParsedDocument transform(final InputStream json) throws IOException, MissingMandatoryFieldException {
+		return transform(objectMapper.getFactory().createParser(json));
+	}
+	
+	/**
+	 * Transforms the incoming JSON document, writing the UTF-8 encoded CDA document to the specified stream.
+	 * <p>
+	 * When streaming, a {@link StreamingPayloadHandler} (e.g. using the {@link SerialisationEngine#TEMPLATE}
+	 * engine) writes the document directly to the stream. Otherwise the payload is serialised to a complete
+	 * XML string by itk-payloads (as for {@link #transform(byte[])}) which is then encoded and written in small
+	 * chunks - so only the encoded byte array copy of the document is avoided. Results are not cached.
+	 * <p>
+	 * The methods writing to a stream are deliberately not named <code>transform</code> - so binding the
+	 * <code>transform</code> method by name (e.g. from a Camel route) is never ambiguous.
+	 * 
+	 * @return The pass-through name and properties of the document
+	 */
+	public OutgoingDocument transformTo(final byte[] json, final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		return transformTo(objectMapper.getFactory().createParser(json), out);
+	}
+	
+	/**
+	 * Transforms the incoming JSON document, writing the UTF-8 encoded CDA document to the specified stream.
+	 * 
+	 * @return The pass-through name and properties of the document
+	 * @see #transformTo(byte[], OutputStream)
+	 */
+	public OutgoingDocument transformTo(final String json, final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		return transformTo(objectMapper.getFactory().createParser(json), out);
+	}
+	
+	/**
+	 * Transforms the incoming JSON document, writing the UTF-8 encoded CDA document to the specified stream.
+	 * <p>
+	 * The input stream is closed once the document has been read.
+	 * 
+	 * @return The pass-through name and properties of the document
+	 * @see #transformTo(byte[], OutputStream)
+	 */
+	public OutgoingDocument transformTo(final InputStream json, final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		return transformTo(objectMapper.getFactory().createParser(json), out);
+	}
+	
+	/**
+	 * Transforms the document via the configured (streaming or tree) path of both the parsed document and
+	 * the stream transforms - using the transformer's own readers and handlers, without using (or populating)
+	 * the result cache.
+	 * 
+	 * @see TransformerWarmUp
+	 */
+	ParsedDocument warmUp(final byte[] json) throws IOException, MissingMandatoryFieldException {
+		transformTo(objectMapper.getFactory().createParser(json), ByteStreams.nullOutputStream());
+		return transform(objectMapper.getFactory().createParser(json));
+	}
+	
+	private ParsedDocument transform(final JsonParser parser) throws IOException, MissingMandatoryFieldException {
+		DocumentTimings.mark();
+		try {
+			if (streaming) {
+				return transformStream(parser);
+			}
+			
+			// Only parse the JSON once - then traverse the parsed nodes on each pass
+			final JsonNode rootNode = objectMapper.readTree(parser);
+			DocumentTimings.lap(Stage.PARSE);
+			return transformTree(rootNode);
+		} finally {
+			parser.close();
+		}
+	}
+	
+	private ParsedDocument transformAndCache(final HashCode key, final JsonParser parser) throws IOException, MissingMandatoryFieldException {
+		final ParsedDocument document = transform(parser);
+		resultCache.put(key, document);
+		return document;
+	}
+	
+	private OutgoingDocument transformTo(final JsonParser parser, final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		DocumentTimings.mark();
+		try {
+			if (streaming) {
+				return transformStream(parser, out);
+			}
+			
+			final JsonNode rootNode = objectMapper.readTree(parser);
+			DocumentTimings.lap(Stage.PARSE);
+			return transformTree(rootNode, out);
+		} finally {
+			parser.close();
+		}
+	}
+	
+	/**
+	 * Transforms the incoming JSON document into a CDA encoded parsed document, reading the
+	 * JSON in a single pass.
+	 * <p>
+	 * The interaction, payload model and pass-through name / properties are all taken from the
+	 * same {@link IncomingDocument} - the original document content is only held in memory once.
+	 */
+	private ParsedDocument transformStream(final JsonParser parser) throws IOException, MissingMandatoryFieldException {
+		final IncomingDocument document = readDocument(parser);
+		try {
+			final PayloadHandler payloadHandler = getRequiredPayloadHandler(document.getInteraction());
+			
+			if (payloadHandler instanceof StreamingPayloadHandler) {
+				// The thread's buffer is re-used - only the exactly sized result is allocated per document
+				final DocumentOutputBuffer buffer = outputBuffers.get();
+				try {
+					if (((StreamingPayloadHandler)payloadHandler).writePayload(objectMapper, document, buffer)) {
+						DocumentTimings.bytesOut(buffer.size());
+						DocumentTimings.lap(Stage.SERIALISE);
+						return asParsedDocument(document.getName(), buffer.toByteArray(), document.getProperties());
+					}
+				} finally {
+					buffer.reset();
+				}
+			}
+			
+			final Payload payload = createPayload(payloadHandler, document);
+			
+			// The original properties and filename from the incoming JSON are maintained in the outgoing document
+			final byte[] bytes = encode(payload.serialise(), document.getOriginalDocument());
+			DocumentTimings.bytesOut(bytes.length);
+			DocumentTimings.lap(Stage.SERIALISE);
+			return asParsedDocument(document.getName(), bytes, document.getProperties());
+		} finally {
+			document.close();
+		}
+	}
+	
+	/**
+	 * Transforms the incoming JSON document in a single pass, writing the encoded CDA document to the stream.
+	 * <p>
+	 * Only a {@link StreamingPayloadHandler} writes directly to the stream - the fall-back serialises the
+	 * whole document to a string first.
+	 */
+	private OutgoingDocument transformStream(final JsonParser parser, final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		final IncomingDocument document = readDocument(parser);
+		try {
+			final PayloadHandler payloadHandler = getRequiredPayloadHandler(document.getInteraction());
+			final CountingOutputStream counter = new CountingOutputStream(out);
+			
+			if (!(payloadHandler instanceof StreamingPayloadHandler) ||
+					!((StreamingPayloadHandler)payloadHandler).writePayload(objectMapper, document, counter)) {
+				final Payload payload = createPayload(payloadHandler, document);
+				write(payload.serialise(), document.getOriginalDocument(), counter);
+			}
+			DocumentTimings.bytesOut(counter.getCount());
+			DocumentTimings.lap(Stage.SERIALISE);
+			
+			return new OutgoingDocument(document.getName(), document.getProperties(), counter.getCount());
+		} finally {
+			document.close();
+		}
+	}
+	
+	/**
+	 * Transforms the incoming JSON document into a CDA encoded parsed document, traversing
+	 * the parsed JSON tree once for the payload and once for the pass-through properties
+	 */
+	private ParsedDocument transformTree(final JsonNode rootNode) throws IOException, MissingMandatoryFieldException {
+		final Payload payload = createPayload(rootNode);
+		final ParsedDocument parsedDocument = parsedDocumentReader.readValue(rootNode.traverse());
+		DocumentTimings.lap(Stage.PARSE);
 
 		// The original properties and filename from the incoming JSON are maintained in the outgoing document
 		final String name = parsedDocument.getOriginalDocument().getName();
 		final Map<String, Object> properties = parsedDocument.getProperties();
 		
-		return asParsedDocument(name, payload, properties);
+		final ParsedDocument result = asParsedDocument(name, payload, properties);
+		DocumentTimings.lap(Stage.SERIALISE);
+		return result;
+	}
+	
+	/**
+	 * Transforms the parsed JSON tree, writing the encoded CDA document to the stream.
+	 * <p>
+	 * The document is always serialised to a complete string first - {@link StreamingPayloadHandler}s
+	 * are only used when streaming.
+	 */
+	private OutgoingDocument transformTree(final JsonNode rootNode, final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		final Payload payload = createPayload(rootNode);
+		final ParsedDocument parsedDocument = parsedDocumentReader.readValue(rootNode.traverse());
+		DocumentTimings.lap(Stage.PARSE);
+		
+		final CountingOutputStream counter = new CountingOutputStream(out);
+		Utf8Bytes.write(payload.serialise(), counter);
+		DocumentTimings.bytesOut(counter.getCount());
+		DocumentTimings.lap(Stage.SERIALISE);
+		
+		return new OutgoingDocument(parsedDocument.getOriginalDocument().getName(),
+				parsedDocument.getProperties(), counter.getCount());
+	}
+	
+	/**
+	 * Reads the incoming document in a single pass - timed as the parse stage
+	 */
+	private IncomingDocument readDocument(final JsonParser parser) throws IOException {
+		final IncomingDocument document = documentReader.read(parser);
+		DocumentTimings.lap(Stage.PARSE);
+		return document;
+	}
+	
+	private Payload createPayload(final JsonNode rootNode) throws IOException, MissingMandatoryFieldException {
+		final PayloadHandler payloadHandler = getRequiredPayloadHandler(getInteration(rootNode));
+		
+		final Payload payload = payloadHandler.transformPayload(objectMapper, rootNode.traverse());
+		if (payload == null) {
+			throw new IOException("Cannot create CDA document - no payload is available");
+		}
+		
+		DocumentTimings.lap(Stage.BUILD);
+		return payload;
+	}
+	
+	private Payload createPayload(final PayloadHandler payloadHandler, final IncomingDocument document)
+			throws IOException, MissingMandatoryFieldException {
+		// Handlers which cannot bind the incoming document directly are given the document replayed as JSON
+		final Payload payload = payloadHandler instanceof AbstractPayloadHandler
+				? ((AbstractPayloadHandler)payloadHandler).transformPayload(objectMapper, document)
+				: AbstractPayloadHandler.transformPayload(payloadHandler, objectMapper, document);
+		if (payload == null) {
+			throw new IOException("Cannot create CDA document - no payload is available");
+		}
+		
+		DocumentTimings.lap(Stage.BUILD);
+		return payload;
 	}
 	
 	private String getInteration(final JsonNode rootNode) {
@@ -95,15 +440,71 @@ public class JsonToCDADocumentTransformer {
 		return payloadHandler == null ? defaultPayloadHandler : payloadHandler;
 	}
 	
+	/**
+	 * Resolves the payload handler of the interaction - the resolved interaction is recorded in the
+	 * document timings (the unvalidated interaction from the incoming document is never recorded)
+	 */
+	private PayloadHandler getRequiredPayloadHandler(final String interaction) throws IOException {
+		final PayloadHandler payloadHandler = getPayloadHandler(interaction);
+		DocumentTimings.interaction(payloadHandlersByInteration.containsKey(interaction) ?
+				interaction : DocumentTimings.UNKNOWN_INTERACTION);
+		if (payloadHandler == null) {
+			throw new IOException("Cannot create CDA document - no handler is available to create the payload");
+		}
+		
+		return payloadHandler;
+	}
+	
 	/**
 	 * Creates a new ParsedDocument using an encoded clinical document as the payload
 	 * and the specified properties
+	 * <p>
+	 * The document is always encoded as UTF-8 (independent of the platform default charset)
 	 */
 	private ParsedDocument asParsedDocument(final String name, final Payload payload,
 			final Map<String, Object> properties) {
-		final byte[] bytes = payload.serialise().getBytes();
+		return asParsedDocument(name, Utf8Bytes.encode(payload.serialise()), properties);
+	}
+	
+	private ParsedDocument asParsedDocument(final String name, final byte[] bytes,
+			final Map<String, Object> properties) {
 		final Document document = new Document(name, bytes, "text/xml");
 		
 		return new ParsedDocument(document, properties);
 	}
+	
+	/**
+	 * Encodes the serialised document as UTF-8 - replacing the placeholder of any spooled
+	 * original document content with the spooled bytes
+	 */
+	private byte[] encode(final String xml, final EncodedDocument originalDocument) {
+		if (originalDocument != null && originalDocument.isSpooled()) {
+			final SpooledContent content = originalDocument.getSpooledContent();
+			final int index = xml.indexOf(content.getPlaceholder());
+			if (index >= 0) {
+				return Utf8Bytes.encode(CharBuffer.wrap(xml, 0, index), content,
+						CharBuffer.wrap(xml, index + content.getPlaceholder().length(), xml.length()));
+			}
+		}
+		
+		return Utf8Bytes.encode(xml);
+	}
+	
+	/**
+	 * Writes the serialised document as UTF-8 - writing the spooled bytes in place of the placeholder
+	 * of any spooled original document content
+	 */
+	private void write(final String xml, final EncodedDocument originalDocument, final OutputStream out) throws IOException {
+		if (originalDocument != null && originalDocument.isSpooled()) {
+			final SpooledContent content = originalDocument.getSpooledContent();
+			final int index = xml.indexOf(content.getPlaceholder());
+			if (index >= 0) {
+				Utf8Bytes.write(CharBuffer.wrap(xml, 0, index), content,
+						CharBuffer.wrap(xml, index + content.getPlaceholder().length(), xml.length()), out);
+				return;
+			}
+		}
+		
+		Utf8Bytes.write(xml, out);
+	}
 }
@@ -0,0 +1,49 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.util.Map;
+
+/**
+ * Describes an outgoing CDA document which has been written directly to a stream - the
+ * pass-through name and properties, together with the number of bytes written
+ */
+public class OutgoingDocument {
+	/**
+	 * The media type of outgoing CDA documents
+	 */
+	public static final String MEDIA_TYPE = "text/xml";
+	
+	private final String name;
+	private final Map<String, Object> properties;
+	private final long length;
+	
+	public OutgoingDocument(final String name, final Map<String, Object> properties, final long length) {
+		this.name = name;
+		this.properties = properties;
+		this.length = length;
+	}
+	
+	/**
+	 * The name of the document - may be <code>null</code>
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	public String getMediaType() {
+		return MEDIA_TYPE;
+	}
+	
+	/**
+	 * The pass-through properties of the incoming document - may be <code>null</code>
+	 */
+	public Map<String, Object> getProperties() {
+		return properties;
+	}
+	
+	/**
+	 * The number of (UTF-8 encoded) bytes written
+	 */
+	public long getLength() {
+		return length;
+	}
+}
@@ -11,6 +11,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 /**
  * Handles the transformation of an incoming JSON document into a ITK payload
  * for a specific type of ITK interaction
+ * <p>
+ * Handlers extending {@link AbstractPayloadHandler} can also transform documents which have
+ * already been read by the transformer - without the JSON being replayed.
  */
 public interface PayloadHandler {
 	/**
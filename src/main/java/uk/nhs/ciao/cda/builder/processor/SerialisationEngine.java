@@ -0,0 +1,19 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+/**
+ * The engine used to serialise outgoing CDA documents
+ */
+public enum SerialisationEngine {
+	/**
+	 * The payload object is created and serialised by itk-payloads
+	 */
+	ITK_PAYLOADS,
+	
+	/**
+	 * The document is written from a pre-compiled template (falling back to itk-payloads
+	 * for documents which are not supported by the template)
+	 * 
+	 * @see uk.nhs.ciao.cda.builder.template.TemplateEngine
+	 */
+	TEMPLATE;
+}
@@ -0,0 +1,185 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.nhs.ciao.cda.builder.json.JsonTransferOfCareFields;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+/**
+ * A registry of static field overlays - the fields a sender includes unchanged on every message
+ * (custodian, author organisation, assigning authorities, etc.).
+ * <p>
+ * Each overlay is a JSON object of transfer of care fields (see <code>kings-static.json</code>) and
+ * is keyed by the value of its key property (by default <code>custodianODSCode</code>). Overlays are
+ * parsed and validated once when they are registered and held as pre-parsed tokens.
+ * <p>
+ * When the properties of an incoming document are bound, the fields of the overlay matching the
+ * document's key property are merged in first - fields in the incoming document take precedence.
+ * Upstream systems then only need to send the key property and the per-patient fields.
+ */
+public class StaticFieldOverlays {
+	/**
+	 * The default property used to select the overlay of an incoming document
+	 */
+	public static final String DEFAULT_KEY_PROPERTY = "custodianODSCode";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StaticFieldOverlays.class);
+
+	private final ObjectMapper objectMapper;
+	private final ObjectReader fieldsReader;
+	private final String keyProperty;
+	private final Map<String, TokenBuffer> overlaysByKey = Maps.newConcurrentMap();
+
+	public StaticFieldOverlays(final ObjectMapper objectMapper) {
+		this(objectMapper, DEFAULT_KEY_PROPERTY);
+	}
+
+	public StaticFieldOverlays(final ObjectMapper objectMapper, final String keyProperty) {
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		this.fieldsReader = objectMapper.reader(JsonTransferOfCareFields.class);
+		this.keyProperty = Strings.isNullOrEmpty(keyProperty) ? DEFAULT_KEY_PROPERTY : keyProperty;
+	}
+
+	/**
+	 * The property used to select the overlay of an incoming document
+	 */
+	public String getKeyProperty() {
+		return keyProperty;
+	}
+
+	/**
+	 * Registers all overlays (<code>*.json</code> files) in the specified folder.
+	 * <p>
+	 * An empty / <code>null</code> folder is ignored.
+	 */
+	public void setFolder(final String folder) throws IOException {
+		if (Strings.isNullOrEmpty(folder)) {
+			return;
+		}
+
+		final File[] files = new File(folder).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(".json");
+			}
+		});
+		if (files == null) {
+			throw new IOException("Static overlays folder does not exist: " + folder);
+		}
+
+		for (final File file: files) {
+			try {
+				addOverlay(objectMapper.readTree(file));
+			} catch (IOException e) {
+				throw new IOException("Invalid static overlay: " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Validates and registers the specified overlay (replacing any existing overlay with the same key)
+	 */
+	public void addOverlay(final JsonNode overlay) throws IOException {
+		if (overlay == null || !overlay.isObject()) {
+			throw new IOException("Static overlay must be a JSON object");
+		}
+
+		final JsonNode keyNode = overlay.get(keyProperty);
+		if (keyNode == null || !keyNode.isValueNode() || Strings.isNullOrEmpty(keyNode.asText())) {
+			throw new IOException("Static overlay does not specify the key property: " + keyProperty);
+		}
+
+		final TokenBuffer tokens = new TokenBuffer(objectMapper, false);
+		objectMapper.writeTree(tokens, overlay);
+
+		// Validate once - the overlay must bind as transfer of care fields
+		fieldsReader.readValue(tokens.asParser());
+
+		final String key = keyNode.asText();
+		if (overlaysByKey.put(key, tokens) != null) {
+			LOGGER.warn("Replaced static overlay: {}={}", keyProperty, key);
+		}
+	}
+
+	public boolean isEmpty() {
+		return overlaysByKey.isEmpty();
+	}
+
+	/**
+	 * The number of registered overlays
+	 */
+	public int size() {
+		return overlaysByKey.size();
+	}
+
+	/**
+	 * Writes the properties as a JSON object to the buffer - preceded by the fields of the matching
+	 * overlay (if any)
+	 */
+	public void writeMerged(final Map<String, Object> properties, final TokenBuffer buffer) throws IOException {
+		buffer.writeStartObject();
+		writeOverlayFields(getOverlay(properties.get(keyProperty)), buffer);
+		for (final Entry<String, Object> entry: properties.entrySet()) {
+			buffer.writeFieldName(entry.getKey());
+			buffer.writeObject(entry.getValue());
+		}
+		buffer.writeEndObject();
+	}
+
+	/**
+	 * Writes the properties node as a JSON object to the buffer - preceded by the fields of the matching
+	 * overlay (if any)
+	 */
+	public void writeMerged(final JsonNode properties, final TokenBuffer buffer) throws IOException {
+		final JsonNode keyNode = properties.get(keyProperty);
+
+		buffer.writeStartObject();
+		writeOverlayFields(getOverlay(keyNode == null ? null : keyNode.asText()), buffer);
+		for (final Iterator<Entry<String, JsonNode>> iterator = properties.fields(); iterator.hasNext();) {
+			final Entry<String, JsonNode> entry = iterator.next();
+			buffer.writeFieldName(entry.getKey());
+			buffer.writeTree(entry.getValue());
+		}
+		buffer.writeEndObject();
+	}
+
+	private TokenBuffer getOverlay(final Object key) {
+		return key == null ? null : overlaysByKey.get(key.toString());
+	}
+
+	/**
+	 * Copies the fields of the overlay (without the enclosing object)
+	 */
+	private void writeOverlayFields(final TokenBuffer overlay, final TokenBuffer buffer) throws IOException {
+		if (overlay == null) {
+			return;
+		}
+
+		final JsonParser parser = overlay.asParser();
+		try {
+			parser.nextToken(); // START_OBJECT
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				buffer.copyCurrentStructure(parser);
+			}
+		} finally {
+			parser.close();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import uk.nhs.interoperability.payloads.exceptions.MissingMandatoryFieldException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A payload handler which can write the serialised payload directly to a stream - without
+ * creating (and serialising) the intermediate payload object
+ */
+public interface StreamingPayloadHandler extends PayloadHandler {
+	/**
+	 * Writes the incoming document as a UTF-8 encoded XML payload
+	 * 
+	 * @param objectMapper The JSON object mapper to use when handling type conversions
+	 * @param document The incoming document to transform
+	 * @param out The stream to write the payload to
+	 * @return true if the payload was written, or false if the caller should fall back to
+	 * 		creating the payload object (nothing is written to the stream)
+	 */
+	boolean writePayload(final ObjectMapper objectMapper, final IncomingDocument document,
+			final OutputStream out) throws IOException, MissingMandatoryFieldException;
+}
@@ -1,24 +1,72 @@
 package uk.nhs.ciao.cda.builder.processor;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
+import uk.nhs.ciao.cda.builder.json.EncodedDocument;
+import uk.nhs.ciao.cda.builder.json.JsonTransferOfCareFields;
 import uk.nhs.ciao.cda.builder.json.TransferOfCareDocument;
+import uk.nhs.ciao.cda.builder.template.TemplateEngine;
 import uk.nhs.interoperability.payloads.exceptions.MissingMandatoryFieldException;
 import uk.nhs.interoperability.payloads.toc_edischarge_draftB.ClinicalDocument;
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 /**
  * Handles the transformation of an incoming JSON document into a Transfer Of Care clinical document
  * payload.
+ * <p>
+ * The base64 content of the original document is attached without being decoded. By default the
+ * content is checked to be valid base64 (in a single pass, without decoding) - this can be disabled
+ * via {@link #setValidateOriginalDocument(boolean)}.
+ * <p>
+ * The object readers for the incoming types are resolved once per object mapper and re-used.
+ * <p>
+ * By default documents are serialised by itk-payloads. The {@link SerialisationEngine#TEMPLATE} engine
+ * writes documents directly from pre-compiled templates (see {@link TemplateEngine}) - see
+ * {@link #setSerialisationEngine(SerialisationEngine)}.
+ * <p>
+ * Per-sender static fields can be merged into each document - see {@link #setStaticFieldOverlays(StaticFieldOverlays)}.
  */
-public class TransferOfCarePayloadHandler implements PayloadHandler {
+public class TransferOfCarePayloadHandler extends AbstractPayloadHandler implements StreamingPayloadHandler {
 	/**
 	 * The ITK interaction associated with the transfer of care documents
 	 */
 	public static final String INTERACTION = "urn:nhs-itk:interaction:primaryRecipienteDischargeInpatientDischargeSummaryDocument-v1-0";
 	
+	private boolean validateOriginalDocument = true;
+	private SerialisationEngine serialisationEngine = SerialisationEngine.ITK_PAYLOADS;
+	private StaticFieldOverlays staticFieldOverlays;
+	private final TemplateEngine templateEngine = new TemplateEngine();
+	private volatile Readers readers;
+	
+	/**
+	 * Enables / disables validation of the base64 content of an attached original document
+	 * (enabled by default)
+	 */
+	public void setValidateOriginalDocument(final boolean validateOriginalDocument) {
+		this.validateOriginalDocument = validateOriginalDocument;
+	}
+	
+	/**
+	 * The engine used to serialise outgoing documents (defaults to {@link SerialisationEngine#ITK_PAYLOADS})
+	 */
+	public void setSerialisationEngine(final SerialisationEngine serialisationEngine) {
+		this.serialisationEngine = serialisationEngine == null ? SerialisationEngine.ITK_PAYLOADS : serialisationEngine;
+	}
+	
+	/**
+	 * Static fields merged into the properties of each incoming document before they are bound
+	 * (fields in the incoming document take precedence)
+	 */
+	public void setStaticFieldOverlays(final StaticFieldOverlays staticFieldOverlays) {
+		this.staticFieldOverlays = staticFieldOverlays == null || staticFieldOverlays.isEmpty() ? null : staticFieldOverlays;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -33,7 +81,111 @@ public class TransferOfCarePayloadHandler implements PayloadHandler {
 	@Override
 	public ClinicalDocument transformPayload(final ObjectMapper objectMapper,
 			final JsonParser parser) throws IOException, MissingMandatoryFieldException {
-		final TransferOfCareDocument transferOfCareDocument = objectMapper.readValue(parser, TransferOfCareDocument.class);
+		final TransferOfCareDocument transferOfCareDocument;
+		if (staticFieldOverlays == null) {
+			transferOfCareDocument = getReaders(objectMapper).documentReader.readValue(parser);
+		} else {
+			final JsonNode rootNode = objectMapper.readTree(parser);
+			final JsonNode propertiesNode = rootNode.get("properties");
+			final JsonNode originalDocumentNode = rootNode.get("originalDocument");
+			
+			JsonTransferOfCareFields properties = null;
+			if (propertiesNode != null && propertiesNode.isObject()) {
+				final TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+				staticFieldOverlays.writeMerged(propertiesNode, buffer);
+				properties = getReaders(objectMapper).fieldsReader.readValue(buffer.asParser());
+			}
+			
+			final EncodedDocument originalDocument = originalDocumentNode == null ? null
+					: objectMapper.treeToValue(originalDocumentNode, EncodedDocument.class);
+			transferOfCareDocument = new TransferOfCareDocument(properties, originalDocument);
+		}
+		return createClinicalDocument(transferOfCareDocument);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * This is not a single pass over the document: the reader has already bound the properties to an
+	 * untyped map, which is replayed through a <code>TokenBuffer</code> to bind the typed fields (a second
+	 * pass over the properties only). The original document - the bulk of the incoming JSON - is read once
+	 * and shared with the incoming document rather than copied.
+	 */
+	@Override
+	public ClinicalDocument transformPayload(final ObjectMapper objectMapper,
+			final IncomingDocument document) throws IOException, MissingMandatoryFieldException {
+		return createClinicalDocument(createTransferOfCareDocument(objectMapper, document));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The payload is only written if the template engine is enabled and supports the document.
+	 */
+	@Override
+	public boolean writePayload(final ObjectMapper objectMapper, final IncomingDocument document,
+			final OutputStream out) throws IOException, MissingMandatoryFieldException {
+		if (serialisationEngine != SerialisationEngine.TEMPLATE) {
+			return false;
+		}
+		
+		final TransferOfCareDocument transferOfCareDocument = createTransferOfCareDocument(objectMapper, document);
+		validateOriginalDocument(transferOfCareDocument);
+		return templateEngine.write(transferOfCareDocument, out);
+	}
+	
+	private TransferOfCareDocument createTransferOfCareDocument(final ObjectMapper objectMapper,
+			final IncomingDocument document) throws IOException {
+		JsonTransferOfCareFields properties = null;
+		if (document.getProperties() != null) {
+			final TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+			if (staticFieldOverlays == null) {
+				objectMapper.writeValue(buffer, document.getProperties());
+			} else {
+				staticFieldOverlays.writeMerged(document.getProperties(), buffer);
+			}
+			properties = getReaders(objectMapper).fieldsReader.readValue(buffer.asParser());
+		}
+		
+		return new TransferOfCareDocument(properties, document.getOriginalDocument());
+	}
+	
+	/**
+	 * Returns the readers for the specified object mapper - creating them if the mapper has changed
+	 */
+	private Readers getReaders(final ObjectMapper objectMapper) {
+		Readers result = readers;
+		if (result == null || result.objectMapper != objectMapper) {
+			result = new Readers(objectMapper);
+			readers = result;
+		}
+		return result;
+	}
+	
+	private ClinicalDocument createClinicalDocument(final TransferOfCareDocument transferOfCareDocument)
+			throws IOException, MissingMandatoryFieldException {
+		validateOriginalDocument(transferOfCareDocument);
 		return transferOfCareDocument.createClinicalDocument();
 	}
+	
+	private void validateOriginalDocument(final TransferOfCareDocument transferOfCareDocument) throws IOException {
+		if (validateOriginalDocument && transferOfCareDocument.isOriginalDocumentAttached()) {
+			transferOfCareDocument.getOriginalDocument().validateContent();
+		}
+	}
+	
+	/**
+	 * Pre-compiled object readers associated with a single object mapper
+	 */
+	private static class Readers {
+		private final ObjectMapper objectMapper;
+		private final ObjectReader documentReader;
+		private final ObjectReader fieldsReader;
+		
+		public Readers(final ObjectMapper objectMapper) {
+			this.objectMapper = objectMapper;
+			this.documentReader = objectMapper.reader(TransferOfCareDocument.class);
+			this.fieldsReader = objectMapper.reader(JsonTransferOfCareFields.class);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,288 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches transformed documents by a hash (SHA-256) of the incoming JSON bytes - so documents
+ * re-sent by upstream systems (e.g. after their own timeouts) are not rebuilt.
+ * <p>
+ * The in-memory tier is a size-bounded LRU cache with a time-to-live. An optional persistent
+ * tier stores each result as a file in a folder (read back via a memory-mapped buffer) so results
+ * survive a restart. Persisted results older than the time-to-live are ignored and deleted.
+ * <p>
+ * The persistent tier follows the in-memory tier: when a result is evicted from memory (by size or
+ * time-to-live) its file is deleted. Files left by a previous run are pruned to the maximum size when
+ * the folder is configured - so the folder never grows beyond twice the maximum size.
+ * <p>
+ * Only successful transforms are cached. A maximum size of zero disables the cache.
+ */
+public class TransformResultCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransformResultCache.class);
+	private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+	private static final String FILE_SUFFIX = ".json";
+
+	private final Cache<HashCode, ParsedDocument> cache;
+	private final long maximumSize;
+	private final long timeToLiveMillis;
+	private final AtomicLong persistentHits = new AtomicLong();
+	private final AtomicLong persistentMisses = new AtomicLong();
+	private final ObjectReader documentReader;
+	private final ObjectWriter documentWriter;
+	private volatile File persistentFolder;
+
+	/**
+	 * @param objectMapper The mapper used to read / write persisted results
+	 * @param maximumSize The maximum number of results held in memory (0 disables the cache)
+	 * @param timeToLiveSeconds The time (since the result was created) that a result remains valid
+	 */
+	public TransformResultCache(final ObjectMapper objectMapper, final long maximumSize, final long timeToLiveSeconds) {
+		Preconditions.checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+		Preconditions.checkArgument(timeToLiveSeconds > 0, "timeToLiveSeconds must be positive");
+
+		this.maximumSize = maximumSize;
+		this.timeToLiveMillis = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(timeToLiveSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.removalListener(new RemovalListener<HashCode, ParsedDocument>() {
+					@Override
+					public void onRemoval(final RemovalNotification<HashCode, ParsedDocument> notification) {
+						evicted(notification);
+					}
+				})
+				.build();
+		this.documentReader = objectMapper.reader(ParsedDocument.class);
+		this.documentWriter = objectMapper.writerWithType(ParsedDocument.class);
+	}
+
+	/**
+	 * Enables the persistent tier - results are stored as files in the specified folder.
+	 * <p>
+	 * An empty / <code>null</code> folder disables the persistent tier. Expired files are
+	 * removed from the folder when it is configured, and the folder is pruned to the
+	 * maximum size (oldest first).
+	 */
+	public void setPersistentFolder(final String persistentFolder) throws IOException {
+		if (Strings.isNullOrEmpty(persistentFolder) || !isEnabled()) {
+			this.persistentFolder = null;
+			return;
+		}
+
+		final File folder = new File(persistentFolder);
+		if (!folder.isDirectory() && !folder.mkdirs()) {
+			throw new IOException("Unable to create result cache folder: " + folder);
+		}
+
+		this.persistentFolder = folder;
+		prune();
+	}
+
+	public boolean isEnabled() {
+		return maximumSize > 0;
+	}
+
+	/**
+	 * The hash key of the specified incoming JSON
+	 */
+	public HashCode hash(final byte[] json) {
+		return HASH_FUNCTION.hashBytes(json);
+	}
+
+	/**
+	 * The hash key of the specified incoming JSON - equal to the key of the UTF-8 encoded bytes
+	 */
+	public HashCode hash(final String json) {
+		return HASH_FUNCTION.hashString(json, Charsets.UTF_8);
+	}
+
+	/**
+	 * Returns the cached result for the key, or <code>null</code> if no valid result is cached
+	 */
+	public ParsedDocument get(final HashCode key) {
+		ParsedDocument document = cache.getIfPresent(key);
+		if (document == null && persistentFolder != null) {
+			document = load(key);
+			if (document != null) {
+				cache.put(key, document);
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * Caches a successfully transformed result
+	 */
+	public void put(final HashCode key, final ParsedDocument document) {
+		cache.put(key, document);
+		if (persistentFolder != null) {
+			store(key, document);
+		}
+	}
+
+	/**
+	 * Hit / miss statistics of the in-memory tier
+	 */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/**
+	 * The number of in-memory misses which were found in the persistent tier
+	 */
+	public long getPersistentHitCount() {
+		return persistentHits.get();
+	}
+
+	/**
+	 * The number of in-memory misses which were not found in the persistent tier
+	 */
+	public long getPersistentMissCount() {
+		return persistentMisses.get();
+	}
+
+	/**
+	 * The number of results currently held in memory
+	 */
+	public long size() {
+		return cache.size();
+	}
+
+	/**
+	 * Deletes the persisted copy of a result evicted from memory (replaced results are kept)
+	 */
+	private void evicted(final RemovalNotification<HashCode, ParsedDocument> notification) {
+		if (notification.wasEvicted() && notification.getKey() != null && persistentFolder != null) {
+			delete(getFile(notification.getKey()));
+		}
+	}
+
+	private ParsedDocument load(final HashCode key) {
+		final File file = getFile(key);
+		if (!file.isFile()) {
+			persistentMisses.incrementAndGet();
+			return null;
+		} else if (isExpired(file)) {
+			delete(file);
+			persistentMisses.incrementAndGet();
+			return null;
+		}
+
+		try {
+			final ParsedDocument document = read(file);
+			persistentHits.incrementAndGet();
+			return document;
+		} catch (IOException e) {
+			LOGGER.warn("Unable to read cached result: {} - the document will be rebuilt", file, e);
+			delete(file);
+			persistentMisses.incrementAndGet();
+			return null;
+		}
+	}
+
+	private ParsedDocument read(final File file) throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			final MappedByteBuffer buffer = in.getChannel().map(MapMode.READ_ONLY, 0, in.length());
+			return documentReader.readValue(new ByteBufferBackedInputStream(buffer));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void store(final HashCode key, final ParsedDocument document) {
+		final File file = getFile(key);
+		File tempFile = null;
+		try {
+			// Unique per write - concurrent writers of the same result never share a temporary file
+			tempFile = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+			documentWriter.writeValue(tempFile, document);
+
+			// Replace atomically - concurrent readers never see a partially written file
+			if (!tempFile.renameTo(file)) {
+				delete(file);
+				if (!tempFile.renameTo(file)) {
+					throw new IOException("Unable to rename " + tempFile + " to " + file);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Unable to persist cached result: {}", file, e);
+			if (tempFile != null) {
+				delete(tempFile);
+			}
+		}
+	}
+
+	/**
+	 * Removes expired results from the persistent folder, and trims it to the maximum size (oldest first)
+	 */
+	private void prune() {
+		final File[] files = persistentFolder.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File file1, final File file2) {
+				return Long.compare(file2.lastModified(), file1.lastModified());
+			}
+		});
+
+		long retained = 0;
+		for (final File file: files) {
+			if (!file.getName().endsWith(FILE_SUFFIX)) {
+				if (file.getName().endsWith(".tmp")) {
+					delete(file);
+				}
+			} else if (retained >= maximumSize || isExpired(file)) {
+				delete(file);
+			} else {
+				retained++;
+			}
+		}
+	}
+
+	private boolean isExpired(final File file) {
+		return System.currentTimeMillis() - file.lastModified() > timeToLiveMillis;
+	}
+
+	private File getFile(final HashCode key) {
+		return new File(persistentFolder, key + FILE_SUFFIX);
+	}
+
+	private static void delete(final File file) {
+		if (file.exists() && !file.delete()) {
+			LOGGER.debug("Unable to delete cached result: {}", file);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.core.io.ClassPathResource;
+
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.Closeables;
+
+/**
+ * Warms up every {@link JsonToCDADocumentTransformer} in the application context at startup.
+ * <p>
+ * Jackson resolves the mixins, unwrapped property handlers and vocabulary deserializers lazily, and
+ * the itk-payloads classes are loaded on first use - so without a warm-up the first documents
+ * after a deploy are several times slower than the rest. For each transformer, a synthetic document
+ * (based on the bundled <code>example.json</code>) is pushed through every registered
+ * {@link PayloadHandler} and the result is written using the same object mapper.
+ * <p>
+ * The documents are transformed through the transformer's own readers and handlers, bypassing the
+ * result cache - so every iteration does the full work and no warm-up results are cached.
+ * <p>
+ * The warm-up runs when the bean is initialised - the camel context should depend on this bean so that
+ * the JMS consumers are only started once the warm-up has completed. Failures are logged and do
+ * not prevent startup.
+ */
+public class TransformerWarmUp implements ApplicationContextAware, InitializingBean {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransformerWarmUp.class);
+	private static final String WARM_UP_DOCUMENT = "/example.json";
+
+	private ApplicationContext applicationContext;
+	private int iterations = 20;
+
+	@Override
+	public void setApplicationContext(final ApplicationContext applicationContext) throws BeansException {
+		this.applicationContext = applicationContext;
+	}
+
+	/**
+	 * The number of documents to transform per payload handler (zero disables the warm-up)
+	 */
+	public void setIterations(final int iterations) {
+		this.iterations = iterations;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if (iterations <= 0 || applicationContext == null) {
+			return;
+		}
+
+		final long startTime = System.currentTimeMillis();
+		for (final JsonToCDADocumentTransformer transformer:
+				applicationContext.getBeansOfType(JsonToCDADocumentTransformer.class).values()) {
+			warmUp(transformer);
+		}
+		LOGGER.info("Warm-up completed in {} ms", System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Transforms the warm-up document via each of the payload handlers registered with the transformer
+	 */
+	public void warmUp(final JsonToCDADocumentTransformer transformer) throws IOException {
+		final ObjectMapper objectMapper = transformer.getObjectMapper();
+		
+		// The serializers resolved by the writer are cached by (and shared through) the object mapper
+		final ObjectWriter parsedDocumentWriter = objectMapper.writerWithType(ParsedDocument.class);
+		final ObjectNode document = loadWarmUpDocument(objectMapper);
+
+		for (final PayloadHandler payloadHandler: transformer.getPayloadHandlers()) {
+			document.with("properties").put("itkHandlingSpec", payloadHandler.getInteraction());
+			final byte[] json = objectMapper.writeValueAsBytes(document);
+
+			try {
+				for (int index = 0; index < iterations; index++) {
+					final ParsedDocument parsedDocument = transformer.warmUp(json);
+					parsedDocumentWriter.writeValueAsBytes(parsedDocument);
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Unable to warm up payload handler for interaction: {}", payloadHandler.getInteraction(), e);
+			}
+		}
+	}
+
+	private ObjectNode loadWarmUpDocument(final ObjectMapper objectMapper) throws IOException {
+		final InputStream in = new ClassPathResource(WARM_UP_DOCUMENT, TransformerWarmUp.class).getInputStream();
+		try {
+			return (ObjectNode)objectMapper.readTree(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+}
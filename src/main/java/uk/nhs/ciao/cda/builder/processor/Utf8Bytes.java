@@ -0,0 +1,143 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import uk.nhs.ciao.cda.builder.json.SpooledContent;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Utf8;
+
+/**
+ * Encodes character data as UTF-8 into an exactly sized byte array.
+ * <p>
+ * <code>String.getBytes()</code> uses the platform default charset and (for UTF-8) encodes into a
+ * worst-case sized buffer which is then trimmed by a second copy. Here the encoded length is
+ * calculated up-front so the characters are encoded once, directly into the result array.
+ * <p>
+ * Characters can also be written to a stream in small chunks - see {@link #write(CharSequence, OutputStream)}.
+ */
+public final class Utf8Bytes {
+	private static final int WRITE_CHUNK_SIZE = 8 * 1024;
+	
+	private Utf8Bytes() {
+		// Suppress default constructor
+	}
+
+	/**
+	 * Encodes the specified characters as UTF-8
+	 */
+	public static byte[] encode(final CharSequence chars) {
+		final byte[] bytes;
+		try {
+			bytes = new byte[Utf8.encodedLength(chars)];
+		} catch (IllegalArgumentException e) {
+			// Unpaired surrogates - fall back to the JDK encoder (which substitutes the malformed input)
+			return chars.toString().getBytes(Charsets.UTF_8);
+		}
+
+		encodeInto(chars, bytes, 0);
+		return bytes;
+	}
+
+	/**
+	 * Encodes the prefix, spooled (ASCII) content and suffix as a single UTF-8 byte array.
+	 * <p>
+	 * The spooled content is copied directly from the mapped file into the result.
+	 */
+	public static byte[] encode(final CharSequence prefix, final SpooledContent content, final CharSequence suffix) {
+		final byte[] prefixBytes;
+		final byte[] suffixBytes;
+		try {
+			final int prefixLength = Utf8.encodedLength(prefix);
+			final byte[] bytes = new byte[prefixLength + content.length() + Utf8.encodedLength(suffix)];
+
+			int offset = encodeInto(prefix, bytes, 0);
+			content.copyTo(bytes, offset);
+			offset += content.length();
+			encodeInto(suffix, bytes, offset);
+
+			return bytes;
+		} catch (IllegalArgumentException e) {
+			// Unpaired surrogates - fall back to the JDK encoder (which substitutes the malformed input)
+			prefixBytes = prefix.toString().getBytes(Charsets.UTF_8);
+			suffixBytes = suffix.toString().getBytes(Charsets.UTF_8);
+		}
+
+		final byte[] bytes = new byte[prefixBytes.length + content.length() + suffixBytes.length];
+		System.arraycopy(prefixBytes, 0, bytes, 0, prefixBytes.length);
+		content.copyTo(bytes, prefixBytes.length);
+		System.arraycopy(suffixBytes, 0, bytes, prefixBytes.length + content.length(), suffixBytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Writes the characters as UTF-8 to the stream - encoding through a small fixed-size chunk
+	 * rather than into an array the size of the whole document.
+	 * <p>
+	 * Unpaired surrogates are substituted (as by the JDK encoder).
+	 */
+	public static void write(final CharSequence chars, final OutputStream out) throws IOException {
+		write(chars, out, new byte[WRITE_CHUNK_SIZE]);
+	}
+	
+	/**
+	 * Writes the prefix, spooled (ASCII) content and suffix as UTF-8 to the stream.
+	 * <p>
+	 * The spooled content is copied directly from the mapped file to the stream.
+	 */
+	public static void write(final CharSequence prefix, final SpooledContent content, final CharSequence suffix,
+			final OutputStream out) throws IOException {
+		final byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+		write(prefix, out, chunk);
+		content.writeTo(out);
+		write(suffix, out, chunk);
+	}
+	
+	private static void write(final CharSequence chars, final OutputStream out, final byte[] chunk) throws IOException {
+		final CharsetEncoder encoder = Charsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		final CharBuffer in = CharBuffer.wrap(chars);
+		final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		
+		CoderResult result;
+		do {
+			result = encoder.encode(in, buffer, true);
+			out.write(chunk, 0, buffer.position());
+			buffer.clear();
+		} while (result.isOverflow());
+		
+		do {
+			result = encoder.flush(buffer);
+			out.write(chunk, 0, buffer.position());
+			buffer.clear();
+		} while (result.isOverflow());
+	}
+	
+	/**
+	 * Encodes the characters into the array (which must have enough space for the encoded form)
+	 *
+	 * @return The offset following the last encoded byte
+	 */
+	private static int encodeInto(final CharSequence chars, final byte[] bytes, final int offset) {
+		final CharsetEncoder encoder = Charsets.UTF_8.newEncoder();
+		final ByteBuffer out = ByteBuffer.wrap(bytes, offset, bytes.length - offset);
+		CoderResult result = encoder.encode(CharBuffer.wrap(chars), out, true);
+		if (!result.isError()) {
+			result = encoder.flush(out);
+		}
+
+		if (result.isError() || result.isOverflow()) {
+			// Should not happen - the length has already been validated by Utf8.encodedLength
+			throw new IllegalArgumentException("Unable to encode characters as UTF-8: " + result);
+		}
+
+		return out.position();
+	}
+}
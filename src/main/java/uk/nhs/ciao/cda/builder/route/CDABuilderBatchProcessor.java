@@ -0,0 +1,319 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.jms.JmsBinding;
+import org.apache.camel.component.jms.JmsEndpoint;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.support.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jms.support.JmsUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Consumes, transforms and publishes a batch of JMS messages within a single transaction.
+ * <p>
+ * Each processor is a single batch consumer - it is driven from one thread and holds a long-lived
+ * transacted session, consumer and producer (so prefetched messages are not handed back to the broker
+ * between batches). Concurrency is achieved by running one processor per consumer. Stopping the processor
+ * waits for any in-progress batch to complete before the session is closed, and no new session is opened
+ * once stopped.
+ * <p>
+ * Each time the processor is triggered:
+ * <ul>
+ * <li>Up to <code>batchSize</code> messages are received from the input queue - waiting at most
+ * <code>batchTimeout</code> milliseconds for the batch to fill</li>
+ * <li>Each message is transformed in parallel via the transform endpoint</li>
+ * <li>Successful documents are published to the output queue via the transacted session (preceded by their
+ * properties sidecar message - if a properties endpoint is configured)</li>
+ * <li>The session is committed once for the whole batch</li>
+ * <li>Only once committed: each published document is passed to the completed processor, and each failed
+ * document is sent (individually) to the failed endpoint</li>
+ * </ul>
+ * If publishing or committing fails, the session is rolled back and the whole batch will be redelivered - no
+ * metrics or in-progress events are recorded for the rolled back documents.
+ */
+public class CDABuilderBatchProcessor extends ServiceSupport implements Processor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CDABuilderBatchProcessor.class);
+
+	private final CamelContext context;
+	private final ConnectionFactory connectionFactory;
+	private final JmsBinding inputBinding;
+	private final JmsBinding outputBinding;
+	private final ProducerTemplate producerTemplate;
+	private final ExecutorService executorService;
+	private final String inputQueue;
+	private final String outputQueue;
+	private final String transformUri;
+	private final Processor completedProcessor;
+	private final String failedUri;
+	private final int batchSize;
+	private final long batchTimeout;
+	private JmsBinding propertiesBinding;
+	private String propertiesQueue;
+
+	// Guarded by sessionLock - used by the thread driving the processor, and closed by the thread stopping it
+	private final Object sessionLock = new Object();
+	private boolean stopped;
+	private Connection connection;
+	private Session session;
+	private MessageConsumer consumer;
+	private MessageProducer producer;
+	private MessageProducer propertiesProducer;
+
+	/**
+	 * Creates a new batch processor
+	 *
+	 * @param context The camel context used to create exchanges
+	 * @param connectionFactory The JMS connection factory
+	 * @param executorService The executor used to transform the documents in parallel
+	 * @param inputQueue The name of the queue to receive messages from
+	 * @param transformUri The endpoint to transform each message
+	 * @param outputEndpoint The endpoint to publish each successfully transformed document to
+	 * @param completedProcessor Invoked for each published document once the batch is committed
+	 * @param failedUri The endpoint to send each failed document to once the batch is committed
+	 * @param batchSize The maximum number of messages in a batch
+	 * @param batchTimeout The maximum time (in milliseconds) to wait for a batch to fill
+	 */
+	public CDABuilderBatchProcessor(final CamelContext context, final ConnectionFactory connectionFactory,
+			final ExecutorService executorService, final String inputQueue, final String transformUri,
+			final JmsEndpoint outputEndpoint, final Processor completedProcessor, final String failedUri,
+			final int batchSize, final long batchTimeout) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+
+		this.context = Preconditions.checkNotNull(context);
+		this.connectionFactory = Preconditions.checkNotNull(connectionFactory);
+		this.inputBinding = new JmsBinding();
+		this.outputBinding = new JmsBinding(outputEndpoint);
+		this.producerTemplate = context.createProducerTemplate();
+		this.executorService = Preconditions.checkNotNull(executorService);
+		this.inputQueue = Preconditions.checkNotNull(inputQueue);
+		this.outputQueue = outputEndpoint.getDestinationName();
+		this.transformUri = Preconditions.checkNotNull(transformUri);
+		this.completedProcessor = Preconditions.checkNotNull(completedProcessor);
+		this.failedUri = Preconditions.checkNotNull(failedUri);
+		this.batchSize = batchSize;
+		this.batchTimeout = batchTimeout;
+	}
+
+	/**
+	 * Sets the endpoint receiving the properties of raw documents (see {@link PropertiesSidecarProcessor}) - the
+	 * sidecar messages are published in the same transaction as the documents
+	 * 
+	 * @param propertiesEndpoint The sidecar endpoint, or <code>null</code> if no sidecar messages are published
+	 */
+	public void setPropertiesEndpoint(final JmsEndpoint propertiesEndpoint) {
+		this.propertiesBinding = propertiesEndpoint == null ? null : new JmsBinding(propertiesEndpoint);
+		this.propertiesQueue = propertiesEndpoint == null ? null : propertiesEndpoint.getDestinationName();
+	}
+
+	@Override
+	public void process(final Exchange trigger) throws Exception {
+		final List<Exchange> published = Lists.newArrayList();
+		final List<Exchange> failed = Lists.newArrayList();
+		boolean rolledBack = false;
+		synchronized (sessionLock) {
+			if (stopped) {
+				// A session is never (re-)opened once the processor has been stopped
+				return;
+			}
+			
+			try {
+				openSession();
+				processBatch(published, failed);
+				session.commit();
+			} catch (Exception e) {
+				LOGGER.warn("Unable to process batch from queue {} - the batch will be redelivered", inputQueue, e);
+				rollback();
+				closeSession();
+				rolledBack = true;
+			}
+		}
+		
+		if (rolledBack) {
+			// Back-off (e.g. while the broker is unavailable) - the trigger fires again immediately
+			Thread.sleep(batchTimeout);
+			return;
+		}
+
+		if (!published.isEmpty() || !failed.isEmpty()) {
+			LOGGER.debug("Committed batch of {} documents from queue {}", published.size() + failed.size(), inputQueue);
+		}
+		
+		// Committed - the outcome of each document can now be recorded
+		for (final Exchange exchange: published) {
+			completedProcessor.process(exchange);
+		}
+		for (final Exchange exchange: failed) {
+			producerTemplate.send(failedUri, exchange);
+			if (exchange.getException() != null) {
+				LOGGER.error("Unable to record failed document from batch", exchange.getException());
+			}
+		}
+	}
+
+	/**
+	 * Receives, transforms and publishes a single batch using the (transacted) session
+	 */
+	private void processBatch(final List<Exchange> published, final List<Exchange> failed) throws JMSException {
+		final List<Exchange> exchanges = receiveBatch();
+		if (exchanges.isEmpty()) {
+			return;
+		}
+
+		// Transform in parallel
+		final List<Future<Exchange>> futures = Lists.newArrayListWithCapacity(exchanges.size());
+		for (final Exchange exchange: exchanges) {
+			futures.add(executorService.submit(new Callable<Exchange>() {
+				@Override
+				public Exchange call() throws Exception {
+					return producerTemplate.send(transformUri, exchange);
+				}
+			}));
+		}
+
+		// Publish on this thread - the sends join the session transaction
+		for (int index = 0; index < exchanges.size(); index++) {
+			final Exchange exchange = exchanges.get(index);
+			final Exception exception = awaitTransform(futures.get(index), exchange);
+
+			if (exception == null) {
+				sendProperties(exchange);
+				producer.send(outputBinding.makeJmsMessage(exchange, session));
+				published.add(exchange);
+			} else {
+				// The failure is recorded against this document only - the rest of the batch continues
+				exchange.setException(null);
+				exchange.setProperty(Exchange.EXCEPTION_CAUGHT, exception);
+				failed.add(exchange);
+			}
+		}
+	}
+
+	private void sendProperties(final Exchange exchange) throws JMSException {
+		if (propertiesProducer == null) {
+			return;
+		}
+
+		final Exchange sidecar = PropertiesSidecarProcessor.createSidecarExchange(exchange);
+		if (sidecar != null) {
+			propertiesProducer.send(propertiesBinding.makeJmsMessage(sidecar, session));
+		}
+	}
+
+	private List<Exchange> receiveBatch() throws JMSException {
+		final List<Exchange> exchanges = Lists.newArrayListWithCapacity(batchSize);
+		final long deadline = System.currentTimeMillis() + batchTimeout;
+		while (exchanges.size() < batchSize) {
+			final long remaining = deadline - System.currentTimeMillis();
+			final Message message = remaining > 0 ? consumer.receive(remaining) : consumer.receiveNoWait();
+			if (message == null) {
+				break;
+			}
+
+			exchanges.add(createExchange(message));
+		}
+
+		return exchanges;
+	}
+
+	private Exchange createExchange(final Message message) {
+		final Exchange exchange = new DefaultExchange(context);
+		exchange.getIn().setHeaders(inputBinding.extractHeadersFromJms(message, exchange));
+		exchange.getIn().setBody(inputBinding.extractBodyFromJms(exchange, message));
+		return exchange;
+	}
+
+	private Exception awaitTransform(final Future<Exchange> future, final Exchange exchange) {
+		try {
+			future.get();
+			return exchange.getException();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the batch to be transformed", e);
+		} catch (Exception e) {
+			return e;
+		}
+	}
+
+	/**
+	 * Opens the long-lived session (if not already open)
+	 */
+	private void openSession() throws JMSException {
+		if (session != null) {
+			return;
+		}
+
+		try {
+			connection = connectionFactory.createConnection();
+			session = connection.createSession(true, Session.SESSION_TRANSACTED);
+			consumer = session.createConsumer(session.createQueue(inputQueue));
+			producer = session.createProducer(session.createQueue(outputQueue));
+			if (propertiesQueue != null) {
+				propertiesProducer = session.createProducer(session.createQueue(propertiesQueue));
+			}
+			connection.start();
+		} catch (JMSException e) {
+			closeSession();
+			throw e;
+		}
+	}
+
+	private void rollback() {
+		if (session != null) {
+			try {
+				session.rollback();
+			} catch (JMSException e) {
+				LOGGER.debug("Unable to rollback batch session", e);
+			}
+		}
+	}
+
+	private void closeSession() {
+		JmsUtils.closeMessageProducer(propertiesProducer);
+		JmsUtils.closeMessageProducer(producer);
+		JmsUtils.closeMessageConsumer(consumer);
+		JmsUtils.closeSession(session);
+		JmsUtils.closeConnection(connection, true);
+		propertiesProducer = null;
+		producer = null;
+		consumer = null;
+		session = null;
+		connection = null;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		// The session is opened by the driving thread
+		synchronized (sessionLock) {
+			stopped = false;
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		// Waits for any in-progress batch to be committed / rolled back before the session is closed
+		synchronized (sessionLock) {
+			stopped = true;
+			closeSession();
+		}
+	}
+}
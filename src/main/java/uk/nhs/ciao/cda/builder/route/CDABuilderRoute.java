@@ -2,17 +2,43 @@ package uk.nhs.ciao.cda.builder.route;
 
 import static uk.nhs.ciao.logging.CiaoCamelLogMessage.camelLogMsg;
 
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+import javax.xml.transform.TransformerConfigurationException;
+
 import org.apache.camel.Exchange;
+import org.apache.camel.component.jms.JmsComponent;
+import org.apache.camel.component.jms.JmsConfiguration;
+import org.apache.camel.component.jms.JmsEndpoint;
+import org.apache.camel.model.ProcessorDefinition;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.model.TryDefinition;
 import org.apache.camel.model.dataformat.JsonLibrary;
 import org.apache.camel.spring.spi.TransactionErrorHandlerBuilder;
+import org.apache.camel.support.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.xml.sax.SAXException;
 
 import uk.nhs.ciao.camel.BaseRouteBuilder;
+import uk.nhs.ciao.cda.builder.metrics.RouteMetrics;
+import uk.nhs.ciao.cda.builder.metrics.Stage;
+import uk.nhs.ciao.cda.builder.processor.JsonToCDADocumentTransformer;
 import uk.nhs.ciao.configuration.CIAOConfig;
 import uk.nhs.ciao.docs.parser.HeaderNames;
 import uk.nhs.ciao.docs.parser.route.InProgressFolderManagerRoute;
 import uk.nhs.ciao.exceptions.CIAOConfigurationException;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
 /**
  * Creates a Camel route for the specified name / property prefix.
  * <p>
@@ -21,19 +47,114 @@ import uk.nhs.ciao.logging.CiaoCamelLogger;
  * <li>Try the specific property: <code>${ROOT_PROPERTY}.${name}.${propertyName}</code></li>
  * <li>If missing fallback to: <code>${ROOT_PROPERTY}.${propertyName}</code></li>
  * </ul>
+ * <p>
+ * By default each incoming message is consumed and published in its own transaction. If
+ * <code>batchSize</code> is greater than one, the route instead consumes batches of messages
+ * which are transformed in parallel and committed in a single transaction (see {@link CDABuilderBatchProcessor}).
+ * <p>
+ * The number of JMS consumers can be raised via <code>concurrentConsumers</code> / <code>maxConcurrentConsumers</code>.
+ * If <code>transformThreads</code> is specified, documents are transformed on a dedicated (bounded) executor
+ * owned by the route - allowing the number of consumers and the number of CPU-bound transforms to be sized
+ * independently. Each consumer waits for its own transform, so when <code>batchSize</code> is one the number of
+ * consumers must be at least <code>transformThreads</code> for the extra threads to be used.
+ * <p>
+ * If <code>executionMode</code> is <code>virtual</code> (and the JVM supports virtual threads) the JMS consumers
+ * run on virtual threads, so documents waiting on broker I/O do not hold a platform thread. In this mode
+ * <code>maxConcurrentConsumers</code> can be raised to allow thousands of in-flight documents.
+ * <p>
+ * If <code>validationSchema</code> is specified, a sample (<code>validationSampleRate</code>) of the built
+ * documents are validated against the schema before they are published. Invalid documents are handled
+ * as build failures.
+ * <p>
+ * If <code>transformStylesheet</code> is specified, the built (and validated) documents are post-processed
+ * by the XSLT stylesheet before they are published.
+ * <p>
+ * By default the outgoing documents are published as marshalled {@link uk.nhs.ciao.docs.parser.ParsedDocument} JSON.
+ * If <code>outputFormat</code> is <code>bytes</code>, the CDA document is instead published as the body of a JMS
+ * <code>BytesMessage</code> - with the name, media type and routing properties (<code>outputHeaderProperties</code>)
+ * carried as headers (see {@link RawDocumentProcessor}). If <code>outputPropertiesQueue</code> is specified, the full
+ * properties of each raw document are also published to that queue as a separate JSON (sidecar) message.
+ * <p>
+ * Throughput counters and stage latencies of the route (and of each interaction) are exposed via JMX -
+ * see {@link RouteMetrics}. Each completed / failed document is also logged as a single event with
+ * its stage timings and resource usage.
  */
 public class CDABuilderRoute extends BaseRouteBuilder {
 	private static final CiaoCamelLogger LOGGER = CiaoCamelLogger.getLogger(CDABuilderRoute.class);
+	private static final Logger LOG = LoggerFactory.getLogger(CDABuilderRoute.class);
 	
 	/**
 	 * The root property 
 	 */
 	public static final String ROOT_PROPERTY = "cdaBuilderRoutes";
 	
+	/**
+	 * The id of the configured object mapper bean - used to marshal the outgoing documents
+	 */
+	public static final String OBJECT_MAPPER_ID = "objectMapper";
+	
+	/**
+	 * The type of threads used to consume and transform documents
+	 */
+	public enum ExecutionMode {
+		/**
+		 * Documents are consumed and transformed on platform (OS) threads
+		 */
+		PLATFORM,
+		
+		/**
+		 * Documents are consumed and transformed on virtual threads (requires Java 21+)
+		 */
+		VIRTUAL;
+		
+		public static ExecutionMode parse(final String value) throws CIAOConfigurationException {
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new CIAOConfigurationException("Unsupported executionMode: " + value);
+			}
+		}
+	}
+	
+	/**
+	 * The format of the published documents
+	 */
+	public enum OutputFormat {
+		/**
+		 * The parsed document is marshalled as JSON (the CDA document is base64 encoded)
+		 */
+		JSON,
+		
+		/**
+		 * The CDA document bytes are published as a JMS BytesMessage - see {@link RawDocumentProcessor}
+		 */
+		BYTES;
+		
+		public static OutputFormat parse(final String value) throws CIAOConfigurationException {
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new CIAOConfigurationException("Unsupported outputFormat: " + value);
+			}
+		}
+	}
+	
 	private final String name;
 	private final String inputQueue;
 	private final String processorId;
 	private final String outputQueue;
+	private final int batchSize;
+	private final long batchTimeout;
+	private final int concurrentConsumers;
+	private final int maxConcurrentConsumers;
+	private final int transformThreads;
+	private final ExecutionMode executionMode;
+	private final OutputFormat outputFormat;
+	private final List<String> outputHeaderProperties;
+	private final String outputPropertiesQueue;
+	private final SchemaValidationProcessor validationProcessor;
+	private final StylesheetTransformProcessor stylesheetProcessor;
+	private final RouteMetrics metrics;
 	private String inProgressFolderManagerUri;
 	
 	/**
@@ -47,6 +168,136 @@ public class CDABuilderRoute extends BaseRouteBuilder {
 		this.inputQueue = findProperty(config, "inputQueue");
 		this.processorId = findProperty(config, "processorId");
 		this.outputQueue = findProperty(config, "outputQueue");
+		this.batchSize = Integer.parseInt(findProperty(config, "batchSize", "1"));
+		this.batchTimeout = Long.parseLong(findProperty(config, "batchTimeout", "1000"));
+		this.concurrentConsumers = Integer.parseInt(findProperty(config, "concurrentConsumers", "1"));
+		this.maxConcurrentConsumers = Integer.parseInt(findProperty(config, "maxConcurrentConsumers",
+				String.valueOf(concurrentConsumers)));
+		this.transformThreads = Integer.parseInt(findProperty(config, "transformThreads", "0"));
+		this.executionMode = resolveExecutionMode(ExecutionMode.parse(findProperty(config, "executionMode", "platform")));
+		this.outputFormat = OutputFormat.parse(findProperty(config, "outputFormat", "json"));
+		this.outputHeaderProperties = parseOutputHeaderProperties(findProperty(config, "outputHeaderProperties", "itkHandlingSpec"));
+		this.outputPropertiesQueue = resolveOutputPropertiesQueue(findProperty(config, "outputPropertiesQueue", ""));
+		this.validationProcessor = createValidationProcessor(findProperty(config, "validationSchema", ""),
+				Double.parseDouble(findProperty(config, "validationSampleRate", "1")));
+		this.stylesheetProcessor = createStylesheetProcessor(findProperty(config, "transformStylesheet", ""));
+		this.metrics = new RouteMetrics(name);
+		
+		if (concurrentConsumers < 1 || maxConcurrentConsumers < concurrentConsumers) {
+			throw new CIAOConfigurationException("Invalid consumer concurrency for route " + name +
+					" - concurrentConsumers: " + concurrentConsumers + ", maxConcurrentConsumers: " + maxConcurrentConsumers);
+		}
+		validateTransformThreads();
+	}
+	
+	/**
+	 * Each (single message) consumer blocks on its own transform - so threads beyond the number of
+	 * consumers would never be used
+	 */
+	private void validateTransformThreads() throws CIAOConfigurationException {
+		if (transformThreads < 0) {
+			throw new CIAOConfigurationException("Invalid transformThreads for route " + name + ": " + transformThreads);
+		} else if (batchSize > 1 || transformThreads <= concurrentConsumers) {
+			return;
+		} else if (transformThreads > maxConcurrentConsumers) {
+			throw new CIAOConfigurationException("Invalid transformThreads for route " + name +
+					" - each consumer waits for its transform, so maxConcurrentConsumers (" + maxConcurrentConsumers +
+					") must be at least transformThreads (" + transformThreads + ")");
+		}
+		
+		LOG.warn("Route {} has fewer concurrentConsumers ({}) than transformThreads ({}) - the extra transform threads are only used once the consumers scale up",
+				name, concurrentConsumers, transformThreads);
+	}
+	
+	/**
+	 * Falls back to platform threads if virtual threads are not supported by the running JVM
+	 */
+	private ExecutionMode resolveExecutionMode(final ExecutionMode requested) {
+		if (requested == ExecutionMode.VIRTUAL && !VirtualThreads.isAvailable()) {
+			LOG.warn("Virtual threads are not supported by this JVM - route {} will use platform threads", name);
+			return ExecutionMode.PLATFORM;
+		}
+		return requested;
+	}
+	
+	/**
+	 * The names of the properties sent as headers of raw documents - each must be a valid JMS property identifier
+	 */
+	private List<String> parseOutputHeaderProperties(final String value) throws CIAOConfigurationException {
+		final List<String> names = ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(value));
+		for (final String propertyName: names) {
+			if (!RawDocumentProcessor.isValidHeaderName(propertyName)) {
+				throw new CIAOConfigurationException("Invalid outputHeaderProperties for route " + name +
+						" - not a valid header name: " + propertyName);
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * The queue receiving the properties of raw documents - or <code>null</code> if no sidecar is published
+	 */
+	private String resolveOutputPropertiesQueue(final String value) {
+		if (Strings.isNullOrEmpty(value)) {
+			return null;
+		} else if (outputFormat != OutputFormat.BYTES) {
+			LOG.warn("Route {} ignores outputPropertiesQueue - the properties are only published separately when outputFormat is bytes", name);
+			return null;
+		}
+		return value;
+	}
+	
+	/**
+	 * Compiles the validation schema (once - at startup)
+	 * 
+	 * @return The validation processor, or <code>null</code> if validation is not enabled
+	 */
+	private SchemaValidationProcessor createValidationProcessor(final String validationSchema,
+			final double validationSampleRate) throws CIAOConfigurationException {
+		if (Strings.isNullOrEmpty(validationSchema) || validationSampleRate == 0) {
+			return null;
+		} else if (validationSampleRate < 0 || validationSampleRate > 1) {
+			throw new CIAOConfigurationException("Invalid validationSampleRate for route " + name +
+					" - must be between 0 and 1: " + validationSampleRate);
+		}
+		
+		final File schemaFile = new File(validationSchema);
+		if (!schemaFile.isFile()) {
+			throw new CIAOConfigurationException("Could not find validationSchema for route " + name +
+					": " + schemaFile.getAbsolutePath());
+		}
+		
+		try {
+			return new SchemaValidationProcessor(SchemaValidationProcessor.compileSchema(schemaFile), validationSampleRate);
+		} catch (SAXException e) {
+			throw new CIAOConfigurationException("Could not compile validationSchema for route " + name +
+					": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Compiles the post-processing stylesheet (once - at startup)
+	 * 
+	 * @return The stylesheet processor, or <code>null</code> if no stylesheet is configured
+	 */
+	private StylesheetTransformProcessor createStylesheetProcessor(final String transformStylesheet)
+			throws CIAOConfigurationException {
+		if (Strings.isNullOrEmpty(transformStylesheet)) {
+			return null;
+		}
+		
+		final File stylesheetFile = new File(transformStylesheet);
+		if (!stylesheetFile.isFile()) {
+			throw new CIAOConfigurationException("Could not find transformStylesheet for route " + name +
+					": " + stylesheetFile.getAbsolutePath());
+		}
+		
+		try {
+			return new StylesheetTransformProcessor(StylesheetTransformProcessor.compileStylesheet(stylesheetFile));
+		} catch (TransformerConfigurationException e) {
+			throw new CIAOConfigurationException("Could not compile transformStylesheet for route " + name +
+					": " + e.getMessage());
+		}
 	}
 	
 	public void setInProgressFolderManagerUri(final String inProgressFolderManagerUri) {
@@ -69,6 +320,20 @@ public class CDABuilderRoute extends BaseRouteBuilder {
 					" for route " + name);
 		}
 	}
+	
+	/**
+	 * Try the specific 'named' property then fall back to the general 'all-routes' property, and finally
+	 * fall back to the default value
+	 */
+	private String findProperty(final CIAOConfig config, final String propertyName, final String defaultValue) throws CIAOConfigurationException {
+		final String specificName = ROOT_PROPERTY + "." + name + "." + propertyName;
+		final String genericName = ROOT_PROPERTY + "." + propertyName;
+		if (config.getConfigKeys().contains(specificName) || config.getConfigKeys().contains(genericName)) {
+			return findProperty(config, propertyName);
+		} else {
+			return defaultValue;
+		}
+	}
 
 	/**
 	 * Configures / creates a new Camel route corresponding to the set of CIAO-config
@@ -76,42 +341,278 @@ public class CDABuilderRoute extends BaseRouteBuilder {
 	 */
 	@Override
 	public void configure() throws Exception {
-		from("jms:queue:" + inputQueue)
+		// Registers the metrics while the camel context is running
+		getContext().addService(metrics);
+		
+		if (batchSize > 1) {
+			configureBatchRoute();
+		} else {
+			configureSingleMessageRoute();
+		}
+	}
+	
+	/**
+	 * Each message is consumed and published in its own transaction
+	 */
+	private void configureSingleMessageRoute() throws Exception {
+		final TryDefinition route = from(getInputEndpoint())
 		.id("cda-builder-" + name)
 		.errorHandler(new TransactionErrorHandlerBuilder()
 				.maximumRedeliveries(0)) // redeliveries are disabled (building in only tried once)
 		.transacted("PROPAGATION_NOT_SUPPORTED")
-		.doTry()
-			.process(LOGGER.info(camelLogMsg("Received JSON document to convert into CDA document")
-					.documentId(header(Exchange.CORRELATION_ID))
-					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))
-		
-			.process(LOGGER.info(camelLogMsg("Attempting to create CDA document")
-					.documentId(header(Exchange.CORRELATION_ID))
-					.eventName(constant("building-cda-document"))
-					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))
-			.beanRef(processorId, "transform")
+		.doTry();
+		
+		route.process(metrics.documentReceived());
+		if (transformThreads > 0) {
+			// Hand the transform over to the route's executor - the consumer waits for the result
+			final String transformUri = configureTransformRoute(false);
+			route.process(new ExecutorEndpointProcessor(createTransformExecutor(transformThreads),
+					getContext().createProducerTemplate(), transformUri));
+		} else {
+			addTransformSteps(route);
+		}
+		route.process(metrics.stageStarted(Stage.SEND));
+		if (outputPropertiesQueue != null) {
+			route.process(new PropertiesSidecarProcessor(getContext().createProducerTemplate(),
+					getPropertiesUri()));
+		}
+		route.to(getOutputUri())
+		.process(metrics.stageCompleted(Stage.SEND))
+		.process(metrics.documentCompleted())
+		.doCatch(Exception.class);
+		
+		addFailureSteps(route);
+		route.end();
+	}
+	
+	/**
+	 * Batches of messages are consumed, transformed in parallel and published in a single transaction
+	 */
+	private void configureBatchRoute() throws Exception {
+		final String transformUri = configureTransformRoute(true);
+		final String failedUri = "direct:cda-builder-" + name + "-failed";
+		
+		// Handles a single failed document from a batch
+		final RouteDefinition failedRoute = from(failedUri)
+		.id("cda-builder-" + name + "-failed")
+		.errorHandler(noErrorHandler());
+		addFailureSteps(failedRoute);
+		
+		// Batch consumers do not scale with load - a fixed number of consumers is run
+		if (maxConcurrentConsumers > concurrentConsumers) {
+			LOG.warn("Route {} runs {} batch consumers - maxConcurrentConsumers ({}) only applies when batchSize is 1",
+					name, concurrentConsumers, maxConcurrentConsumers);
+		}
+		
+		// Each batch is driven from a single thread - the received messages are transformed in parallel
+		final JmsConfiguration jmsConfiguration = getContext().getComponent("jms", JmsComponent.class).getConfiguration();
+		final ExecutorService executorService;
+		if (transformThreads > 0) {
+			executorService = createTransformExecutor(transformThreads);
+		} else if (executionMode == ExecutionMode.VIRTUAL) {
+			executorService = createVirtualThreadExecutor();
+		} else {
+			executorService = createTransformExecutor(Math.min(batchSize * concurrentConsumers,
+					Runtime.getRuntime().availableProcessors()));
+		}
+		
+		// One long-lived session / consumer per batch consumer (and driving thread)
+		final JmsEndpoint outputEndpoint = getContext().getEndpoint(getOutputUri(), JmsEndpoint.class);
+		final JmsEndpoint propertiesEndpoint = outputPropertiesQueue == null ? null :
+			getContext().getEndpoint(getPropertiesUri(), JmsEndpoint.class);
+		for (int consumer = 0; consumer < concurrentConsumers; consumer++) {
+			final String id = "cda-builder-" + name + (consumer == 0 ? "" : "-" + consumer);
+			final CDABuilderBatchProcessor batchProcessor = new CDABuilderBatchProcessor(getContext(),
+					jmsConfiguration.getConnectionFactory(), executorService, inputQueue, transformUri,
+					outputEndpoint, metrics.documentCompleted(), failedUri, batchSize, batchTimeout);
+			batchProcessor.setPropertiesEndpoint(propertiesEndpoint);
 			
-			.process(LOGGER.info(camelLogMsg("Completed building CDA document")
-					.documentId(header(Exchange.CORRELATION_ID))
-					.eventName(constant("built-cda-document"))
-					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))	
-			.marshal().json(JsonLibrary.Jackson)
-			.setHeader(Exchange.FILE_NAME, simple("${file:name.noext}.xml"))
-			.to("jms:queue:" + outputQueue)
-		.doCatch(Exception.class)
-			.process(LOGGER.warn(camelLogMsg("CDA document building failed")
-					.documentId(header(Exchange.CORRELATION_ID))
-					.eventName(constant("cda-document-building-failed"))
-					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))
+			from("timer:" + id + "?period=1")
+			.id(id)
+			.process(batchProcessor);
+		}
+	}
+	
+	/**
+	 * The JMS input endpoint - including the consumer concurrency options
+	 */
+	private String getInputUri() {
+		final StringBuilder uri = new StringBuilder("jms:queue:").append(inputQueue);
+		if (concurrentConsumers > 1 || maxConcurrentConsumers > concurrentConsumers) {
+			uri.append("?concurrentConsumers=").append(concurrentConsumers)
+				.append("&maxConcurrentConsumers=").append(maxConcurrentConsumers);
+		}
+		return uri.toString();
+	}
+	
+	/**
+	 * The JMS output endpoint - raw documents are always sent as a BytesMessage
+	 */
+	private String getOutputUri() {
+		final String uri = "jms:queue:" + outputQueue;
+		return outputFormat == OutputFormat.BYTES ? uri + "?jmsMessageType=Bytes" : uri;
+	}
+	
+	/**
+	 * The JMS endpoint receiving the (sidecar) properties of raw documents
+	 */
+	private String getPropertiesUri() {
+		return "jms:queue:" + outputPropertiesQueue + "?jmsMessageType=Text";
+	}
+	
+	/**
+	 * The JMS input endpoint - in virtual mode the consumers are run on virtual threads
+	 */
+	private JmsEndpoint getInputEndpoint() throws Exception {
+		final JmsEndpoint endpoint = getContext().getEndpoint(getInputUri(), JmsEndpoint.class);
+		if (executionMode == ExecutionMode.VIRTUAL) {
+			// Each endpoint has its own copy of the component configuration
+			endpoint.getConfiguration().setTaskExecutor(new ConcurrentTaskExecutor(createVirtualThreadExecutor()));
+		}
+		return endpoint;
+	}
+	
+	/**
+	 * Configures a route to transform a single document - used when the transform runs
+	 * outside of the consuming thread
+	 * 
+	 * @param trackDocuments true if the transform route starts tracking the document metrics (i.e. in batch
+	 * 		mode - where the documents are only counted once the batch is committed)
+	 * @return The URI of the transform route
+	 */
+	private String configureTransformRoute(final boolean trackDocuments) {
+		final String transformUri = "direct:cda-builder-" + name + "-transform";
+		final RouteDefinition transformRoute = from(transformUri)
+		.id("cda-builder-" + name + "-transform")
+		.errorHandler(noErrorHandler()); // failures are handled by the calling route / batch processor
+		
+		if (trackDocuments) {
+			transformRoute.process(metrics.documentTracked());
+		}
+		addTransformSteps(transformRoute);
+		
+		return transformUri;
+	}
+	
+	/**
+	 * Creates the bounded executor used to transform documents for this route.
+	 * <p>
+	 * The executor is owned by the route builder and is shut down with the camel context.
+	 */
+	private ExecutorService createTransformExecutor(final int threads) {
+		return getContext().getExecutorServiceManager().newFixedThreadPool(this,
+				"CDABuilderTransform-" + name, threads);
+	}
+	
+	/**
+	 * Creates an executor which runs each task on a new virtual thread.
+	 * <p>
+	 * The executor is not known to camel - a service is registered to shut it down with the camel context.
+	 */
+	private ExecutorService createVirtualThreadExecutor() throws Exception {
+		final ExecutorService executorService = VirtualThreads.newVirtualThreadPerTaskExecutor();
+		getContext().addService(new ServiceSupport() {
+			@Override
+			protected void doStart() throws Exception {
+				// NOOP
+			}
 			
-			// Add a preparation-failed event to the in-progress directory
-			.setHeader(InProgressFolderManagerRoute.Header.ACTION, constant(InProgressFolderManagerRoute.Action.STORE))
-			.setHeader(InProgressFolderManagerRoute.Header.FILE_TYPE, constant(InProgressFolderManagerRoute.FileType.EVENT))
-			.setHeader(InProgressFolderManagerRoute.Header.EVENT_TYPE, constant(InProgressFolderManagerRoute.EventType.MESSAGE_PREPARATION_FAILED))
-			.setHeader(Exchange.FILE_NAME).constant(InProgressFolderManagerRoute.MessageType.DOCUMENT)
-			.setBody().simple("ciao-cda-builder\n\n${exception.message}\n${exception.stacktrace}")
-			.to(inProgressFolderManagerUri)
-		.end();
+			@Override
+			protected void doStop() throws Exception {
+				executorService.shutdown();
+			}
+		});
+		return executorService;
+	}
+	
+	/**
+	 * Adds the steps to transform a single incoming JSON document into an outgoing (marshalled / raw) CDA document
+	 */
+	private void addTransformSteps(final ProcessorDefinition<?> route) {
+		route.process(LOGGER.info(camelLogMsg("Received JSON document to convert into CDA document")
+				.documentId(header(Exchange.CORRELATION_ID))
+				.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))));
+		
+		route.process(LOGGER.info(camelLogMsg("Attempting to create CDA document")
+				.documentId(header(Exchange.CORRELATION_ID))
+				.eventName(constant("building-cda-document"))
+				.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))));
+		route.process(metrics.transformStarted());
+		
+		// Prefer the configured (and warmed-up) object mapper if one is available
+		final ObjectMapper objectMapper = getContext().getRegistry().lookupByNameAndType(OBJECT_MAPPER_ID, ObjectMapper.class);
+		final JsonToCDADocumentTransformer streamingTransformer = getStreamingTransformer();
+		if (streamingTransformer != null) {
+			// Raw output without post-processing - the document is written straight into the message body
+			route.process(new RawTransformProcessor(streamingTransformer,
+					createRawDocumentProcessor(streamingTransformer.getObjectMapper())));
+		} else {
+			route.beanRef(processorId, "transform");
+		}
+		
+		if (validationProcessor != null) {
+			route.process(validationProcessor);
+		}
+		
+		if (stylesheetProcessor != null) {
+			route.process(stylesheetProcessor);
+		}
+		
+		route.process(LOGGER.info(camelLogMsg("Completed building CDA document")
+				.documentId(header(Exchange.CORRELATION_ID))
+				.eventName(constant("built-cda-document"))
+				.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))));
+		
+		if (streamingTransformer == null) {
+			route.process(metrics.stageStarted(Stage.MARSHAL));
+			if (outputFormat == OutputFormat.BYTES) {
+				route.process(createRawDocumentProcessor(objectMapper != null ? objectMapper : new ObjectMapper()));
+			} else if (objectMapper != null) {
+				route.marshal(new ParsedDocumentDataFormat(objectMapper));
+			} else {
+				route.marshal().json(JsonLibrary.Jackson);
+			}
+			route.process(metrics.stageCompleted(Stage.MARSHAL));
+		}
+		route.setHeader(Exchange.FILE_NAME, simple("${file:name.noext}.xml"));
+		
+		// CPU / allocations are accounted from the transform up to (and including) the marshal
+		route.process(metrics.transformCompleted());
+	}
+	
+	private RawDocumentProcessor createRawDocumentProcessor(final ObjectMapper objectMapper) {
+		return new RawDocumentProcessor(objectMapper, outputHeaderProperties, outputPropertiesQueue != null);
+	}
+	
+	/**
+	 * The transformer used to write raw documents straight into the message body - or <code>null</code> if the
+	 * documents are marshalled, post-processed, or the processor is not a {@link JsonToCDADocumentTransformer}
+	 */
+	private JsonToCDADocumentTransformer getStreamingTransformer() {
+		if (outputFormat != OutputFormat.BYTES || validationProcessor != null || stylesheetProcessor != null) {
+			return null;
+		}
+		
+		final Object processor = getContext().getRegistry().lookupByName(processorId);
+		return processor instanceof JsonToCDADocumentTransformer ? (JsonToCDADocumentTransformer)processor : null;
+	}
+	
+	/**
+	 * Adds the steps to handle a document which could not be built
+	 */
+	private void addFailureSteps(final ProcessorDefinition<?> route) {
+		route.process(metrics.documentFailed());
+		route.process(LOGGER.warn(camelLogMsg("CDA document building failed")
+				.documentId(header(Exchange.CORRELATION_ID))
+				.eventName(constant("cda-document-building-failed"))
+				.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))));
+		
+		// Add a preparation-failed event to the in-progress directory
+		route.setHeader(InProgressFolderManagerRoute.Header.ACTION, constant(InProgressFolderManagerRoute.Action.STORE));
+		route.setHeader(InProgressFolderManagerRoute.Header.FILE_TYPE, constant(InProgressFolderManagerRoute.FileType.EVENT));
+		route.setHeader(InProgressFolderManagerRoute.Header.EVENT_TYPE, constant(InProgressFolderManagerRoute.EventType.MESSAGE_PREPARATION_FAILED));
+		route.setHeader(Exchange.FILE_NAME, constant(InProgressFolderManagerRoute.MessageType.DOCUMENT));
+		route.setBody(simple("ciao-cda-builder\n\n${exception.message}\n${exception.stacktrace}"));
+		route.to(inProgressFolderManagerUri);
 	}
 }
@@ -0,0 +1,57 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Sends the exchange to an endpoint using a thread from a dedicated executor.
+ * <p>
+ * The calling (consumer) thread blocks until the endpoint has completed, so the exchange
+ * continues along the calling route afterwards - including any try / catch handling. The size
+ * of the executor bounds how many exchanges can be processed by the endpoint at once, independently
+ * of the number of consumers.
+ */
+public class ExecutorEndpointProcessor implements Processor {
+	private final ExecutorService executorService;
+	private final ProducerTemplate producerTemplate;
+	private final String uri;
+
+	public ExecutorEndpointProcessor(final ExecutorService executorService, final ProducerTemplate producerTemplate,
+			final String uri) {
+		this.executorService = Preconditions.checkNotNull(executorService);
+		this.producerTemplate = Preconditions.checkNotNull(producerTemplate);
+		this.uri = Preconditions.checkNotNull(uri);
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final Future<Exchange> future = executorService.submit(new Callable<Exchange>() {
+			@Override
+			public Exchange call() throws Exception {
+				return producerTemplate.send(uri, exchange);
+			}
+		});
+
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw e;
+		} catch (ExecutionException e) {
+			// Any failure inside the endpoint is already recorded against the exchange
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.spi.DataFormat;
+
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Camel data format to marshal / unmarshal {@link ParsedDocument} as JSON.
+ * <p>
+ * The reader and writer are created once from the configured object mapper, so the
+ * serializers resolved during the startup warm-up are re-used for every message.
+ * <p>
+ * Marshalling with the configured object mapper (rather than the default mapper of camel-jackson)
+ * produces the same JSON for the plain JSON values carried by a parsed document. Only property values
+ * of a type with a serializer registered by {@link uk.nhs.ciao.cda.builder.json.CDABuilderModule}
+ * (e.g. a vocabulary entry added by a custom payload handler) are written differently.
+ */
+public class ParsedDocumentDataFormat implements DataFormat {
+	private final ObjectReader reader;
+	private final ObjectWriter writer;
+
+	public ParsedDocumentDataFormat(final ObjectMapper objectMapper) {
+		this.reader = objectMapper.reader(ParsedDocument.class);
+		this.writer = objectMapper.writerWithType(ParsedDocument.class);
+	}
+
+	@Override
+	public void marshal(final Exchange exchange, final Object graph, final OutputStream stream) throws Exception {
+		writer.writeValue(stream, graph);
+	}
+
+	@Override
+	public Object unmarshal(final Exchange exchange, final InputStream stream) throws Exception {
+		return reader.readValue(stream);
+	}
+}
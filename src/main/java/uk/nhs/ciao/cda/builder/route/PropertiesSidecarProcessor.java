@@ -0,0 +1,54 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Publishes the properties of a raw outgoing document (see {@link RawDocumentProcessor#PROPERTIES_PROPERTY})
+ * as a separate JSON message.
+ * <p>
+ * The sidecar message is a copy of the exchange (so it carries the same correlation / routing headers as the
+ * document) with the properties JSON as the body. It is published before the document, so consumers never
+ * receive a document before its properties. Exchanges without properties are ignored.
+ */
+public class PropertiesSidecarProcessor implements Processor {
+	private final ProducerTemplate producerTemplate;
+	private final String uri;
+	
+	public PropertiesSidecarProcessor(final ProducerTemplate producerTemplate, final String uri) {
+		this.producerTemplate = Preconditions.checkNotNull(producerTemplate);
+		this.uri = Preconditions.checkNotNull(uri);
+	}
+	
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final Exchange sidecar = createSidecarExchange(exchange);
+		if (sidecar == null) {
+			return;
+		}
+		
+		producerTemplate.send(uri, sidecar);
+		if (sidecar.getException() != null) {
+			throw sidecar.getException();
+		}
+	}
+	
+	/**
+	 * Creates the sidecar copy of the exchange
+	 * 
+	 * @return The sidecar exchange, or <code>null</code> if the exchange has no properties to publish
+	 */
+	public static Exchange createSidecarExchange(final Exchange exchange) {
+		final String properties = exchange.getProperty(RawDocumentProcessor.PROPERTIES_PROPERTY, String.class);
+		if (properties == null) {
+			return null;
+		}
+		
+		final Exchange sidecar = exchange.copy();
+		sidecar.getIn().setBody(properties);
+		return sidecar;
+	}
+}
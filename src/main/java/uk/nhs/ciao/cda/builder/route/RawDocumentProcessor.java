@@ -0,0 +1,170 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Replaces an outgoing {@link ParsedDocument} with the raw bytes of the encoded CDA document - published
+ * as a JMS <code>BytesMessage</code>.
+ * <p>
+ * The content is not base64 encoded inside JSON (as with the marshalled <code>ParsedDocument</code>), so
+ * the message is roughly a third smaller and neither side pays for the encode / decode. Only small values
+ * travel as message headers:
+ * <ul>
+ * <li>{@link #HEADER_NAME} - the document name</li>
+ * <li>{@link #HEADER_MEDIA_TYPE} - the media type of the content (e.g. <code>text/xml</code>)</li>
+ * <li>{@link #HEADER_PROPERTY_PREFIX}<code>${name}</code> - each of the configured routing properties
+ * (scalar values only)</li>
+ * </ul>
+ * The full properties map is not sent as a header (it includes the clinical section text). If a sidecar is
+ * enabled, the properties are serialised as JSON into the {@link #PROPERTIES_PROPERTY} exchange property - to
+ * be published as a separate (correlated) message. Consumers can rebuild the equivalent parsed document via
+ * {@link #toParsedDocument(ObjectMapper, Message, String)}.
+ * <p>
+ * The header names are valid JMS property identifiers, so they are passed through unchanged by the Camel
+ * JMS binding.
+ */
+public class RawDocumentProcessor implements Processor {
+	/**
+	 * Header containing the name of the outgoing document
+	 */
+	public static final String HEADER_NAME = "ciaoDocumentName";
+	
+	/**
+	 * Header containing the media type of the outgoing document
+	 */
+	public static final String HEADER_MEDIA_TYPE = "ciaoDocumentMediaType";
+	
+	/**
+	 * Prefix of the headers containing the routing properties of the outgoing document
+	 */
+	public static final String HEADER_PROPERTY_PREFIX = "ciaoProperty_";
+	
+	/**
+	 * Exchange property containing the properties of the outgoing document as JSON (when the sidecar is enabled)
+	 */
+	public static final String PROPERTIES_PROPERTY = "ciao.cdaBuilder.documentProperties";
+	
+	private static final TypeReference<Map<String, Object>> PROPERTIES_TYPE = new TypeReference<Map<String, Object>>() {
+		// Type token
+	};
+	
+	private final ObjectWriter propertiesWriter;
+	private final List<String> headerProperties;
+	private final boolean sidecar;
+	
+	/**
+	 * @param objectMapper The mapper used to write the sidecar properties
+	 * @param headerProperties The names of the (routing) properties sent as headers
+	 * @param sidecar true if the full properties should be prepared for a sidecar message
+	 */
+	public RawDocumentProcessor(final ObjectMapper objectMapper, final Collection<String> headerProperties,
+			final boolean sidecar) {
+		this.propertiesWriter = objectMapper.writerWithType(PROPERTIES_TYPE);
+		this.headerProperties = ImmutableList.copyOf(headerProperties);
+		this.sidecar = sidecar;
+		
+		for (final String name: this.headerProperties) {
+			Preconditions.checkArgument(isValidHeaderName(name), "Invalid header property name: %s", name);
+		}
+	}
+	
+	/**
+	 * Whether the property name can be sent as a (JMS) header
+	 */
+	public static boolean isValidHeaderName(final String name) {
+		if (Strings.isNullOrEmpty(name) || !Character.isJavaIdentifierStart(name.charAt(0))) {
+			return false;
+		}
+		for (int index = 1; index < name.length(); index++) {
+			if (!Character.isJavaIdentifierPart(name.charAt(index))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final Message message = exchange.getIn();
+		final ParsedDocument parsedDocument = message.getMandatoryBody(ParsedDocument.class);
+		final Document document = parsedDocument.getOriginalDocument();
+		
+		setHeaders(exchange, document.getName(), document.getMediaType(), parsedDocument.getProperties());
+		
+		// A byte[] body is sent as a JMS BytesMessage
+		message.setBody(document.getContent());
+	}
+	
+	/**
+	 * Sets the headers describing the raw document (and the sidecar properties, if enabled) in the exchange
+	 */
+	public void setHeaders(final Exchange exchange, final String name, final String mediaType,
+			final Map<String, Object> properties) throws IOException {
+		final Message message = exchange.getIn();
+		message.setHeader(HEADER_NAME, name);
+		message.setHeader(HEADER_MEDIA_TYPE, mediaType);
+		if (properties == null) {
+			return;
+		}
+		
+		for (final String property: headerProperties) {
+			final Object value = properties.get(property);
+			if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+				message.setHeader(HEADER_PROPERTY_PREFIX + property, value);
+			}
+		}
+		
+		if (sidecar && !properties.isEmpty()) {
+			exchange.setProperty(PROPERTIES_PROPERTY, propertiesWriter.writeValueAsString(properties));
+		}
+	}
+	
+	/**
+	 * Rebuilds the parsed document from a message published by this processor
+	 * 
+	 * @param sidecar The JSON properties from the sidecar message - if <code>null</code> the properties are
+	 * 		rebuilt from the routing property headers
+	 */
+	public static ParsedDocument toParsedDocument(final ObjectMapper objectMapper, final Message message,
+			final String sidecar) throws Exception {
+		final byte[] content = message.getMandatoryBody(byte[].class);
+		final String name = Preconditions.checkNotNull(message.getHeader(HEADER_NAME, String.class),
+				"Missing header: %s", HEADER_NAME);
+		final String mediaType = message.getHeader(HEADER_MEDIA_TYPE, String.class);
+		
+		final Map<String, Object> properties;
+		if (!Strings.isNullOrEmpty(sidecar)) {
+			final ObjectReader propertiesReader = objectMapper.reader(PROPERTIES_TYPE);
+			properties = propertiesReader.readValue(sidecar);
+		} else {
+			properties = Maps.newLinkedHashMap();
+			for (final Entry<String, Object> header: message.getHeaders().entrySet()) {
+				if (header.getKey().startsWith(HEADER_PROPERTY_PREFIX)) {
+					properties.put(header.getKey().substring(HEADER_PROPERTY_PREFIX.length()), header.getValue());
+				}
+			}
+		}
+		
+		return new ParsedDocument(new Document(name, content, mediaType), properties);
+	}
+}
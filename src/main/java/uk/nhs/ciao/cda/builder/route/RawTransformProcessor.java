@@ -0,0 +1,68 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.InputStream;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+
+import uk.nhs.ciao.cda.builder.processor.DocumentOutputBuffer;
+import uk.nhs.ciao.cda.builder.processor.JsonToCDADocumentTransformer;
+import uk.nhs.ciao.cda.builder.processor.OutgoingDocument;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Transforms the incoming JSON document straight into the raw bytes of the outgoing CDA document - used
+ * when documents are published as a JMS <code>BytesMessage</code> without any post-processing.
+ * <p>
+ * The document is written by the stream path of the transformer (see
+ * {@link JsonToCDADocumentTransformer#transformTo(byte[], java.io.OutputStream)}) into a re-used per-thread
+ * buffer - so no <code>ParsedDocument</code>, encoded byte array or base64 copy of the document is created.
+ * An intermediate XML string is only avoided for documents written by a
+ * {@link uk.nhs.ciao.cda.builder.processor.StreamingPayloadHandler} (e.g. the <code>TEMPLATE</code>
+ * serialisation engine) - itk-payloads serialises each document to a string first. The name, media type and routing properties are set as headers (see {@link RawDocumentProcessor}).
+ */
+public class RawTransformProcessor implements Processor {
+	private static final int OUTPUT_BUFFER_INITIAL_CAPACITY = 64 * 1024;
+	private static final int OUTPUT_BUFFER_MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+	
+	private final JsonToCDADocumentTransformer transformer;
+	private final RawDocumentProcessor rawDocumentProcessor;
+	private final ThreadLocal<DocumentOutputBuffer> outputBuffers = new ThreadLocal<DocumentOutputBuffer>() {
+		@Override
+		protected DocumentOutputBuffer initialValue() {
+			return new DocumentOutputBuffer(OUTPUT_BUFFER_INITIAL_CAPACITY, OUTPUT_BUFFER_MAX_RETAINED_CAPACITY);
+		}
+	};
+	
+	public RawTransformProcessor(final JsonToCDADocumentTransformer transformer,
+			final RawDocumentProcessor rawDocumentProcessor) {
+		this.transformer = Preconditions.checkNotNull(transformer);
+		this.rawDocumentProcessor = Preconditions.checkNotNull(rawDocumentProcessor);
+	}
+	
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final Message message = exchange.getIn();
+		final Object body = message.getBody();
+		final DocumentOutputBuffer buffer = outputBuffers.get();
+		try {
+			final OutgoingDocument document;
+			if (body instanceof String) {
+				document = transformer.transformTo((String)body, buffer);
+			} else if (body instanceof byte[]) {
+				document = transformer.transformTo((byte[])body, buffer);
+			} else {
+				document = transformer.transformTo(message.getMandatoryBody(InputStream.class), buffer);
+			}
+			
+			rawDocumentProcessor.setHeaders(exchange, document.getName(), document.getMediaType(), document.getProperties());
+			
+			// Only the exactly sized result is allocated per document - sent as a JMS BytesMessage
+			message.setBody(buffer.toByteArray());
+		} finally {
+			buffer.reset();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.xml.sax.SAXException;
+
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * Validates outgoing CDA documents against a (pre-compiled) XML schema.
+ * <p>
+ * The schema is compiled once and shared. Validators are not thread-safe, so they are pooled and
+ * each validation borrows one - the pool only grows to the number of concurrent validations. The
+ * document is validated by streaming the serialised bytes through the validator (no DOM is built).
+ * <p>
+ * The sample rate controls the fraction of documents which are validated (0.0 - 1.0). Invalid
+ * documents fail with the underlying {@link SAXException}.
+ */
+public class SchemaValidationProcessor implements Processor {
+	private final Schema schema;
+	private final double sampleRate;
+	private final Queue<Validator> validators = new ConcurrentLinkedQueue<Validator>();
+
+	public SchemaValidationProcessor(final Schema schema, final double sampleRate) {
+		Preconditions.checkArgument(sampleRate >= 0 && sampleRate <= 1, "sampleRate must be between 0 and 1");
+		this.schema = Preconditions.checkNotNull(schema);
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Compiles the schema file (any included / imported schemas are resolved relative to the file)
+	 */
+	public static Schema compileSchema(final File file) throws SAXException {
+		return SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(file);
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return;
+		}
+
+		final ParsedDocument document = exchange.getIn().getMandatoryBody(ParsedDocument.class);
+		final InputStream in = document.getOriginalDocument().getContentStream();
+		try {
+			validate(new StreamSource(in));
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Validates the source using a pooled validator
+	 */
+	public void validate(final StreamSource source) throws Exception {
+		Validator validator = validators.poll();
+		if (validator == null) {
+			validator = schema.newValidator();
+		}
+
+		try {
+			validator.validate(source);
+		} finally {
+			validator.reset();
+			validators.offer(validator);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.TransformerFactoryImpl;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+/**
+ * Post-processes outgoing CDA documents with a (pre-compiled) XSLT stylesheet - e.g. to convert
+ * the documents into the 'CDA-like' templated form via <code>XSD/Transform/TrueCDAToCDALike_v2.xsl</code>.
+ * <p>
+ * The stylesheet is compiled once into {@link Templates}. Transformers are not thread-safe, so they are
+ * pooled and each transform borrows one. The document bytes are streamed through the transformer
+ * (no DOM is built) and the output replaces the content of the outgoing document - the name and
+ * properties are unchanged.
+ */
+public class StylesheetTransformProcessor implements Processor {
+	private final Templates templates;
+	private final Queue<Transformer> transformers = new ConcurrentLinkedQueue<Transformer>();
+
+	public StylesheetTransformProcessor(final Templates templates) {
+		this.templates = Preconditions.checkNotNull(templates);
+	}
+
+	/**
+	 * Compiles the stylesheet file (any imported stylesheets / documents are resolved relative to the file).
+	 * <p>
+	 * Stylesheets are always compiled by Saxon (rather than the configured JAXP implementation) - the bundled
+	 * stylesheets require XSLT 2.0, which is not supported by the JDK processor.
+	 */
+	public static Templates compileStylesheet(final File file) throws TransformerConfigurationException {
+		return new TransformerFactoryImpl().newTemplates(new StreamSource(file));
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final ParsedDocument parsedDocument = exchange.getIn().getMandatoryBody(ParsedDocument.class);
+		final Document document = parsedDocument.getOriginalDocument();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final InputStream in = document.getContentStream();
+		try {
+			transform(new StreamSource(in), new StreamResult(out));
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+
+		exchange.getIn().setBody(new ParsedDocument(new Document(document.getName(), out.toByteArray(), "text/xml"),
+				parsedDocument.getProperties()));
+	}
+
+	/**
+	 * Transforms the source using a pooled transformer
+	 */
+	public void transform(final StreamSource source, final StreamResult result) throws Exception {
+		Transformer transformer = transformers.poll();
+		if (transformer == null) {
+			transformer = templates.newTransformer();
+		}
+
+		try {
+			transformer.transform(source, result);
+		} finally {
+			transformer.reset();
+			transformers.offer(transformer);
+		}
+	}
+}
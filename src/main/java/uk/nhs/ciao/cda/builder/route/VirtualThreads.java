@@ -0,0 +1,56 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21+) without requiring them at compile time.
+ * <p>
+ * The module is still built for older JVMs, so the virtual thread executor is resolved
+ * reflectively and {@link #isAvailable()} should be checked before use.
+ */
+public final class VirtualThreads {
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class,
+			"newVirtualThreadPerTaskExecutor");
+
+	private VirtualThreads() {
+		// Suppress default constructor
+	}
+
+	/**
+	 * Tests if virtual threads are supported by the running JVM
+	 */
+	public static boolean isAvailable() {
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an (unbounded) executor which starts a new virtual thread for each task
+	 *
+	 * @throws UnsupportedOperationException If virtual threads are not supported by the running JVM
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		if (!isAvailable()) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM - java.version: "
+					+ System.getProperty("java.version"));
+		}
+
+		try {
+			return (ExecutorService)NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("Unable to create virtual thread executor", e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException("Unable to create virtual thread executor", e.getCause());
+		}
+	}
+
+	private static Method findMethod(final Class<?> type, final String name) {
+		try {
+			return type.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package uk.nhs.ciao.cda.builder.template;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.nhs.interoperability.payloads.DateValue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The <em>shape</em> of an object graph, together with the slots holding its variable values.
+ * <p>
+ * The graph is walked reflectively. String and {@link DateValue} values become slots; everything
+ * else which may affect the structure of the rendered document (nulls, empty strings, collection
+ * sizes, enums, booleans, numbers, date formats) is recorded in the shape key. Two graphs with the
+ * same key differ only in the values of their slots.
+ */
+class DocumentShape {
+	private static final int MAX_DEPTH = 16;
+	private static final Map<Class<?>, List<Field>> FIELDS_BY_TYPE = Maps.newConcurrentMap();
+
+	private final StringBuilder key = new StringBuilder();
+	private final List<Slot> slots = Lists.newArrayList();
+	private final Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+
+	private DocumentShape() {
+		// Use the static factory method
+	}
+
+	/**
+	 * Walks the specified object graph
+	 */
+	public static DocumentShape of(final Object root) {
+		final DocumentShape shape = new DocumentShape();
+		shape.walkObject(root, 0);
+		return shape;
+	}
+
+	public String getKey() {
+		return key.toString();
+	}
+
+	public List<Slot> getSlots() {
+		return slots;
+	}
+
+	private void walkObject(final Object object, final int depth) {
+		if (depth > MAX_DEPTH || visited.put(object, Boolean.TRUE) != null) {
+			throw new IllegalArgumentException("Unsupported object graph - too deep or cyclic");
+		}
+
+		key.append('{');
+		for (final Field field: getFields(object.getClass())) {
+			final Object value = get(field, object);
+			if (value instanceof String || value instanceof DateValue) {
+				slots.add(new FieldSlot(object, field, value));
+			}
+			walkValue(value, depth);
+		}
+		key.append('}');
+	}
+
+	private void walkValue(final Object value, final int depth) {
+		if (value == null) {
+			key.append('0');
+		} else if (value instanceof String) {
+			key.append(((String)value).isEmpty() ? 'e' : 's');
+		} else if (value instanceof DateValue) {
+			// The format (precision / timezone) of the date may affect the rendered document
+			key.append('d').append(value.toString().replaceAll("[0-9]", "9"));
+		} else if (value instanceof Enum || value instanceof Boolean || value instanceof Number
+				|| value instanceof Character) {
+			key.append('=').append(value).append(';');
+		} else if (value instanceof List) {
+			final List<?> list = (List<?>)value;
+			key.append('[');
+			for (int index = 0; index < list.size(); index++) {
+				final Object element = list.get(index);
+				if (element instanceof String || element instanceof DateValue) {
+					slots.add(new ListSlot(list, index, element));
+				}
+				walkValue(element, depth + 1);
+			}
+			key.append(']');
+		} else if (value instanceof Collection) {
+			// Unordered - the elements are part of the key
+			key.append('<').append(value).append('>');
+		} else if (isBean(value.getClass())) {
+			walkObject(value, depth + 1);
+		} else {
+			key.append('=').append(value.getClass().getName()).append(':').append(value).append(';');
+		}
+	}
+
+	/**
+	 * Only payload / builder classes are walked - other values are treated as opaque
+	 */
+	private static boolean isBean(final Class<?> type) {
+		final String name = type.getName();
+		return name.startsWith("uk.nhs.interoperability.payloads.") || name.startsWith("uk.nhs.ciao.cda.builder.");
+	}
+
+	private static List<Field> getFields(final Class<?> type) {
+		List<Field> fields = FIELDS_BY_TYPE.get(type);
+		if (fields == null) {
+			fields = Lists.newArrayList();
+			for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+				for (final Field field: clazz.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+						field.setAccessible(true);
+						fields.add(field);
+					}
+				}
+			}
+			FIELDS_BY_TYPE.put(type, fields);
+		}
+		return fields;
+	}
+
+	private static Object get(final Field field, final Object object) {
+		try {
+			return field.get(object);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Unable to read field: " + field, e);
+		}
+	}
+
+	/**
+	 * A String or {@link DateValue} held in the object graph
+	 */
+	public abstract static class Slot {
+		private final Object value;
+
+		protected Slot(final Object value) {
+			this.value = value;
+		}
+
+		/**
+		 * The original value of the slot
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		public boolean isDate() {
+			return value instanceof DateValue;
+		}
+
+		/**
+		 * The text of the value as it is rendered into the document
+		 */
+		public String getText() {
+			return value.toString();
+		}
+
+		/**
+		 * Replaces the value held in the object graph
+		 */
+		public abstract void set(Object newValue);
+
+		/**
+		 * Restores the original value
+		 */
+		public void restore() {
+			set(value);
+		}
+	}
+
+	private static class FieldSlot extends Slot {
+		private final Object object;
+		private final Field field;
+
+		public FieldSlot(final Object object, final Field field, final Object value) {
+			super(value);
+			this.object = object;
+			this.field = field;
+		}
+
+		@Override
+		public void set(final Object newValue) {
+			try {
+				field.set(object, newValue);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException("Unable to write field: " + field, e);
+			}
+		}
+	}
+
+	private static class ListSlot extends Slot {
+		private final List<?> list;
+		private final int index;
+
+		public ListSlot(final List<?> list, final int index, final Object value) {
+			super(value);
+			this.list = list;
+			this.index = index;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void set(final Object newValue) {
+			((List<Object>)list).set(index, newValue);
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package uk.nhs.ciao.cda.builder.template;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import uk.nhs.ciao.cda.builder.json.EncodedDocument;
+import uk.nhs.ciao.cda.builder.processor.Utf8Bytes;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A pre-compiled CDA document skeleton.
+ * <p>
+ * The skeleton is the document rendered by itk-payloads using sentinel values. It is split into
+ * pre-encoded (UTF-8) literal segments separated by parts which are written per document:
+ * <ul>
+ * <li>Slot values (XML escaped)</li>
+ * <li>Generated UUIDs - each distinct UUID which differs between two renders of the same skeleton is
+ * replaced by a new random UUID. Any other UUID (e.g. sent in a baked value) is a literal</li>
+ * <li>The base64 content of the original document</li>
+ * </ul>
+ */
+class DocumentTemplate {
+	private static final Pattern UUID_PATTERN = Pattern.compile(
+			"[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+	private static final int LITERAL = 0;
+	private static final int SLOT = 1;
+	private static final int UUID_PART = 2;
+	private static final int CONTENT = 3;
+
+	private final int[] types;
+	private final int[] indexes;
+	private final byte[][] literals;
+	private final boolean[] upperCaseUuids;
+	private final int uuidCount;
+
+	private DocumentTemplate(final List<Part> parts, final int uuidCount) {
+		this.types = new int[parts.size()];
+		this.indexes = new int[parts.size()];
+		this.literals = new byte[parts.size()][];
+		this.upperCaseUuids = new boolean[parts.size()];
+		this.uuidCount = uuidCount;
+
+		for (int index = 0; index < parts.size(); index++) {
+			final Part part = parts.get(index);
+			types[index] = part.type;
+			indexes[index] = part.index;
+			literals[index] = part.literal == null ? null : Utf8Bytes.encode(part.literal);
+			upperCaseUuids[index] = part.upperCase;
+		}
+	}
+
+	/**
+	 * Compiles a skeleton rendered with the specified sentinels
+	 *
+	 * @param xml The rendered skeleton
+	 * @param repeatXml The same skeleton rendered again - UUIDs which differ between the renders are generated
+	 * @param sentinels The sentinel text of each slot (<code>null</code> if the slot value is baked into the skeleton)
+	 * @param contentSentinel The sentinel of the original document content (or <code>null</code> if not attached)
+	 * @param missingSlots Populated with the indexes of sentinels which could not be found in the skeleton
+	 * @return The compiled template - or <code>null</code> if any sentinel is missing (or the renders differ
+	 * 		other than by generated UUIDs)
+	 */
+	public static DocumentTemplate compile(final String xml, final String repeatXml, final List<String> sentinels,
+			final String contentSentinel, final List<Integer> missingSlots) {
+		// Find all sentinel occurrences: position -> part
+		final Map<Integer, Part> partsByPosition = Maps.newTreeMap();
+		for (int slot = 0; slot < sentinels.size(); slot++) {
+			final String sentinel = sentinels.get(slot);
+			if (sentinel == null) {
+				continue; // baked into the skeleton
+			}
+			
+			int position = xml.indexOf(sentinel);
+			if (position < 0) {
+				missingSlots.add(slot);
+			}
+			for (; position >= 0; position = xml.indexOf(sentinel, position + sentinel.length())) {
+				partsByPosition.put(position, new Part(SLOT, slot, sentinel.length()));
+			}
+		}
+
+		if (contentSentinel != null) {
+			int position = xml.indexOf(contentSentinel);
+			if (position < 0) {
+				missingSlots.add(-1);
+			}
+			for (; position >= 0; position = xml.indexOf(contentSentinel, position + contentSentinel.length())) {
+				partsByPosition.put(position, new Part(CONTENT, 0, contentSentinel.length()));
+			}
+		}
+
+		if (!missingSlots.isEmpty()) {
+			return null;
+		}
+
+		// Generated identifiers - only the UUIDs which change between renders
+		if (repeatXml.length() != xml.length()) {
+			return null;
+		}
+		final Map<String, Integer> uuidIndexes = Maps.newHashMap();
+		final Matcher matcher = UUID_PATTERN.matcher(xml);
+		while (matcher.find()) {
+			if (repeatXml.regionMatches(matcher.start(), xml, matcher.start(), matcher.end() - matcher.start())) {
+				continue; // not generated - e.g. a UUID sent by the upstream system
+			}
+			
+			final String uuid = matcher.group().toUpperCase(Locale.ROOT);
+			Integer uuidIndex = uuidIndexes.get(uuid);
+			if (uuidIndex == null) {
+				uuidIndex = uuidIndexes.size();
+				uuidIndexes.put(uuid, uuidIndex);
+			}
+			final Part part = new Part(UUID_PART, uuidIndex, matcher.end() - matcher.start());
+			part.upperCase = !matcher.group().equals(matcher.group().toLowerCase(Locale.ROOT));
+			partsByPosition.put(matcher.start(), part);
+		}
+
+		final List<Part> parts = Lists.newArrayList();
+		int start = 0;
+		for (final Map.Entry<Integer, Part> entry: partsByPosition.entrySet()) {
+			if (entry.getKey() < start) {
+				return null; // overlapping sentinels - not supported
+			}
+			if (entry.getKey() > start) {
+				parts.add(new Part(xml.substring(start, entry.getKey())));
+			}
+			parts.add(entry.getValue());
+			start = entry.getKey() + entry.getValue().length;
+		}
+		if (start < xml.length()) {
+			parts.add(new Part(xml.substring(start)));
+		}
+
+		final DocumentTemplate template = new DocumentTemplate(parts, uuidIndexes.size());
+		
+		// Everything other than the generated UUIDs must be identical in both renders
+		final String[] uuids = new String[template.uuidCount];
+		final Matcher repeatMatcher = UUID_PATTERN.matcher(repeatXml);
+		while (repeatMatcher.find()) {
+			final Part part = partsByPosition.get(repeatMatcher.start());
+			if (part != null && part.type == UUID_PART) {
+				uuids[part.index] = repeatMatcher.group();
+			}
+		}
+		return repeatXml.equals(template.render(sentinels, contentSentinel, uuids)) ? template : null;
+	}
+	
+	/**
+	 * The number of distinct generated UUIDs written in each document
+	 */
+	public int getUuidCount() {
+		return uuidCount;
+	}
+
+	/**
+	 * Writes the document using the specified slot values
+	 *
+	 * @param values The (unescaped) text of each slot
+	 * @param originalDocument The original document to embed (if attached)
+	 */
+	public void write(final List<String> values, final EncodedDocument originalDocument,
+			final OutputStream out) throws IOException {
+		write(values, originalDocument, out, new String[uuidCount]);
+	}
+	
+	/**
+	 * Writes the document using the specified slot values
+	 *
+	 * @param uuids The generated UUIDs - populated with new random UUIDs where <code>null</code>
+	 */
+	void write(final List<String> values, final EncodedDocument originalDocument,
+			final OutputStream out, final String[] uuids) throws IOException {
+		final StringBuilder escaped = new StringBuilder();
+
+		for (int index = 0; index < types.length; index++) {
+			switch (types[index]) {
+			case LITERAL:
+				out.write(literals[index]);
+				break;
+			case SLOT:
+				escaped.setLength(0);
+				escape(values.get(indexes[index]), escaped);
+				out.write(Utf8Bytes.encode(escaped));
+				break;
+			case UUID_PART:
+				String uuid = uuids[indexes[index]];
+				if (uuid == null) {
+					uuid = UUID.randomUUID().toString();
+					uuids[indexes[index]] = uuid;
+				}
+				out.write((upperCaseUuids[index] ? uuid.toUpperCase(Locale.ROOT) : uuid).getBytes(Charsets.US_ASCII));
+				break;
+			case CONTENT:
+				if (originalDocument.isSpooled()) {
+					originalDocument.getSpooledContent().writeTo(out);
+				} else {
+					out.write(originalDocument.getBase64Content().getBytes(Charsets.US_ASCII));
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unknown part type: " + types[index]);
+			}
+		}
+	}
+
+	/**
+	 * Renders the skeleton text (unescaped) - used to check the template against a second render
+	 */
+	private String render(final List<String> sentinels, final String contentSentinel, final String[] uuids) {
+		final StringBuilder xml = new StringBuilder();
+		for (int index = 0; index < types.length; index++) {
+			switch (types[index]) {
+			case LITERAL:
+				xml.append(new String(literals[index], Charsets.UTF_8));
+				break;
+			case SLOT:
+				xml.append(sentinels.get(indexes[index]));
+				break;
+			case UUID_PART:
+				final String uuid = uuids[indexes[index]];
+				if (uuid == null) {
+					return null;
+				}
+				xml.append(upperCaseUuids[index] ? uuid.toUpperCase(Locale.ROOT) : uuid.toLowerCase(Locale.ROOT));
+				break;
+			case CONTENT:
+				xml.append(contentSentinel);
+				break;
+			default:
+				throw new IllegalStateException("Unknown part type: " + types[index]);
+			}
+		}
+		return xml.toString();
+	}
+	
+	/**
+	 * Escapes the text for use in XML element content or attribute values
+	 */
+	static void escape(final String text, final StringBuilder builder) {
+		for (int index = 0; index < text.length(); index++) {
+			final char c = text.charAt(index);
+			switch (c) {
+			case '&':
+				builder.append("&amp;");
+				break;
+			case '<':
+				builder.append("&lt;");
+				break;
+			case '>':
+				builder.append("&gt;");
+				break;
+			case '"':
+				builder.append("&quot;");
+				break;
+			case '\'':
+				builder.append("&apos;");
+				break;
+			default:
+				builder.append(c);
+			}
+		}
+	}
+
+	private static class Part {
+		private final int type;
+		private final int index;
+		private final int length;
+		private final String literal;
+		private boolean upperCase;
+
+		public Part(final String literal) {
+			this.type = LITERAL;
+			this.index = 0;
+			this.length = literal.length();
+			this.literal = literal;
+		}
+
+		public Part(final int type, final int index, final int length) {
+			this.type = type;
+			this.index = index;
+			this.length = length;
+			this.literal = null;
+		}
+	}
+}
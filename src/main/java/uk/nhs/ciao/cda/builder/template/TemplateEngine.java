@@ -0,0 +1,444 @@
+package uk.nhs.ciao.cda.builder.template;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.nhs.ciao.cda.builder.json.EncodedDocument;
+import uk.nhs.ciao.cda.builder.json.JsonTransferOfCareFields;
+import uk.nhs.ciao.cda.builder.json.TransferOfCareDocument;
+import uk.nhs.ciao.cda.builder.metrics.FlightRecorderEvents;
+import uk.nhs.ciao.cda.builder.template.DocumentShape.Slot;
+import uk.nhs.interoperability.payloads.DateValue;
+import uk.nhs.interoperability.payloads.exceptions.MissingMandatoryFieldException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Writes Transfer Of Care (draft B) CDA documents from pre-compiled skeletons, instead of building
+ * and reflectively serialising the itk-payloads object graph for each document.
+ * <p>
+ * A skeleton is compiled for each distinct {@link DocumentShape} by rendering the document once via
+ * itk-payloads with a unique sentinel in place of each String / date value. Documents with the same
+ * shape are then written by copying the skeleton and substituting the (XML escaped) values directly
+ * into the output stream.
+ * <p>
+ * Correctness is checked against itk-payloads:
+ * <ul>
+ * <li>If a sentinel does not appear verbatim in the skeleton (i.e. itk-payloads transforms the
+ * value) the value is baked into the skeleton and becomes part of the cache key</li>
+ * <li>The skeleton is rendered twice - only the UUIDs which differ between the renders are treated as
+ * generated, any other UUID (e.g. sent by the upstream system) is written unchanged</li>
+ * <li>The skeleton is rendered again with a different set of sentinels, and the template output must
+ * match - i.e. the output of each slot does not depend on its content</li>
+ * <li>Each new skeleton is verified by comparing its output with the itk-payloads output for the
+ * same document (ignoring the values of the generated UUIDs and differences in character escaping)</li>
+ * <li>Every <code>verifyInterval</code>-th document written from a skeleton is verified again</li>
+ * </ul>
+ * If a shape cannot be compiled or fails verification, {@link #write(TransferOfCareDocument, OutputStream)}
+ * returns false and the caller should fall back to itk-payloads.
+ */
+public class TemplateEngine {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TemplateEngine.class);
+	private static final String SENTINEL_PREFIX = "ciaoslot";
+	private static final String ALTERNATE_SENTINEL_PREFIX = "ciaoaltslot";
+	private static final String CONTENT_SENTINEL = "ciaoslotcontentz";
+	private static final int MAX_DATE_SLOTS = 1000;
+	private static final Pattern UUID_PATTERN = Pattern.compile(
+			"[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+	private static final Pattern ENTITY_PATTERN = Pattern.compile("&(amp|lt|gt|quot|apos|#[0-9]+|#x[0-9a-fA-F]+);");
+
+	private final Cache<String, ShapeTemplates> shapes;
+	private int verifyInterval = 1000;
+
+	public TemplateEngine() {
+		this(256);
+	}
+
+	/**
+	 * @param maximumShapes The maximum number of document shapes to hold compiled skeletons for
+	 */
+	public TemplateEngine(final int maximumShapes) {
+		this.shapes = CacheBuilder.newBuilder().maximumSize(maximumShapes).build();
+	}
+
+	/**
+	 * Every <code>verifyInterval</code>-th document written from a skeleton is compared
+	 * against itk-payloads (zero disables the sampled verification)
+	 */
+	public void setVerifyInterval(final int verifyInterval) {
+		this.verifyInterval = verifyInterval;
+	}
+
+	/**
+	 * Writes the clinical document as UTF-8 encoded XML
+	 *
+	 * @return true if the document was written, false if the document is not supported by the
+	 * 		template engine (nothing is written to the stream)
+	 */
+	public boolean write(final TransferOfCareDocument document, final OutputStream out)
+			throws IOException, MissingMandatoryFieldException {
+		final JsonTransferOfCareFields properties = document.getProperties();
+		if (properties == null) {
+			return false;
+		}
+		final Object normaliseEvent = FlightRecorderEvents.begin();
+		properties.normalise();
+		FlightRecorderEvents.commit(normaliseEvent, "normalise");
+
+		final DocumentShape shape;
+		try {
+			shape = DocumentShape.of(properties);
+		} catch (IllegalArgumentException e) {
+			LOGGER.debug("Document shape is not supported by the template engine", e);
+			return false;
+		}
+
+		final boolean attached = document.isOriginalDocumentAttached();
+		final String shapeKey = shape.getKey() + (attached ? "|A:" + document.getOriginalDocument().getMediaType() : "|N");
+		final ShapeTemplates shapeTemplates = getShapeTemplates(shapeKey, document, shape);
+		final CompiledTemplate compiled = shapeTemplates.getTemplate(this, document, shape);
+		final DocumentTemplate template = compiled.template;
+		if (template == null) {
+			return false;
+		}
+
+		final List<String> values = getValues(shape);
+		final EncodedDocument originalDocument = attached ? document.getOriginalDocument() : null;
+		if (verifyInterval > 0 && compiled.uses.incrementAndGet() % verifyInterval == 0
+				&& !verify(template, values, document)) {
+			LOGGER.warn("Template output no longer matches itk-payloads - disabling the template for this document shape");
+			compiled.template = null;
+			return false;
+		}
+
+		template.write(values, originalDocument, out);
+		return true;
+	}
+
+	private ShapeTemplates getShapeTemplates(final String shapeKey, final TransferOfCareDocument document,
+			final DocumentShape shape) throws IOException, MissingMandatoryFieldException {
+		try {
+			return shapes.get(shapeKey, new Callable<ShapeTemplates>() {
+				@Override
+				public ShapeTemplates call() throws Exception {
+					return new ShapeTemplates(findBakedSlots(document, shape));
+				}
+			});
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, MissingMandatoryFieldException.class);
+			throw new IOException("Unable to compile document template", e.getCause());
+		}
+	}
+
+	/**
+	 * Renders the document with a sentinel in every slot to find the slots whose values
+	 * do not appear verbatim in the output
+	 */
+	private List<Integer> findBakedSlots(final TransferOfCareDocument document, final DocumentShape shape)
+			throws MissingMandatoryFieldException {
+		final List<Integer> bakedSlots = Lists.newArrayList();
+		final List<String> sentinels = createSentinels(shape, Collections.<Integer>emptySet(), bakedSlots, false);
+		final String xml = render(document, shape, sentinels);
+		DocumentTemplate.compile(xml, xml, sentinels, getContentSentinel(document), bakedSlots);
+		return bakedSlots;
+	}
+
+	/**
+	 * Compiles and verifies the skeleton for the document - with any baked slots holding their actual values
+	 */
+	private DocumentTemplate compile(final TransferOfCareDocument document, final DocumentShape shape,
+			final List<Integer> bakedSlots) throws MissingMandatoryFieldException {
+		if (bakedSlots.contains(-1)) {
+			return null; // The original document content is transformed
+		}
+
+		final Set<Integer> bakedSlotSet = Sets.newHashSet(bakedSlots);
+		final List<String> sentinels = createSentinels(shape, bakedSlotSet, null, false);
+		final String xml = render(document, shape, sentinels);
+		final String repeatXml = render(document, shape, sentinels);
+		final List<Integer> missingSlots = Lists.newArrayList();
+		final DocumentTemplate template = DocumentTemplate.compile(xml, repeatXml, sentinels,
+				getContentSentinel(document), missingSlots);
+		if (template == null) {
+			return null;
+		}
+		
+		// The output of each slot must not depend on its content
+		final List<String> alternates = createSentinels(shape, bakedSlotSet, null, true);
+		final EncodedDocument sentinelDocument = document.isOriginalDocumentAttached() ? new EncodedDocument(
+				document.getOriginalDocument().getName(), CONTENT_SENTINEL, document.getOriginalDocument().getMediaType()) : null;
+		if (!matches(template, alternates, sentinelDocument, render(document, shape, alternates))) {
+			LOGGER.debug("Compiled template output depends on the slot values - the document shape is not supported");
+			return null;
+		}
+
+		if (!verify(template, getValues(shape), document)) {
+			LOGGER.debug("Compiled template does not match itk-payloads output - the document shape is not supported");
+			return null;
+		}
+
+		return template;
+	}
+
+	/**
+	 * Verifies the template output against the itk-payloads output for the same document.
+	 * <p>
+	 * Spooled content is compared via its placeholder (as embedded by itk-payloads) rather than
+	 * the spooled bytes.
+	 */
+	private boolean verify(final DocumentTemplate template, final List<String> values,
+			final TransferOfCareDocument document) throws MissingMandatoryFieldException {
+		EncodedDocument originalDocument = null;
+		if (document.isOriginalDocumentAttached()) {
+			final EncodedDocument attachment = document.getOriginalDocument();
+			originalDocument = new EncodedDocument(attachment.getName(), attachment.getEmbeddedContent(),
+					attachment.getMediaType());
+		}
+
+		return matches(template, values, originalDocument, document.createClinicalDocument().serialise());
+	}
+	
+	/**
+	 * Compares the template output with the expected output - the generated UUIDs of the template
+	 * must correspond one-to-one with the UUIDs in the expected output, all other UUIDs must be equal
+	 */
+	private boolean matches(final DocumentTemplate template, final List<String> values,
+			final EncodedDocument originalDocument, final String expected) {
+		final String[] uuids = new String[template.getUuidCount()];
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try {
+			template.write(values, originalDocument, buffer, uuids);
+		} catch (IOException e) {
+			return false;
+		}
+
+		return isEquivalent(expected, buffer.toByteArray(), Arrays.asList(uuids));
+	}
+
+	/**
+	 * Creates the sentinel text for each slot - baked slots have a <code>null</code> sentinel
+	 *
+	 * @param unsupportedSlots If not null, populated with the slots which cannot hold a sentinel
+	 * @param alternate true to create the alternate set of sentinels (different text and length)
+	 */
+	private List<String> createSentinels(final DocumentShape shape, final Set<Integer> bakedSlots,
+			final List<Integer> unsupportedSlots, final boolean alternate) {
+		final List<String> sentinels = Lists.newArrayListWithCapacity(shape.getSlots().size());
+		for (int index = 0; index < shape.getSlots().size(); index++) {
+			final Slot slot = shape.getSlots().get(index);
+			String sentinel = null;
+			if (bakedSlots.contains(index)) {
+				sentinel = null;
+			} else if (!slot.isDate()) {
+				sentinel = alternate ? ALTERNATE_SENTINEL_PREFIX + index + "zz" : SENTINEL_PREFIX + index + "z";
+			} else if (index < MAX_DATE_SLOTS && slot.getText().length() >= 4 && slot.getText().substring(0, 4).matches("[0-9]{4}")) {
+				// Keep the format of the date - only the (unique) year is changed
+				sentinel = String.format(alternate ? "2%03d" : "1%03d", index) + slot.getText().substring(4);
+			} else if (unsupportedSlots != null) {
+				unsupportedSlots.add(index);
+			}
+			sentinels.add(sentinel);
+		}
+		return sentinels;
+	}
+
+	/**
+	 * Renders the document via itk-payloads with the sentinel values (restoring the original values afterwards)
+	 */
+	private String render(final TransferOfCareDocument document, final DocumentShape shape,
+			final List<String> sentinels) throws MissingMandatoryFieldException {
+		final List<Slot> slots = shape.getSlots();
+		try {
+			for (int index = 0; index < slots.size(); index++) {
+				final String sentinel = sentinels.get(index);
+				if (sentinel != null) {
+					slots.get(index).set(slots.get(index).isDate() ? new DateValue(sentinel) : sentinel);
+				}
+			}
+
+			final TransferOfCareDocument sentinelDocument;
+			if (document.isOriginalDocumentAttached()) {
+				final EncodedDocument originalDocument = document.getOriginalDocument();
+				sentinelDocument = new TransferOfCareDocument(document.getProperties(),
+						new EncodedDocument(originalDocument.getName(), CONTENT_SENTINEL, originalDocument.getMediaType()));
+			} else {
+				sentinelDocument = document;
+			}
+
+			return sentinelDocument.createClinicalDocument().serialise();
+		} finally {
+			for (final Slot slot: slots) {
+				slot.restore();
+			}
+		}
+	}
+
+	private String getContentSentinel(final TransferOfCareDocument document) {
+		return document.isOriginalDocumentAttached() ? CONTENT_SENTINEL : null;
+	}
+
+	private static List<String> getValues(final DocumentShape shape) {
+		final List<String> values = Lists.newArrayListWithCapacity(shape.getSlots().size());
+		for (final Slot slot: shape.getSlots()) {
+			values.add(slot.getText());
+		}
+		return values;
+	}
+
+	/**
+	 * Compares the itk-payloads output with the template output - ignoring the choice of character escaping.
+	 * <p>
+	 * UUIDs in the template output must be equal to the UUIDs in the expected output - except for the
+	 * specified generated UUIDs, which must correspond one-to-one (and consistently) with a UUID in the
+	 * expected output.
+	 *
+	 * @param generatedUuids The UUIDs generated by the template while writing the actual output
+	 */
+	static boolean isEquivalent(final String expected, final byte[] actual, final Collection<String> generatedUuids) {
+		final String expectedXml = normalise(expected);
+		final String actualXml = normalise(new String(actual, Charsets.UTF_8));
+		
+		final Set<String> generated = Sets.newHashSet();
+		for (final String uuid: generatedUuids) {
+			if (uuid != null) {
+				generated.add(uuid.toLowerCase(Locale.ROOT));
+			}
+		}
+		
+		final Map<String, String> expectedByGenerated = Maps.newHashMap();
+		final Map<String, String> generatedByExpected = Maps.newHashMap();
+		final Matcher expectedMatcher = UUID_PATTERN.matcher(expectedXml);
+		final Matcher actualMatcher = UUID_PATTERN.matcher(actualXml);
+		int expectedStart = 0;
+		int actualStart = 0;
+		while (true) {
+			final boolean expectedFound = expectedMatcher.find();
+			if (expectedFound != actualMatcher.find()) {
+				return false;
+			} else if (!expectedFound) {
+				return expectedXml.substring(expectedStart).equals(actualXml.substring(actualStart));
+			} else if (!expectedXml.substring(expectedStart, expectedMatcher.start()).equals(
+					actualXml.substring(actualStart, actualMatcher.start()))) {
+				return false;
+			}
+			
+			final String expectedUuid = expectedMatcher.group();
+			final String actualUuid = actualMatcher.group();
+			final String key = actualUuid.toLowerCase(Locale.ROOT);
+			if (!generated.contains(key)) {
+				if (!expectedUuid.equals(actualUuid)) {
+					return false;
+				}
+			} else {
+				final String value = expectedUuid.toLowerCase(Locale.ROOT);
+				final String previousValue = expectedByGenerated.put(key, value);
+				final String previousKey = generatedByExpected.put(value, key);
+				if ((previousValue != null && !previousValue.equals(value)) || (previousKey != null && !previousKey.equals(key))
+						|| isUpperCase(expectedUuid) != isUpperCase(actualUuid)) {
+					return false;
+				}
+			}
+			
+			expectedStart = expectedMatcher.end();
+			actualStart = actualMatcher.end();
+		}
+	}
+	
+	private static boolean isUpperCase(final String uuid) {
+		return uuid.equals(uuid.toUpperCase(Locale.ROOT));
+	}
+
+	private static String normalise(final String xml) {
+		final Matcher matcher = ENTITY_PATTERN.matcher(xml);
+		final StringBuffer result = new StringBuffer(xml.length());
+		while (matcher.find()) {
+			final String entity = matcher.group(1);
+			final String replacement;
+			if (entity.equals("amp")) {
+				replacement = "&";
+			} else if (entity.equals("lt")) {
+				replacement = "<";
+			} else if (entity.equals("gt")) {
+				replacement = ">";
+			} else if (entity.equals("quot")) {
+				replacement = "\"";
+			} else if (entity.equals("apos")) {
+				replacement = "'";
+			} else if (entity.startsWith("#x")) {
+				replacement = new String(Character.toChars(Integer.parseInt(entity.substring(2), 16)));
+			} else {
+				replacement = new String(Character.toChars(Integer.parseInt(entity.substring(1))));
+			}
+			matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+		}
+		matcher.appendTail(result);
+		return result.toString();
+	}
+
+	/**
+	 * The templates of a single document shape - one per combination of baked slot values
+	 */
+	private static class ShapeTemplates {
+		private final List<Integer> bakedSlots;
+		private final Cache<String, CompiledTemplate> templates = CacheBuilder.newBuilder().maximumSize(64).build();
+
+		public ShapeTemplates(final List<Integer> bakedSlots) {
+			this.bakedSlots = bakedSlots;
+		}
+
+		public CompiledTemplate getTemplate(final TemplateEngine engine, final TransferOfCareDocument document,
+				final DocumentShape shape) throws IOException, MissingMandatoryFieldException {
+			final List<String> bakedValues = Lists.newArrayListWithCapacity(bakedSlots.size());
+			for (final Integer slot: bakedSlots) {
+				bakedValues.add(slot < 0 ? "" : shape.getSlots().get(slot).getText());
+			}
+
+			try {
+				return templates.get(Joiner.on('\u0000').join(bakedValues), new Callable<CompiledTemplate>() {
+					@Override
+					public CompiledTemplate call() throws Exception {
+						return new CompiledTemplate(engine.compile(document, shape, bakedSlots));
+					}
+				});
+			} catch (ExecutionException e) {
+				Throwables.propagateIfPossible(e.getCause(), IOException.class, MissingMandatoryFieldException.class);
+				throw new IOException("Unable to compile document template", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * A compiled template (or <code>null</code> if the document shape is not supported)
+	 */
+	private static class CompiledTemplate {
+		private volatile DocumentTemplate template;
+		private final AtomicLong uses = new AtomicLong();
+
+		public CompiledTemplate(final DocumentTemplate template) {
+			this.template = template;
+		}
+	}
+}
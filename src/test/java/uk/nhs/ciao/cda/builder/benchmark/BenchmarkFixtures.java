@@ -0,0 +1,72 @@
+package uk.nhs.ciao.cda.builder.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.springframework.core.io.ClassPathResource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Input documents used by the benchmarks.
+ * <p>
+ * Named fixtures are either one of the bundled example resources or a synthetic document
+ * created by {@link SyntheticDocumentGenerator}:
+ * <ul>
+ * <li><code>example</code> - <code>example.json</code></li>
+ * <li><code>partial-example</code> - <code>partial-example.json</code></li>
+ * <li><code>synthetic-small</code> - 1 recipient, 3 sections of 1KB text, 16KB attachment</li>
+ * <li><code>synthetic-large</code> - 10 recipients, 3 sections of 64KB text, 4MB attachment</li>
+ * <li><code>synthetic-full</code> - 2 recipients, 2 copy recipients, 2 participants, all sections of 1KB text, 64KB attachment</li>
+ * <li><code>synthetic:</code><em>settings</em> - a synthetic document using the specified generator settings
+ * (e.g. <code>synthetic:recipients=5,sectionTextSize=8192</code> - see {@link SyntheticDocumentGenerator#configure(String)})</li>
+ * </ul>
+ */
+public final class BenchmarkFixtures {
+	private static final String SYNTHETIC_PREFIX = "synthetic:";
+
+	private BenchmarkFixtures() {
+		// Suppress default constructor
+	}
+
+	/**
+	 * Returns the JSON of the named fixture with <code>properties.attachOriginalDocument</code>
+	 * set to the specified value
+	 */
+	public static String getFixture(final ObjectMapper objectMapper, final String name,
+			final boolean attachOriginalDocument) throws IOException {
+		final ObjectNode rootNode;
+		if ("synthetic-small".equals(name)) {
+			rootNode = createSyntheticDocument(objectMapper, "recipients=1,sections=3,sectionTextSize=1024,attachmentSize=16384");
+		} else if ("synthetic-large".equals(name)) {
+			rootNode = createSyntheticDocument(objectMapper, "recipients=10,sections=3,sectionTextSize=65536,attachmentSize=4194304");
+		} else if ("synthetic-full".equals(name)) {
+			rootNode = createSyntheticDocument(objectMapper, "recipients=2,copyRecipients=2,participants=2,attachmentSize=65536");
+		} else if (name.startsWith(SYNTHETIC_PREFIX)) {
+			rootNode = createSyntheticDocument(objectMapper, name.substring(SYNTHETIC_PREFIX.length()));
+		} else {
+			rootNode = (ObjectNode)objectMapper.readTree(loadResource("/" + name + ".json"));
+		}
+
+		rootNode.with("properties").put("attachOriginalDocument", attachOriginalDocument);
+		return objectMapper.writeValueAsString(rootNode);
+	}
+
+	private static ObjectNode createSyntheticDocument(final ObjectMapper objectMapper, final String settings) {
+		final SyntheticDocumentGenerator generator = new SyntheticDocumentGenerator(objectMapper);
+		generator.configure(settings);
+		return generator.generate();
+	}
+
+	private static String loadResource(final String path) throws IOException {
+		final InputStream in = new ClassPathResource(path, BenchmarkFixtures.class).getInputStream();
+		try {
+			return new String(ByteStreams.toByteArray(in), "UTF-8");
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package uk.nhs.ciao.cda.builder.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.nhs.ciao.cda.builder.json.CDABuilderModule;
+import uk.nhs.interoperability.payloads.DateValue;
+import uk.nhs.interoperability.payloads.HL7Date;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures the deserialization of repeated HL7 dates with and without the parsed
+ * {@link DateValue} cache (<code>dateValueCacheSize=0</code> disables the cache).
+ * <p>
+ * Each invocation reads an array of dates where a small number of distinct values
+ * repeat - as the effective, authored and birth times do across a batch of documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class DateValueBenchmark {
+	private static final String[] DATES = {"20150608", "201506081432", "20150608143210", "19490101",
+		"201506090900", "20150610", "19821231", "201506081500"};
+	private static final int REPEATS = 8;
+
+	@Param({"0", "1024"})
+	public int dateValueCacheSize;
+
+	private ObjectMapper objectMapper;
+	private String json;
+
+	@Setup
+	public void setup() {
+		objectMapper = new ObjectMapper();
+		objectMapper.registerModule(new CDABuilderModule(dateValueCacheSize));
+
+		final StringBuilder builder = new StringBuilder("[");
+		for (int repeat = 0; repeat < REPEATS; repeat++) {
+			for (final String date: DATES) {
+				if (builder.length() > 1) {
+					builder.append(',');
+				}
+				builder.append('"').append(date).append('"');
+			}
+		}
+		json = builder.append(']').toString();
+	}
+
+	@Benchmark
+	public DateValue[] readDateValues() throws Exception {
+		return objectMapper.readValue(json, DateValue[].class);
+	}
+
+	@Benchmark
+	public HL7Date[] readHL7Dates() throws Exception {
+		// Uses the HL7Date -> DateValue abstract type mapping
+		return objectMapper.readValue(json, HL7Date[].class);
+	}
+}
@@ -0,0 +1,112 @@
+package uk.nhs.ciao.cda.builder.benchmark;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.processor.JsonToCDADocumentTransformer;
+import uk.nhs.ciao.cda.builder.processor.TransferOfCarePayloadHandler;
+import uk.nhs.ciao.cda.builder.route.CDABuilderRoute.ExecutionMode;
+import uk.nhs.ciao.cda.builder.route.VirtualThreads;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+
+/**
+ * Compares the platform and virtual thread execution modes of the builder routes.
+ * <p>
+ * Each invocation processes <code>inFlight</code> documents concurrently - each document is
+ * transformed and then blocks for <code>brokerLatency</code> milliseconds to simulate the JMS
+ * round trip. In platform mode the documents share a fixed pool with one thread per core, in
+ * virtual mode each document runs on its own virtual thread.
+ * <p>
+ * The virtual mode requires a Java 21+ JVM - on older JVMs the setup fails and only the
+ * platform results are reported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ExecutionModeBenchmark {
+	@Param({"platform", "virtual"})
+	public String executionMode;
+
+	@Param({"16", "1000"})
+	public int inFlight;
+
+	@Param({"5"})
+	public long brokerLatency;
+
+	private ExecutorService executorService;
+	private JsonToCDADocumentTransformer transformer;
+	private String json;
+
+	@Setup
+	public void setup() throws Exception {
+		if (ExecutionMode.parse(executionMode) == ExecutionMode.VIRTUAL) {
+			if (!VirtualThreads.isAvailable()) {
+				throw new IllegalStateException("Virtual threads are not supported by this JVM");
+			}
+			executorService = VirtualThreads.newVirtualThreadPerTaskExecutor();
+		} else {
+			executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		}
+
+		final ObjectMapper objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		transformer = new JsonToCDADocumentTransformer(objectMapper);
+		transformer.registerPayloadHandler(new TransferOfCarePayloadHandler());
+		json = BenchmarkFixtures.getFixture(objectMapper, "synthetic-small", true);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		executorService.shutdownNow();
+		executorService.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The score is the number of batches of <code>inFlight</code> documents per second
+	 */
+	@Benchmark
+	public int processInFlightDocuments() throws Exception {
+		final List<Future<ParsedDocument>> futures = Lists.newArrayListWithCapacity(inFlight);
+		for (int index = 0; index < inFlight; index++) {
+			futures.add(executorService.submit(new Callable<ParsedDocument>() {
+				@Override
+				public ParsedDocument call() throws Exception {
+					final ParsedDocument document = transformer.transform(json);
+					Thread.sleep(brokerLatency); // simulated blocking send to the broker
+					return document;
+				}
+			}));
+		}
+
+		int count = 0;
+		for (final Future<ParsedDocument> future: futures) {
+			if (future.get() != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,373 @@
+package uk.nhs.ciao.cda.builder.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.springframework.util.Base64Utils;
+
+import uk.nhs.ciao.cda.builder.processor.TransferOfCarePayloadHandler;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+
+/**
+ * Generates synthetic (but valid) transfer of care JSON documents of a controllable size and shape.
+ * <p>
+ * The documents populate the properties listed in <code>docs/transfer-of-care-json.md</code> (see
+ * {@link uk.nhs.ciao.cda.builder.json.JsonTransferOfCareFields}) - the patient, author, data enterer,
+ * authenticator, custodian, GP and encounter details, the PRSB sections, and the collections of
+ * recipients, copy recipients and participants.
+ * <p>
+ * Generated documents are reproducible: the same settings always produce the same JSON (the attachment
+ * content is derived from a fixed seed).
+ * <p>
+ * The settings can also be specified as a comma-separated list of <code>key=value</code> pairs (see
+ * {@link #configure(String)}) - e.g. <code>recipients=10,sectionTextSize=65536,attachmentSize=4194304</code>.
+ */
+public class SyntheticDocumentGenerator {
+	/**
+	 * The PRSB section properties - in the order they are populated
+	 */
+	public static final List<String> SECTIONS = Arrays.asList("clinicalSummary", "plan", "medications",
+			"admissionDetails", "allergies", "assessments", "diagnoses", "dischargeDetails", "informationGiven",
+			"investigations", "legal", "research", "concerns", "personCompletingRecord", "procedures", "alerts",
+			"socialContext");
+	
+	private static final String LOREM_IPSUM = "Lorem ipsum dolor sit amet, consectetur adipiscing elit. ";
+	
+	private final ObjectMapper objectMapper;
+	private int recipients = 1;
+	private int copyRecipients;
+	private int participants;
+	private int sections = SECTIONS.size();
+	private int sectionTextSize = 1024;
+	private boolean sectionTables = true;
+	private int attachmentSize = 16 * 1024;
+	private String attachmentMediaType = "application/pdf";
+	private boolean attachOriginalDocument = true;
+	private long seed = 1;
+	
+	public SyntheticDocumentGenerator(final ObjectMapper objectMapper) {
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+	}
+	
+	/**
+	 * The number of primary recipients (default: 1)
+	 */
+	public void setRecipients(final int recipients) {
+		Preconditions.checkArgument(recipients >= 1, "At least one recipient is required");
+		this.recipients = recipients;
+	}
+	
+	/**
+	 * The number of copy recipients (default: 0)
+	 */
+	public void setCopyRecipients(final int copyRecipients) {
+		Preconditions.checkArgument(copyRecipients >= 0, "copyRecipients must not be negative");
+		this.copyRecipients = copyRecipients;
+	}
+	
+	/**
+	 * The number of participants (default: 0)
+	 */
+	public void setParticipants(final int participants) {
+		Preconditions.checkArgument(participants >= 0, "participants must not be negative");
+		this.participants = participants;
+	}
+	
+	/**
+	 * The number of PRSB sections populated - taken in the order of {@link #SECTIONS} (default: all)
+	 */
+	public void setSections(final int sections) {
+		Preconditions.checkArgument(sections >= 0 && sections <= SECTIONS.size(),
+				"sections must be between 0 and " + SECTIONS.size());
+		this.sections = sections;
+	}
+	
+	/**
+	 * The (approximate) number of characters of each PRSB section (default: 1024)
+	 */
+	public void setSectionTextSize(final int sectionTextSize) {
+		Preconditions.checkArgument(sectionTextSize >= 0, "sectionTextSize must not be negative");
+		this.sectionTextSize = sectionTextSize;
+	}
+	
+	/**
+	 * Whether the section text is formatted as an HTML table - as sent by the upstream parsers (default: true)
+	 */
+	public void setSectionTables(final boolean sectionTables) {
+		this.sectionTables = sectionTables;
+	}
+	
+	/**
+	 * The size in bytes of the (decoded) original document (default: 16KB)
+	 */
+	public void setAttachmentSize(final int attachmentSize) {
+		Preconditions.checkArgument(attachmentSize >= 0, "attachmentSize must not be negative");
+		this.attachmentSize = attachmentSize;
+	}
+	
+	/**
+	 * The media type of the original document (default: application/pdf)
+	 */
+	public void setAttachmentMediaType(final String attachmentMediaType) {
+		this.attachmentMediaType = Preconditions.checkNotNull(attachmentMediaType);
+	}
+	
+	/**
+	 * Whether the original document is attached to the CDA document (default: true)
+	 */
+	public void setAttachOriginalDocument(final boolean attachOriginalDocument) {
+		this.attachOriginalDocument = attachOriginalDocument;
+	}
+	
+	/**
+	 * The seed of the generated attachment content (default: 1)
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+	}
+	
+	/**
+	 * Applies the settings specified as a comma-separated list of <code>key=value</code> pairs.
+	 * <p>
+	 * The keys are the property names of the setters - e.g. <code>recipients</code>, <code>copyRecipients</code>,
+	 * <code>participants</code>, <code>sections</code>, <code>sectionTextSize</code>, <code>sectionTables</code>,
+	 * <code>attachmentSize</code>, <code>attachmentMediaType</code>, <code>attachOriginalDocument</code>
+	 * and <code>seed</code>.
+	 */
+	public void configure(final String settings) {
+		for (final String setting: Splitter.on(',').trimResults().omitEmptyStrings().split(settings)) {
+			final int index = setting.indexOf('=');
+			Preconditions.checkArgument(index > 0, "Invalid setting: %s", setting);
+			
+			final String key = setting.substring(0, index).trim();
+			final String value = setting.substring(index + 1).trim();
+			if ("recipients".equals(key)) {
+				setRecipients(Integer.parseInt(value));
+			} else if ("copyRecipients".equals(key)) {
+				setCopyRecipients(Integer.parseInt(value));
+			} else if ("participants".equals(key)) {
+				setParticipants(Integer.parseInt(value));
+			} else if ("sections".equals(key)) {
+				setSections(Integer.parseInt(value));
+			} else if ("sectionTextSize".equals(key)) {
+				setSectionTextSize(Integer.parseInt(value));
+			} else if ("sectionTables".equals(key)) {
+				setSectionTables(Boolean.parseBoolean(value));
+			} else if ("attachmentSize".equals(key)) {
+				setAttachmentSize(Integer.parseInt(value));
+			} else if ("attachmentMediaType".equals(key)) {
+				setAttachmentMediaType(value);
+			} else if ("attachOriginalDocument".equals(key)) {
+				setAttachOriginalDocument(Boolean.parseBoolean(value));
+			} else if ("seed".equals(key)) {
+				setSeed(Long.parseLong(value));
+			} else {
+				throw new IllegalArgumentException("Unknown setting: " + key);
+			}
+		}
+	}
+	
+	/**
+	 * Generates the JSON document as a string
+	 */
+	public String generateJson() throws JsonProcessingException {
+		return objectMapper.writeValueAsString(generate());
+	}
+	
+	/**
+	 * Generates the JSON document
+	 */
+	public ObjectNode generate() {
+		final ObjectNode rootNode = objectMapper.createObjectNode();
+		final ObjectNode properties = rootNode.putObject("properties");
+		
+		properties.put("itkHandlingSpec", TransferOfCarePayloadHandler.INTERACTION);
+		properties.put("attachOriginalDocument", attachOriginalDocument);
+		addDocumentDetails(properties);
+		addPatient(properties);
+		addAuthorship(properties);
+		addEncounter(properties);
+		
+		final ArrayNode recipientsNode = properties.putArray("recipients");
+		for (int index = 0; index < recipients; index++) {
+			addRecipient(recipientsNode.addObject(), "Recipient", index);
+		}
+		
+		final ArrayNode copyRecipientsNode = properties.putArray("copyRecipients");
+		for (int index = 0; index < copyRecipients; index++) {
+			addRecipient(copyRecipientsNode.addObject(), "Copy Recipient", index);
+		}
+		
+		final ArrayNode participantsNode = properties.putArray("participants");
+		for (int index = 0; index < participants; index++) {
+			addParticipant(participantsNode.addObject(), index);
+		}
+		
+		for (final String section: SECTIONS.subList(0, sections)) {
+			properties.put(section, createSectionText(section));
+		}
+		
+		final ObjectNode originalDocument = rootNode.putObject("originalDocument");
+		originalDocument.put("name", "Synthetic" + getExtension());
+		originalDocument.put("mediaType", attachmentMediaType);
+		originalDocument.put("content", createAttachmentContent());
+		
+		return rootNode;
+	}
+	
+	private void addDocumentDetails(final ObjectNode properties) {
+		properties.put("documentTitle", "Discharge Summary");
+		properties.put("documentEffectiveTime", "20150906120000");
+		properties.put("documentSetID", "8f4a1b2c-3d4e-4f50-8a6b-7c8d9e0f1a2b");
+		properties.put("documentVersionNumber", 1);
+		properties.put("careSetting", "Urology");
+		properties.put("consent", "425691002");
+		properties.put("custodianODSCode", "RJZ");
+		properties.put("custodianOrganisationName", "Synthetic Hospital NHS Foundation Trust");
+	}
+	
+	private void addPatient(final ObjectNode properties) {
+		properties.put("patientTitle", "Mrs");
+		properties.put("patientGivenName", "Mary");
+		properties.put("patientFamilyName", "Synthetic");
+		properties.put("patientBirthDate", "19560905");
+		properties.put("patientNHSNo", "9999999484");
+		properties.put("patientNHSNoIsTraced", true);
+		properties.put("patientLocalID", "K1234567");
+		properties.put("patientLocalIDAssigningAuthority", "RJZ:SYNTHETIC HOSPITAL NHS FOUNDATION TRUST");
+		properties.put("patientGender", "Not known");
+		properties.putArray("patientAddressLine").add("36 Example Road").add("Catford");
+		properties.put("patientAddressCity", "London");
+		properties.put("patientAddressPostcode", "SE6 1BU");
+		properties.put("patientAddressUse", "PHYS");
+		properties.put("patientTelephone", "0123657276");
+		properties.put("patientMobile", "0753625536");
+		
+		properties.put("usualGPOrgName", "The Synthetic Practice");
+		properties.put("usualGPODSCode", "G81001");
+		properties.put("usualGPTelephone", "0123456726");
+		properties.put("usualGPFax", "0152635620");
+		properties.putArray("usualGPAddressLine").add("Synthetic Health Centre").add("201 Example Road");
+		properties.put("usualGPAddressPostcode", "SE23 1HU");
+	}
+	
+	private void addAuthorship(final ObjectNode properties) {
+		properties.put("timeAuthored", "20150906120000");
+		properties.put("documentAuthorRole", "NR0050");
+		properties.put("documentAuthorSDSID", "100000000001");
+		properties.put("documentAuthorSDSRoleID", "100000000002");
+		properties.put("documentAuthorTelephone", "0123253427");
+		properties.put("documentAuthorTitle", "Dr");
+		properties.put("documentAuthorGivenName", "Jack");
+		properties.put("documentAuthorFamilyName", "Author");
+		properties.putArray("documentAuthorAddressLine").add("Synthetic Hospital").add("Example Street");
+		properties.put("documentAuthorOrganisationODSID", "RJZ");
+		properties.put("documentAuthorOrganisationName", "Synthetic Hospital NHS Foundation Trust");
+		properties.put("documentAuthorWorkgroupName", "Medical Ward 1");
+		
+		properties.put("dataEntererSDSID", "100000000003");
+		properties.put("dataEntererSDSRoleID", "100000000004");
+		properties.put("dataEntererTitle", "Mr");
+		properties.put("dataEntererGivenName", "Data");
+		properties.put("dataEntererFamilyName", "Enterer");
+		
+		properties.put("authenticatorSDSID", "100000000005");
+		properties.put("authenticatorSDSRoleID", "100000000006");
+		properties.put("authenticatorTitle", "Dr");
+		properties.put("authenticatorGivenName", "Auth");
+		properties.put("authenticatorFamilyName", "Enticator");
+		properties.put("authenticatedTime", "20150906130000");
+		
+		properties.put("medicationsPharmacistScreeningAuthorFullName", "John Pharmacist");
+		properties.put("medicationsPharmacistScreeningAuthorTelephone", "546");
+		properties.put("medicationsPharmacistScreeningDate", "20150906110000");
+		properties.put("medicationsPharmacistScreeningAuthorOrgName", "Synthetic Hospital NHS Foundation Trust");
+		properties.put("medicationsPharmacistScreeningAuthorODSCode", "RJZ");
+	}
+	
+	private void addEncounter(final ObjectNode properties) {
+		properties.put("encounterFromTime", "20150901120000");
+		properties.put("encounterToTime", "20150906120000");
+		properties.put("encounterLocationName", "Medical Ward 1");
+		properties.putArray("encounterLocationAddressLine").add("Synthetic Hospital").add("Example Street");
+	}
+	
+	private void addRecipient(final ObjectNode recipient, final String role, final int index) {
+		recipient.put("title", "Dr");
+		recipient.putArray("givenName").add(role.replace(" ", ""));
+		recipient.put("familyName", "Number" + index);
+		recipient.put("fullName", "Dr " + role + " " + index);
+		final ObjectNode address = recipient.putObject("address");
+		address.putArray("line").add(index + " Example Street").add("Leeds");
+		address.put("postcode", "LS1 4HT");
+		recipient.put("telephone", "0113" + String.format(Locale.ROOT, "%07d", index));
+		recipient.put("jobRole", "NR0050");
+		recipient.put("odsCode", "R" + index);
+		recipient.put("organisationName", role + " Organisation " + index);
+		recipient.put("sdsId", "4000000" + index);
+		recipient.put("sdsRoleId", "5000000" + index);
+	}
+	
+	private void addParticipant(final ObjectNode participant, final int index) {
+		participant.putArray("givenName").add("Participant");
+		participant.put("familyName", "Number" + index);
+		participant.put("fullName", "Participant " + index);
+		participant.putObject("address").putArray("line").add(index + " Participant Close").add("Leeds");
+		participant.put("telephone", "0123456737");
+		participant.put("odsCode", "P" + index);
+		participant.put("organisationName", "Participant Organisation " + index);
+		participant.put("sdsId", "2000000" + index);
+		participant.put("sdsRoleId", "3000000" + index);
+		participant.put("type", "DIS");
+	}
+	
+	/**
+	 * Section text of the configured size - as an HTML table of rows (like the upstream parsers) or plain text
+	 */
+	private String createSectionText(final String section) {
+		final StringBuilder text = new StringBuilder(sectionTextSize + 128);
+		if (!sectionTables) {
+			appendText(text, sectionTextSize);
+			return text.toString();
+		}
+		
+		text.append("<table width=\"100%\"><tbody>");
+		for (int row = 1; text.length() < sectionTextSize; row++) {
+			text.append("<tr><td>").append(section).append(' ').append(row).append("</td><td>");
+			appendText(text, Math.min(256, Math.max(1, sectionTextSize - text.length())));
+			text.append("</td></tr>");
+		}
+		return text.append("</tbody></table>").toString();
+	}
+	
+	private static void appendText(final StringBuilder text, final int length) {
+		for (int remaining = length; remaining > 0; remaining -= LOREM_IPSUM.length()) {
+			text.append(LOREM_IPSUM, 0, Math.min(remaining, LOREM_IPSUM.length()));
+		}
+	}
+	
+	private String createAttachmentContent() {
+		final byte[] attachment = new byte[attachmentSize];
+		new Random(seed).nextBytes(attachment); // fixed seed - reproducible inputs
+		return Base64Utils.encodeToString(attachment);
+	}
+	
+	private String getExtension() {
+		if (attachmentMediaType.endsWith("/pdf")) {
+			return ".pdf";
+		} else if (attachmentMediaType.endsWith("wordprocessingml.document")) {
+			return ".docx";
+		} else if (attachmentMediaType.startsWith("text/")) {
+			return ".txt";
+		}
+		return ".bin";
+	}
+}
@@ -0,0 +1,85 @@
+package uk.nhs.ciao.cda.builder.benchmark;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.Base64Utils;
+
+import uk.nhs.ciao.cda.builder.json.JsonTransferOfCareFields;
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.json.TransferOfCareDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Unit tests for {@link SyntheticDocumentGenerator}
+ * <p>
+ * Generated documents are bound as transfer of care documents (unknown properties are silently
+ * ignored by the binding - so the bound values are checked) and rendered by itk-payloads.
+ */
+public class SyntheticDocumentGeneratorTest {
+	private ObjectMapper objectMapper;
+	private SyntheticDocumentGenerator generator;
+
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		generator = new SyntheticDocumentGenerator(objectMapper);
+	}
+
+	@Test
+	public void testGeneratedDocumentIsBound() throws Exception {
+		generator.configure("recipients=3, copyRecipients=2, participants=4, attachmentSize=1000, attachmentMediaType=text/plain");
+
+		final ObjectNode rootNode = generator.generate();
+		final TransferOfCareDocument document = objectMapper.treeToValue(rootNode, TransferOfCareDocument.class);
+		final JsonTransferOfCareFields fields = document.getProperties();
+
+		Assert.assertEquals(3, fields.getRecipients().size());
+		Assert.assertEquals(2, fields.getCopyRecipients().size());
+		Assert.assertEquals(4, fields.getParticipants().size());
+		Assert.assertEquals("Synthetic", fields.getPatientName().getFamilyName());
+		Assert.assertEquals("Author", fields.getDocumentAuthorName().getFamilyName());
+		Assert.assertEquals("text/plain", rootNode.path("originalDocument").path("mediaType").asText());
+		Assert.assertEquals(1000, Base64Utils.decodeFromString(
+				rootNode.path("originalDocument").path("content").asText()).length);
+	}
+
+	@Test
+	public void testGeneratedDocumentIsRendered() throws Exception {
+		generator.setCopyRecipients(1);
+		generator.setParticipants(1);
+		generator.setSectionTextSize(300);
+
+		final TransferOfCareDocument document = objectMapper.readValue(generator.generateJson(), TransferOfCareDocument.class);
+		final String xml = document.createClinicalDocument().serialise();
+
+		Assert.assertTrue(xml.contains("Recipient Organisation 0"));
+		Assert.assertTrue(xml.contains("Lorem ipsum"));
+	}
+
+	@Test
+	public void testSectionTextSize() {
+		generator.setSections(1);
+		generator.setSectionTables(false);
+		generator.setSectionTextSize(5000);
+
+		final String text = generator.generate().path("properties").path(SyntheticDocumentGenerator.SECTIONS.get(0)).asText();
+		Assert.assertEquals(5000, text.length());
+	}
+
+	@Test
+	public void testGeneratedDocumentIsReproducible() throws Exception {
+		final String expected = generator.generateJson();
+		Assert.assertEquals(expected, new SyntheticDocumentGenerator(objectMapper).generateJson());
+
+		generator.setSeed(2);
+		Assert.assertFalse(expected.equals(generator.generateJson()));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownSettingIsRejected() {
+		generator.configure("recipient=2");
+	}
+}
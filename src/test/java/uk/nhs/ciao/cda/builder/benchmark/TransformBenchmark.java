@@ -0,0 +1,123 @@
+package uk.nhs.ciao.cda.builder.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.json.TransferOfCareDocument;
+import uk.nhs.ciao.cda.builder.processor.JsonToCDADocumentTransformer;
+import uk.nhs.ciao.cda.builder.processor.OutgoingDocument;
+import uk.nhs.ciao.cda.builder.processor.TransferOfCarePayloadHandler;
+import uk.nhs.ciao.cda.builder.route.ParsedDocumentDataFormat;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+import uk.nhs.interoperability.payloads.Payload;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * JMH benchmarks for the JSON to CDA transform pipeline.
+ * <p>
+ * {@link #transform()} measures the full {@link JsonToCDADocumentTransformer#transform(String)} call,
+ * the remaining benchmarks measure each stage of the pipeline in isolation (using the output of
+ * the previous stage as pre-computed input).
+ * <p>
+ * Throughput and sampled latency (p50/p99/p999) are reported for each benchmark. Run via the
+ * <code>benchmark</code> maven profile to also report the allocation rate (<code>-prof gc</code>).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class TransformBenchmark {
+	@Param({"example", "partial-example", "synthetic-small", "synthetic-large"})
+	public String fixture;
+
+	@Param({"true", "false"})
+	public boolean attachOriginalDocument;
+
+	private ObjectMapper objectMapper;
+	private ParsedDocumentDataFormat marshalDataFormat;
+	private TransferOfCarePayloadHandler payloadHandler;
+	private JsonToCDADocumentTransformer transformer;
+
+	// Pre-computed inputs to each stage
+	private String json;
+	private byte[] jsonBytes;
+	private JsonNode rootNode;
+	private TransferOfCareDocument transferOfCareDocument;
+	private Payload payload;
+	private ParsedDocument parsedDocument;
+
+	@Setup
+	public void setup() throws Exception {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		marshalDataFormat = new ParsedDocumentDataFormat(objectMapper); // as used by the route to marshal the outgoing document
+		payloadHandler = new TransferOfCarePayloadHandler();
+
+		transformer = new JsonToCDADocumentTransformer(objectMapper);
+		transformer.registerPayloadHandler(payloadHandler);
+
+		json = BenchmarkFixtures.getFixture(objectMapper, fixture, attachOriginalDocument);
+		jsonBytes = json.getBytes(Charsets.UTF_8);
+		rootNode = objectMapper.readTree(json);
+		transferOfCareDocument = objectMapper.readValue(rootNode.traverse(), TransferOfCareDocument.class);
+		payload = transferOfCareDocument.createClinicalDocument();
+		parsedDocument = transformer.transform(json);
+	}
+
+	@Benchmark
+	public ParsedDocument transform() throws Exception {
+		return transformer.transform(json);
+	}
+
+	@Benchmark
+	public OutgoingDocument transformToStream() throws Exception {
+		// Encoded in chunks - the serialised string is still created unless a streaming handler writes the document
+		return transformer.transformTo(jsonBytes, ByteStreams.nullOutputStream());
+	}
+
+	@Benchmark
+	public JsonNode readTree() throws Exception {
+		return objectMapper.readTree(json);
+	}
+
+	@Benchmark
+	public Payload transformPayload() throws Exception {
+		return payloadHandler.transformPayload(objectMapper, rootNode.traverse());
+	}
+
+	@Benchmark
+	public Payload createClinicalDocument() throws Exception {
+		// normalise() is idempotent - the same instance can be re-used across invocations
+		return transferOfCareDocument.createClinicalDocument();
+	}
+
+	@Benchmark
+	public String serialise() {
+		return payload.serialise();
+	}
+
+	@Benchmark
+	public byte[] marshalParsedDocument() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		marshalDataFormat.marshal(null, parsedDocument, out);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,36 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.interoperability.payloads.DateValue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Unit tests for {@link DateValueDeserializer}
+ */
+public class DateValueDeserializerTest {
+	private ObjectMapper objectMapper;
+	
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+	}
+	
+	@Test
+	public void testCachedDatesAreNotShared() throws Exception {
+		final DateValue first = objectMapper.readValue("\"201506201432\"", DateValue.class);
+		final DateValue second = objectMapper.readValue("\"201506201432\"", DateValue.class);
+		
+		assertNotSame(first, second);
+		assertEquals(first.toString(), second.toString());
+		
+		// Changing one document's date must not affect any other document
+		first.getDate().setTime(0);
+		assertFalse(second.getDate().getTime() == 0);
+		assertEquals(second.toString(), objectMapper.readValue("\"201506201432\"", DateValue.class).toString());
+	}
+}
@@ -0,0 +1,28 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link EncodedDocument}
+ */
+public class EncodedDocumentTest {
+	@Test
+	public void testValidBase64IsAccepted() {
+		assertTrue(EncodedDocument.isValidBase64(null));
+		assertTrue(EncodedDocument.isValidBase64(""));
+		assertTrue(EncodedDocument.isValidBase64("dGhlIGNvbnRlbnQgb2YgdGhlIG9yaWdpbmFsIGRvY3VtZW50"));
+		assertTrue(EncodedDocument.isValidBase64("YQ=="));
+		assertTrue(EncodedDocument.isValidBase64("YWI="));
+		assertTrue(EncodedDocument.isValidBase64("YWJj\r\nZGVm"));
+	}
+	
+	@Test
+	public void testInvalidBase64IsRejected() {
+		assertFalse(EncodedDocument.isValidBase64("YWJ"));
+		assertFalse(EncodedDocument.isValidBase64("YW=j"));
+		assertFalse(EncodedDocument.isValidBase64("Y==="));
+		assertFalse(EncodedDocument.isValidBase64("YWJj!GVm"));
+	}
+}
@@ -0,0 +1,118 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonParser.Feature;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link FlatBeanDeserializer}
+ * <p>
+ * Each document is deserialized via the flat deserializers and via the standard (mixin-based)
+ * jackson handling - the resulting objects must be equivalent
+ */
+public class FlatBeanDeserializerTest {
+	private ObjectMapper flatObjectMapper;
+	private ObjectMapper standardObjectMapper;
+	private ObjectMapper fieldObjectMapper;
+	
+	@Before
+	public void setup() {
+		flatObjectMapper = createObjectMapper(true);
+		standardObjectMapper = createObjectMapper(false);
+		
+		// Compares the objects by their (private) fields
+		fieldObjectMapper = new ObjectMapper();
+		fieldObjectMapper.setVisibility(PropertyAccessor.ALL, Visibility.NONE);
+		fieldObjectMapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+		fieldObjectMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+	}
+	
+	@Test
+	public void testExampleIsEquivalent() throws Exception {
+		assertEquivalent(loadProperties("/example.json"));
+	}
+	
+	@Test
+	public void testPartialExampleIsEquivalent() throws Exception {
+		assertEquivalent(loadProperties("/partial-example.json"));
+	}
+	
+	@Test
+	public void testKingsStaticIsEquivalent() throws Exception {
+		assertEquivalent(loadResource("/kings-static.json"));
+	}
+	
+	@Test
+	public void testUnwrappedPropertiesAreEquivalent() throws Exception {
+		assertEquivalent("{"
+				+ "\"PATIENTfullname\": \"Mary Example\", \"patientGivenName\": \"Mary\", \"patientAddressLine\": [\"1 Street\", \"Leeds\"],"
+				+ "\"patientAddressPostcode\": \"LS1 4HT\", \"patientAddressUseablePeriod\": {\"from\": \"20150101\"},"
+				+ "\"usualGPAddressCity\": \"London\", \"documentAuthorAddressFull\": \"1 Road\", \"documentAuthorFullName\": \"Dr Author\","
+				+ "\"dataEntererFamilyName\": \"Enterer\", \"authenticatorTitle\": \"Dr\","
+				+ "\"eventCode\": \"123\", \"eventDisplayName\": \"Event\", \"eventPerformerFullName\": \"Dr Performer\","
+				+ "\"encounterCode\": \"456\", \"encounterLocationCode\": \"789\", \"encounterLocationOid\": \"1.2.3\","
+				+ "\"encounterLocationAddressPostcode\": \"SE1 1AA\", \"medicationsPharmacistScreeningAuthorFullName\": \"Pharmacist\","
+				+ "\"recipients\": [{\"fullName\": \"First\", \"odsCode\": \"A\"}],"
+				+ "\"recipientFullName\": \"Second\", \"recipientAddress\": {\"postcode\": \"LS2 9JT\"},"
+				+ "\"copyRecipientOrganisationName\": \"Copy\", \"participantFullName\": \"Participant\","
+				+ "\"unknownProperty\": {\"nested\": [1, 2, 3]}, \"patientUnknown\": \"ignored\","
+				+ "\"documentTitle\": \"Title\", \"patientNHSNo\": \"1234567890\", \"patientGender\": \"F\", \"attachOriginalDocument\": false"
+				+ "}");
+	}
+	
+	@Test
+	public void testEmptyObjectIsEquivalent() throws Exception {
+		assertEquivalent("{}");
+	}
+	
+	private void assertEquivalent(final String json) throws Exception {
+		final JsonTransferOfCareFields expected = standardObjectMapper.readValue(json, JsonTransferOfCareFields.class);
+		final JsonTransferOfCareFields actual = flatObjectMapper.readValue(json, JsonTransferOfCareFields.class);
+		
+		Assert.assertEquals(toFields(expected), toFields(actual));
+		
+		expected.normalise();
+		actual.normalise();
+		Assert.assertEquals(toFields(expected), toFields(actual));
+	}
+	
+	private JsonNode toFields(final Object value) {
+		return fieldObjectMapper.valueToTree(value);
+	}
+	
+	private ObjectMapper createObjectMapper(final boolean flatDeserializers) {
+		final ObjectMapper objectMapper = new ObjectMapper();
+		objectMapper.registerModule(new CDABuilderModule(DateValueDeserializer.DEFAULT_CACHE_SIZE, flatDeserializers));
+		objectMapper.enable(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY);
+		objectMapper.enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_PROPERTIES);
+		objectMapper.enable(Feature.ALLOW_COMMENTS);
+		return objectMapper;
+	}
+	
+	private String loadProperties(final String path) throws Exception {
+		return standardObjectMapper.writeValueAsString(standardObjectMapper.readTree(loadResource(path)).get("properties"));
+	}
+	
+	private String loadResource(final String path) throws Exception {
+		final InputStream in = new ClassPathResource(path, FlatBeanDeserializerTest.class).getInputStream();
+		try {
+			return new String(ByteStreams.toByteArray(in), "UTF-8");
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package uk.nhs.ciao.cda.builder.json;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.interoperability.payloads.vocabularies.generated.Sex;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Unit tests for {@link VocabularyEntryDeserializer} and the {@link CodeLookup} it matches codes with
+ */
+public class VocabularyEntryDeserializerTest {
+	private ObjectMapper objectMapper;
+
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+	}
+
+	@Test
+	public void testCaseInsensitiveVocabulary() throws Exception {
+		assertEquals("1", readSex(objectMapper, "m").getCode());
+		assertEquals("1", readSex(objectMapper, "M").getCode());
+		assertEquals("1", readSex(objectMapper, "Male").getCode());
+		assertEquals("1", readSex(objectMapper, "MALE").getCode());
+		assertEquals("2", readSex(objectMapper, "female").getCode());
+		assertEquals("9", readSex(objectMapper, "Not Specified").getCode());
+	}
+
+	@Test
+	public void testCaseSensitiveVocabulary() throws Exception {
+		final VocabularyEntryDeserializer<Sex> deserializer = new VocabularyEntryDeserializer<Sex>(
+				Sex.class, new Sex[0]);
+		deserializer.addEntry("M", Sex._1);
+
+		final SimpleModule module = new SimpleModule();
+		module.addDeserializer(Sex.class, deserializer);
+		final ObjectMapper caseSensitiveMapper = new ObjectMapper();
+		caseSensitiveMapper.registerModule(module);
+
+		assertSame(Sex._1, readSex(caseSensitiveMapper, "M"));
+		assertUnsupportedCode(caseSensitiveMapper, "m");
+	}
+
+	@Test
+	public void testSurroundingWhitespaceIsIgnored() throws Exception {
+		assertEquals("1", readSex(objectMapper, " m").getCode());
+		assertEquals("1", readSex(objectMapper, "Male\t").getCode());
+		assertEquals("2", readSex(objectMapper, "\n  F  \r\n").getCode());
+	}
+
+	@Test
+	public void testPrefixOfKnownCodeIsUnsupported() throws Exception {
+		assertUnsupportedCode(objectMapper, "Mal");
+		assertUnsupportedCode(objectMapper, "Males");
+		assertUnsupportedCode(objectMapper, "not");
+	}
+
+	@Test
+	public void testUnknownCodeIsUnsupported() throws Exception {
+		assertUnsupportedCode(objectMapper, "X");
+		assertUnsupportedCode(objectMapper, " X ");
+	}
+
+	@Test
+	public void testTokenBufferInput() throws Exception {
+		final TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+		buffer.writeString("  Female ");
+
+		assertEquals("2", objectMapper.readValue(buffer.asParser(), Sex.class).getCode());
+
+		final TokenBuffer unknownBuffer = new TokenBuffer(objectMapper, false);
+		unknownBuffer.writeString("Fem");
+		try {
+			objectMapper.readValue(unknownBuffer.asParser(), Sex.class);
+			fail("Expected an unsupported code");
+		} catch (final JsonMappingException e) {
+			assertUnsupportedCodeMessage(e, "Fem");
+		}
+	}
+
+	@Test
+	public void testCodeLookupMatchesWholeCodes() {
+		final CodeLookup<String> lookup = new CodeLookup<String>(true);
+		lookup.put("ab", "first");
+		lookup.put("abc", "second");
+
+		assertEquals("first", lookup.get("ab"));
+		assertEquals("second", lookup.get("abc"));
+		assertNull(lookup.get("a"));
+		assertNull(lookup.get("abcd"));
+		assertNull(lookup.get("AB"));
+
+		final char[] chars = "xxabcxx".toCharArray();
+		assertEquals("first", lookup.get(chars, 2, 2));
+		assertEquals("second", lookup.get(chars, 2, 3));
+		assertNull(lookup.get(chars, 1, 3));
+	}
+
+	@Test
+	public void testCaseInsensitiveCodeLookup() {
+		final CodeLookup<String> lookup = new CodeLookup<String>(false);
+		lookup.put("Male", "value");
+
+		assertEquals("value", lookup.get("male"));
+		assertEquals("value", lookup.get("MALE"));
+		assertEquals("value", lookup.get("xMaLex".toCharArray(), 1, 4));
+		assertNull(lookup.get("mal"));
+	}
+
+	private static Sex readSex(final ObjectMapper mapper, final String code) throws Exception {
+		return mapper.readValue(mapper.writeValueAsString(code), Sex.class);
+	}
+
+	private static void assertUnsupportedCode(final ObjectMapper mapper, final String code) throws Exception {
+		try {
+			readSex(mapper, code);
+			fail("Expected an unsupported code: " + code);
+		} catch (final JsonMappingException e) {
+			assertUnsupportedCodeMessage(e, code.trim());
+		}
+	}
+
+	/**
+	 * The message raised by <code>_deserialize</code> may be wrapped by Jackson - so the
+	 * whole cause chain is checked
+	 */
+	private static void assertUnsupportedCodeMessage(final Throwable exception, final String code) {
+		for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+			if (cause.getMessage() != null && cause.getMessage().contains("Unsupported code: " + code)) {
+				return;
+			}
+		}
+		fail("Expected an unsupported code message for: " + code + " - " + exception);
+	}
+}
@@ -0,0 +1,420 @@
+package uk.nhs.ciao.cda.builder.load;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+
+import uk.nhs.ciao.camel.CamelApplicationRunner;
+import uk.nhs.ciao.camel.CamelApplicationRunner.AsyncExecution;
+import uk.nhs.ciao.cda.builder.CDABuilderApplication;
+import uk.nhs.ciao.cda.builder.benchmark.BenchmarkFixtures;
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.metrics.LatencyHistogram;
+import uk.nhs.ciao.cda.builder.metrics.RouteMetrics;
+import uk.nhs.ciao.configuration.CIAOConfig;
+import uk.nhs.ciao.configuration.impl.MemoryCipProperties;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Load and soak test harness - pushes documents through the real CDA builder route using the
+ * embedded ActiveMQ broker (<code>activemq-embedded</code> messaging config).
+ * <p>
+ * The application is started once per step of the scaling curve (<code>load.consumers</code>), with the
+ * route configured for that number of concurrent consumers. Documents are either sent at a fixed rate
+ * (<code>load.mode=rate</code>) or with a fixed number in flight (<code>load.mode=closed</code>). For each
+ * step the sustained msgs/sec, end-to-end latency percentiles and heap after GC are reported:
+ * <ul>
+ * <li><code>target/load-test/scaling.csv</code> - one row per step</li>
+ * <li><code>target/load-test/intervals.csv</code> - one row per report interval (to spot leaks during soak runs)</li>
+ * </ul>
+ * <p>
+ * Run via the <code>load</code> maven profile, e.g.
+ * <code>mvn verify -P load -Dload.consumers=1,2,4,8 -Dload.durationSeconds=3600</code>. Supported system properties:
+ * <dl>
+ * <dt>load.fixture</dt><dd>The benchmark fixture to send - see {@link BenchmarkFixtures} (default: synthetic-small)</dd>
+ * <dt>load.attachOriginalDocument</dt><dd>Whether the original document is attached (default: true)</dd>
+ * <dt>load.mode</dt><dd><code>closed</code> or <code>rate</code> (default: closed)</dd>
+ * <dt>load.concurrency</dt><dd>The number of documents in flight in closed mode (default: 32)</dd>
+ * <dt>load.rate</dt><dd>The documents sent per second in rate mode (default: 100)</dd>
+ * <dt>load.consumers</dt><dd>Comma-separated consumer counts of the scaling curve (default: 1,2,4,8)</dd>
+ * <dt>load.warmUpSeconds</dt><dd>The time per step before measurement starts (default: 10)</dd>
+ * <dt>load.durationSeconds</dt><dd>The measured time per step (default: 60)</dd>
+ * <dt>load.reportIntervalSeconds</dt><dd>The time between interval reports (default: 10)</dd>
+ * <dt>load.senders</dt><dd>The number of threads sending documents (default: 4)</dd>
+ * <dt>load.config.*</dt><dd>Additional CIAO properties for the application (when run directly), e.g.
+ * 		<code>-Dload.config.cdaBuilderRoutes.transformThreads=4 -Dload.consumers=4,8,16</code> (each step needs
+ * 		at least <code>transformThreads</code> consumers)</dd>
+ * </dl>
+ */
+public class LoadTestHarness {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LoadTestHarness.class);
+	private static final String CIP_NAME = "ciao-cda-builder";
+	private static final String INPUT_URI = "jms:queue:enriched-documents";
+	private static final String OUTPUT_URI = "jms:queue:cda-documents";
+	private static final String SENT_NANOS_HEADER = "loadTestSentNanos";
+	private static final String ROUTE_NAME = "default";
+	private static final String CONFIG_PREFIX = "load.config.";
+	private static final long DRAIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final double BYTES_PER_MB = 1024 * 1024;
+	
+	private final String fixture = System.getProperty("load.fixture", "synthetic-small");
+	private final boolean attachOriginalDocument = Boolean.parseBoolean(System.getProperty("load.attachOriginalDocument", "true"));
+	private final boolean closedLoop = !"rate".equalsIgnoreCase(System.getProperty("load.mode", "closed"));
+	private final int concurrency = Integer.getInteger("load.concurrency", 32);
+	private final int rate = Integer.getInteger("load.rate", 100);
+	private final String[] consumers = System.getProperty("load.consumers", "1,2,4,8").split(",");
+	private final long warmUpSeconds = Long.getLong("load.warmUpSeconds", 10);
+	private final long durationSeconds = Long.getLong("load.durationSeconds", 60);
+	private final long reportIntervalSeconds = Long.getLong("load.reportIntervalSeconds", 10);
+	private final int senders = Integer.getInteger("load.senders", 4);
+	private final File outputFolder = new File("target/load-test");
+	
+	public static void main(final String[] args) throws Exception {
+		new LoadTestHarness().run();
+	}
+	
+	public void run() throws Exception {
+		final String json = BenchmarkFixtures.getFixture(new ObjectMapperConfigurator().createObjectMapper(),
+				fixture, attachOriginalDocument);
+		
+		if (!outputFolder.isDirectory() && !outputFolder.mkdirs()) {
+			throw new IOException("Unable to create output folder: " + outputFolder);
+		}
+		
+		final Writer scaling = new FileWriter(new File(outputFolder, "scaling.csv"));
+		final Writer intervals = new FileWriter(new File(outputFolder, "intervals.csv"));
+		try {
+			scaling.write("consumers,mode,target,durationSeconds,sent,received,failures,msgsPerSec," +
+					"p50Millis,p99Millis,p999Millis,maxMillis,heapAfterGcStartMB,heapAfterGcEndMB\n");
+			intervals.write("consumers,elapsedSeconds,msgsPerSec,p99Millis,heapAfterGcMB\n");
+			
+			for (final String value: consumers) {
+				final StepResult result = runStep(Integer.parseInt(value.trim()), json, intervals);
+				scaling.write(result.toCsv());
+				scaling.flush();
+				LOGGER.info("Completed step: {}", result);
+			}
+		} finally {
+			scaling.close();
+			intervals.close();
+		}
+	}
+	
+	/**
+	 * Starts the application with the specified number of consumers and runs a single load step
+	 */
+	private StepResult runStep(final int consumerCount, final String json, final Writer intervals) throws Exception {
+		LOGGER.info("Starting step: consumers={}, mode={}", consumerCount, closedLoop ? "closed" : "rate");
+		
+		final ExecutorService applicationExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService senderExecutor = Executors.newFixedThreadPool(senders);
+		final AsyncExecution execution = CamelApplicationRunner.runApplication(
+				new CDABuilderApplication(createConfig(consumerCount)), applicationExecutor);
+		try {
+			final CamelContext camelContext = execution.getRunner().getCamelContexts().get(0);
+			final Step step = new Step(camelContext, json, Math.max(1, consumerCount));
+			step.start(senderExecutor);
+			
+			// Warm-up - the results are discarded
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmUpSeconds));
+			System.gc();
+			final long heapAfterGcStart = getHeapAfterGc();
+			step.resetMeasurements();
+			
+			final long startNanos = System.nanoTime();
+			final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+			long intervalReceived = step.received.get();
+			long intervalStart = startNanos;
+			while (System.nanoTime() < endNanos) {
+				final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(endNanos - System.nanoTime());
+				Thread.sleep(Math.max(1, Math.min(remainingMillis, TimeUnit.SECONDS.toMillis(reportIntervalSeconds))));
+				
+				final long now = System.nanoTime();
+				final long received = step.received.get();
+				final double msgsPerSec = (received - intervalReceived) / ((now - intervalStart) / 1e9);
+				intervals.write(String.format(Locale.ROOT, "%d,%.1f,%.1f,%.3f,%.1f\n", consumerCount,
+						(now - startNanos) / 1e9, msgsPerSec, toMillis(step.getLatency().getValueAtPercentile(99)),
+						getHeapAfterGc() / BYTES_PER_MB));
+				intervals.flush();
+				
+				intervalReceived = received;
+				intervalStart = now;
+			}
+			
+			final long measuredNanos = System.nanoTime() - startNanos;
+			final long measuredReceived = step.received.get();
+			step.stop();
+			step.awaitDrain(DRAIN_TIMEOUT_MILLIS);
+			
+			System.gc();
+			return new StepResult(consumerCount, step, measuredReceived, measuredNanos,
+					heapAfterGcStart, getHeapAfterGc());
+		} finally {
+			senderExecutor.shutdownNow();
+			execution.getRunner().stop();
+			execution.getFuture().get();
+			applicationExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * The application config - as used by the application tests plus the load test overrides
+	 */
+	private CIAOConfig createConfig(final int consumerCount) throws IOException {
+		final MemoryCipProperties cipProperties = new MemoryCipProperties(CIP_NAME, "load-test");
+		cipProperties.addConfigValues(PropertiesLoaderUtils.loadProperties(new ClassPathResource(CIP_NAME + ".properties")));
+		cipProperties.addConfigValues(PropertiesLoaderUtils.loadProperties(new ClassPathResource(CIP_NAME + "-test.properties")));
+		
+		final Properties overrides = new Properties();
+		overrides.setProperty("messagingConfig", "activemq-embedded");
+		overrides.setProperty("cdaBuilderRoutes.concurrentConsumers", String.valueOf(consumerCount));
+		overrides.setProperty("cdaBuilderRoutes.maxConcurrentConsumers", String.valueOf(consumerCount));
+		overrides.setProperty("resultCache.maximumSize", "0"); // every document is built
+		for (final String name: System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(CONFIG_PREFIX)) {
+				overrides.setProperty(name.substring(CONFIG_PREFIX.length()), System.getProperty(name));
+			}
+		}
+		cipProperties.addConfigValues(overrides);
+		
+		return new CIAOConfig(cipProperties);
+	}
+	
+	/**
+	 * The heap in use after the most recent collection of each heap pool
+	 */
+	private static long getHeapAfterGc() {
+		long used = 0;
+		for (final MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+			final MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+			if (usage != null) {
+				used += usage.getUsed();
+			}
+		}
+		return used;
+	}
+	
+	private static double toMillis(final long nanos) {
+		return nanos / NANOS_PER_MILLI;
+	}
+	
+	/**
+	 * A single step of the load test - sends documents to the input queue and receives the built
+	 * documents from the output queue
+	 */
+	private class Step {
+		private final ProducerTemplate producerTemplate;
+		private final String json;
+		private final Semaphore inFlight = new Semaphore(concurrency);
+		private final AtomicReference<LatencyHistogram> latency = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong received = new AtomicLong();
+		private long releasedFailures;
+		private volatile boolean running;
+		
+		public Step(final CamelContext camelContext, final String json, final int outputConsumers) throws Exception {
+			this.producerTemplate = camelContext.createProducerTemplate();
+			this.json = json;
+			
+			camelContext.addRoutes(new RouteBuilder() {
+				@Override
+				public void configure() throws Exception {
+					from(OUTPUT_URI + "?concurrentConsumers=" + outputConsumers)
+					.id("load-test-output")
+					.process(new Processor() {
+						@Override
+						public void process(final Exchange exchange) throws Exception {
+							documentReceived(exchange);
+						}
+					});
+				}
+			});
+		}
+		
+		public LatencyHistogram getLatency() {
+			return latency.get();
+		}
+		
+		public void start(final ExecutorService senderExecutor) {
+			running = true;
+			for (int index = 0; index < senders; index++) {
+				senderExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						sendDocuments();
+					}
+				});
+			}
+		}
+		
+		public void stop() {
+			running = false;
+		}
+		
+		/**
+		 * Starts a new measurement period
+		 */
+		public void resetMeasurements() {
+			latency.set(new LatencyHistogram());
+			received.set(0);
+		}
+		
+		/**
+		 * Waits until all sent documents have been received or failed
+		 */
+		public void awaitDrain(final long timeoutMillis) throws Exception {
+			final long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (System.currentTimeMillis() < deadline && getOutstanding() > 0) {
+				Thread.sleep(100);
+			}
+			if (getOutstanding() > 0) {
+				LOGGER.warn("{} documents were not received before the timeout", getOutstanding());
+			}
+		}
+		
+		private long getOutstanding() throws Exception {
+			return getRouteCounter("InFlight");
+		}
+		
+		/**
+		 * Reads a counter of the builder route from JMX
+		 */
+		public long getRouteCounter(final String attribute) throws Exception {
+			final ObjectName name = new ObjectName(RouteMetrics.DOMAIN + ":type=Documents,route=" + ObjectName.quote(ROUTE_NAME));
+			return (Long)ManagementFactory.getPlatformMBeanServer().getAttribute(name, attribute);
+		}
+		
+		private void sendDocuments() {
+			// In rate mode each sender paces its share of the rate - latency is measured from the
+			// scheduled send time so a stalled sender does not hide the delay
+			final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * senders / Math.max(1, rate);
+			long scheduledNanos = System.nanoTime();
+			
+			while (running && !Thread.currentThread().isInterrupted()) {
+				try {
+					final long sentNanos;
+					if (closedLoop) {
+						if (!inFlight.tryAcquire(1, TimeUnit.SECONDS)) {
+							releaseFailedDocuments();
+							continue;
+						}
+						sentNanos = System.nanoTime();
+					} else {
+						scheduledNanos += intervalNanos;
+						final long delayNanos = scheduledNanos - System.nanoTime();
+						if (delayNanos > 0) {
+							TimeUnit.NANOSECONDS.sleep(delayNanos);
+						}
+						sentNanos = scheduledNanos;
+					}
+					
+					final Map<String, Object> headers = Maps.newHashMap();
+					headers.put(Exchange.CORRELATION_ID, "load-test-" + sent.incrementAndGet());
+					headers.put(SENT_NANOS_HEADER, sentNanos);
+					producerTemplate.sendBodyAndHeaders(INPUT_URI, json, headers);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (RuntimeException e) {
+					LOGGER.warn("Unable to send document", e);
+				}
+			}
+		}
+		
+		/**
+		 * Failed documents never reach the output queue - their in-flight permits are released
+		 * when the route's failure count increases
+		 */
+		private synchronized void releaseFailedDocuments() {
+			try {
+				final long failures = getRouteCounter("Failures");
+				if (failures > releasedFailures) {
+					inFlight.release((int)(failures - releasedFailures));
+					releasedFailures = failures;
+				}
+			} catch (Exception e) {
+				LOGGER.debug("Unable to read the route failure count", e);
+			}
+		}
+		
+		private void documentReceived(final Exchange exchange) {
+			final Long sentNanos = exchange.getIn().getHeader(SENT_NANOS_HEADER, Long.class);
+			if (sentNanos != null) {
+				latency.get().record(System.nanoTime() - sentNanos);
+			}
+			received.incrementAndGet();
+			inFlight.release();
+		}
+	}
+	
+	/**
+	 * The results of a single step of the scaling curve
+	 */
+	private class StepResult {
+		private final int consumerCount;
+		private final long sent;
+		private final long received;
+		private final long failures;
+		private final double msgsPerSec;
+		private final LatencyHistogram latency;
+		private final long heapAfterGcStart;
+		private final long heapAfterGcEnd;
+		
+		public StepResult(final int consumerCount, final Step step, final long received, final long measuredNanos,
+				final long heapAfterGcStart, final long heapAfterGcEnd) throws Exception {
+			this.consumerCount = consumerCount;
+			this.sent = step.sent.get();
+			this.received = received;
+			this.failures = step.getRouteCounter("Failures");
+			this.msgsPerSec = received / (measuredNanos / 1e9);
+			this.latency = step.getLatency();
+			this.heapAfterGcStart = heapAfterGcStart;
+			this.heapAfterGcEnd = heapAfterGcEnd;
+		}
+		
+		public String toCsv() {
+			return String.format(Locale.ROOT, "%d,%s,%d,%d,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.1f,%.1f\n",
+					consumerCount, closedLoop ? "closed" : "rate", closedLoop ? concurrency : rate, durationSeconds,
+					sent, received, failures, msgsPerSec,
+					toMillis(latency.getValueAtPercentile(50)), toMillis(latency.getValueAtPercentile(99)),
+					toMillis(latency.getValueAtPercentile(99.9)), toMillis(latency.getMax()),
+					heapAfterGcStart / BYTES_PER_MB, heapAfterGcEnd / BYTES_PER_MB);
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "consumers=%d msgsPerSec=%.1f p50=%.3fms p99=%.3fms p999=%.3fms " +
+					"failures=%d heapAfterGc=%.1fMB->%.1fMB", consumerCount, msgsPerSec,
+					toMillis(latency.getValueAtPercentile(50)), toMillis(latency.getValueAtPercentile(99)),
+					toMillis(latency.getValueAtPercentile(99.9)), failures,
+					heapAfterGcStart / BYTES_PER_MB, heapAfterGcEnd / BYTES_PER_MB);
+		}
+	}
+}
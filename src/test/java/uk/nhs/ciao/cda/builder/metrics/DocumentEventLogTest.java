@@ -0,0 +1,50 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DocumentEventLog}
+ */
+public class DocumentEventLogTest {
+	@Test
+	public void testPlainValuesAreNotQuoted() {
+		Assert.assertEquals("route=cda-builder size=123 millis=1.500", format("route", "cda-builder", "size", 123,
+				"millis", "1.500"));
+	}
+
+	@Test
+	public void testNullValuesAreOmitted() {
+		Assert.assertEquals("route=cda-builder", format("route", "cda-builder", "originalFileName", null));
+	}
+
+	@Test
+	public void testValuesAreQuotedAndEscaped() {
+		Assert.assertEquals("name=\"\"", format("name", ""));
+		Assert.assertEquals("name=\"a b\"", format("name", "a b"));
+		Assert.assertEquals("name=\"a\\\"b\"", format("name", "a\"b"));
+		Assert.assertEquals("name=\"a\\\\b\"", format("name", "a\\b"));
+		Assert.assertEquals("name=\"a\\tb\"", format("name", "a\tb"));
+		Assert.assertEquals("name=\"a=b\"", format("name", "a=b"));
+		Assert.assertEquals("name=\"a\\u0000b\"", format("name", "a\u0000b"));
+	}
+
+	@Test
+	public void testEventsCannotBeForged() {
+		final String event = format("originalFileName", "x.json\r\neventName=cda-document-completed route=forged",
+				"route", "cda-builder");
+
+		Assert.assertEquals("originalFileName=\"x.json\\r\\neventName=cda-document-completed route=forged\""
+				+ " route=cda-builder", event);
+		Assert.assertEquals(-1, event.indexOf('\n'));
+		Assert.assertEquals(-1, event.indexOf('\r'));
+	}
+
+	private static String format(final Object... keysAndValues) {
+		final StringBuilder event = new StringBuilder();
+		for (int index = 0; index < keysAndValues.length; index += 2) {
+			DocumentEventLog.append(event, (String)keysAndValues[index], keysAndValues[index + 1]);
+		}
+		return event.toString();
+	}
+}
@@ -0,0 +1,60 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link LatencyHistogram}
+ */
+public class LatencyHistogramTest {
+	private LatencyHistogram histogram;
+	
+	@Before
+	public void setup() {
+		histogram = new LatencyHistogram();
+	}
+	
+	@Test
+	public void testEmptyHistogram() {
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getMean());
+		Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+	
+	@Test
+	public void testBucketsAreContiguous() {
+		for (int bucket = 1; bucket < 64 * 16 - 4 * 16; bucket++) {
+			final long lowerBound = LatencyHistogram.getUpperBound(bucket - 1) + 1;
+			Assert.assertEquals(bucket, LatencyHistogram.getBucket(lowerBound));
+			Assert.assertEquals(bucket, LatencyHistogram.getBucket(LatencyHistogram.getUpperBound(bucket)));
+		}
+		Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.getUpperBound(LatencyHistogram.getBucket(Long.MAX_VALUE)));
+	}
+	
+	@Test
+	public void testPercentilesAreWithinPrecision() {
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value * 1000);
+		}
+		
+		Assert.assertEquals(10000, histogram.getCount());
+		Assert.assertEquals(10000000, histogram.getMax());
+		Assert.assertEquals(5000500, histogram.getMean());
+		assertWithinPrecision(5000000, histogram.getValueAtPercentile(50));
+		assertWithinPrecision(9900000, histogram.getValueAtPercentile(99));
+		Assert.assertEquals(10000000, histogram.getValueAtPercentile(100));
+	}
+	
+	@Test
+	public void testNegativeValuesAreRecordedAsZero() {
+		histogram.record(-5);
+		Assert.assertEquals(1, histogram.getCount());
+		Assert.assertEquals(0, histogram.getMax());
+	}
+	
+	private void assertWithinPrecision(final long expected, final long actual) {
+		Assert.assertTrue("expected: " + expected + ", actual: " + actual,
+				actual >= expected && actual <= expected * 1.0625);
+	}
+}
@@ -0,0 +1,68 @@
+package uk.nhs.ciao.cda.builder.metrics;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RouteMetrics}
+ */
+public class RouteMetricsTest {
+	private MBeanServer mbeanServer;
+	private RouteMetrics metrics;
+	
+	@Before
+	public void setup() throws Exception {
+		mbeanServer = MBeanServerFactory.newMBeanServer();
+		metrics = new RouteMetrics("test", mbeanServer);
+		metrics.start();
+	}
+	
+	@After
+	public void teardown() throws Exception {
+		metrics.stop();
+	}
+	
+	@Test
+	public void testDocumentsWithoutAnInteractionAreUnknown() {
+		complete(null);
+		
+		Assert.assertEquals(1, metrics.getMetrics().getCounters().getMessagesOut());
+		Assert.assertEquals(1, metrics.getMetrics(DocumentTimings.UNKNOWN_INTERACTION).getCounters().getMessagesOut());
+	}
+	
+	@Test
+	public void testNumberOfInteractionsIsBounded() throws Exception {
+		for (int index = 0; index < RouteMetrics.MAX_INTERACTIONS * 2; index++) {
+			complete("interaction-" + index);
+		}
+		
+		Assert.assertNull(metrics.getMetrics("interaction-" + (RouteMetrics.MAX_INTERACTIONS * 2 - 1)));
+		Assert.assertNotNull(metrics.getMetrics(DocumentTimings.UNKNOWN_INTERACTION));
+		
+		// The route + at most MAX_INTERACTIONS interactions (including unknown)
+		Assert.assertEquals(RouteMetrics.MAX_INTERACTIONS + 1, mbeanServer.queryNames(
+				new ObjectName(RouteMetrics.DOMAIN + ":type=Documents,*"), null).size());
+	}
+	
+	private void complete(final String interaction) {
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setBody("{}");
+		metrics.received(exchange);
+		
+		final DocumentTimings timings = RouteMetrics.getTimings(exchange);
+		timings.bind();
+		DocumentTimings.interaction(interaction);
+		DocumentTimings.unbind();
+		
+		metrics.completed(exchange);
+	}
+}
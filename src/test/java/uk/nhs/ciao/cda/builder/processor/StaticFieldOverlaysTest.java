@@ -0,0 +1,105 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import uk.nhs.ciao.cda.builder.json.JsonTransferOfCareFields;
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link StaticFieldOverlays}
+ * <p>
+ * Merged fields are compared with binding the equivalent (manually merged) JSON
+ */
+public class StaticFieldOverlaysTest {
+	private ObjectMapper objectMapper;
+	private ObjectMapper fieldObjectMapper;
+	private StaticFieldOverlays overlays;
+	private ObjectNode overlay;
+
+	@Before
+	public void setup() throws Exception {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+
+		// Compares the objects by their (private) fields
+		fieldObjectMapper = new ObjectMapper();
+		fieldObjectMapper.setVisibility(PropertyAccessor.ALL, Visibility.NONE);
+		fieldObjectMapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+		fieldObjectMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+
+		final InputStream in = new ClassPathResource("/kings-static.json", StaticFieldOverlaysTest.class).getInputStream();
+		try {
+			overlay = (ObjectNode)objectMapper.readTree(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+
+		overlays = new StaticFieldOverlays(objectMapper);
+		overlays.addOverlay(overlay);
+	}
+
+	@Test
+	public void testOverlayIsMergedWithIncomingPrecedence() throws Exception {
+		final ObjectNode incoming = objectMapper.createObjectNode();
+		incoming.put("custodianODSCode", "RJZ");
+		incoming.put("documentTitle", "Overridden Title");
+		incoming.put("patientNHSNo", "1234567890");
+
+		final ObjectNode expected = overlay.deepCopy();
+		expected.setAll(incoming);
+
+		assertMerged(expected, incoming);
+	}
+
+	@Test
+	public void testUnknownKeyIsNotMerged() throws Exception {
+		final ObjectNode incoming = objectMapper.createObjectNode();
+		incoming.put("custodianODSCode", "ABC");
+		incoming.put("patientNHSNo", "1234567890");
+
+		assertMerged(incoming, incoming);
+	}
+
+	@Test(expected=IOException.class)
+	public void testOverlayWithoutKeyIsRejected() throws Exception {
+		final ObjectNode invalid = overlay.deepCopy();
+		invalid.remove("custodianODSCode");
+		overlays.addOverlay(invalid);
+	}
+
+	private void assertMerged(final ObjectNode expected, final ObjectNode incoming) throws Exception {
+		final Map<String, Object> properties = objectMapper.convertValue(incoming,
+				new TypeReference<Map<String, Object>>() {});
+
+		final TokenBuffer mapBuffer = new TokenBuffer(objectMapper, false);
+		overlays.writeMerged(properties, mapBuffer);
+
+		final TokenBuffer nodeBuffer = new TokenBuffer(objectMapper, false);
+		overlays.writeMerged(incoming, nodeBuffer);
+
+		final JsonNode expectedFields = toFields(objectMapper.treeToValue(expected, JsonTransferOfCareFields.class));
+		Assert.assertEquals(expectedFields, toFields(objectMapper.readValue(mapBuffer.asParser(), JsonTransferOfCareFields.class)));
+		Assert.assertEquals(expectedFields, toFields(objectMapper.readValue(nodeBuffer.asParser(), JsonTransferOfCareFields.class)));
+	}
+
+	private JsonNode toFields(final JsonTransferOfCareFields fields) {
+		fields.normalise();
+		return fieldObjectMapper.valueToTree(fields);
+	}
+}
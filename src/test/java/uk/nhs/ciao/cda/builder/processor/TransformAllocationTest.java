@@ -0,0 +1,179 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+
+import uk.nhs.ciao.cda.builder.benchmark.BenchmarkFixtures;
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.metrics.ThreadResources;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * Allocation regression tests for {@link JsonToCDADocumentTransformer#transform(String)}
+ * <p>
+ * Each fixture is transformed repeatedly on the test thread and the (median) bytes allocated per
+ * document are compared to the committed budget in <code>allocation-budgets.properties</code>. The
+ * test fails if any fixture exceeds its budget - e.g. after an itk-payloads upgrade or a new mixin.
+ * <p>
+ * Set <code>-Dallocation.record=true</code> to write the measured allocations (plus headroom) to
+ * <code>target/allocation-budgets.properties</code> when budgets are intentionally changed. The JVM and
+ * garbage collectors the budgets were measured on are recorded with them.
+ * <p>
+ * The test fails if no measured budget has been committed for a fixture. If the budgets were measured on a
+ * different Java version, the looser cross-JVM tolerance is applied to each budget (with a warning). The test
+ * is only skipped if the JVM does not support per-thread allocation accounting.
+ */
+public class TransformAllocationTest {
+	private static final String BUDGETS_RESOURCE = "/allocation-budgets.properties";
+	private static final List<String> FIXTURES = Arrays.asList("example", "partial-example",
+			"synthetic-small", "synthetic-large");
+	private static final int WARM_UP_ITERATIONS = 20;
+	private static final int MEASURED_ITERATIONS = 11;
+	private static final double RECORD_HEADROOM = 1.25;
+	private static final double CROSS_JVM_TOLERANCE = 1.5;
+	private static final String MEASURED_JAVA = "measured.java";
+	private static final String MEASURED_JVM = "measured.jvm";
+	private static final String MEASURED_GC = "measured.gc";
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransformAllocationTest.class);
+	
+	private ObjectMapper objectMapper;
+	private JsonToCDADocumentTransformer transformer;
+	private Properties budgets;
+	
+	@Before
+	public void setup() throws Exception {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		transformer = new JsonToCDADocumentTransformer(objectMapper);
+		transformer.registerPayloadHandler(new TransferOfCarePayloadHandler());
+		budgets = loadBudgets();
+	}
+	
+	@Test
+	public void testAllocationIsWithinBudget() throws Exception {
+		Assume.assumeTrue("Thread allocation accounting is not supported", ThreadResources.getAllocatedBytes() >= 0);
+		
+		final boolean recording = Boolean.getBoolean("allocation.record");
+		final String measuredJava = budgets.getProperty(MEASURED_JAVA);
+		double tolerance = 1;
+		if (!recording) {
+			Assert.assertNotNull("No measured allocation budgets have been committed - run with -Dallocation.record=true " +
+					"and commit target/allocation-budgets.properties", measuredJava);
+			if (!measuredJava.trim().equals(getJavaVersion())) {
+				tolerance = CROSS_JVM_TOLERANCE;
+				LOGGER.warn("Allocation budgets were measured on Java " + measuredJava.trim() + " (" +
+						budgets.getProperty(MEASURED_JVM) + ") - applying x" + tolerance + " to each budget on Java " +
+						getJavaVersion() + ". Re-record the budgets if this is now the build JVM");
+			}
+		}
+		
+		final Map<String, Long> measured = Maps.newLinkedHashMap();
+		final List<String> exceeded = Lists.newArrayList();
+		for (final String fixture: FIXTURES) {
+			for (final boolean attached: new boolean[] {false, true}) {
+				final String key = fixture + (attached ? ".attached" : ".detached");
+				final long allocated = measureAllocatedBytes(BenchmarkFixtures.getFixture(objectMapper, fixture, attached));
+				measured.put(key, allocated);
+				
+				final String budget = budgets.getProperty(key);
+				if (recording && budget == null) {
+					continue;
+				}
+				
+				Assert.assertNotNull("No allocation budget for " + key + " - run with -Dallocation.record=true", budget);
+				final long limit = (long)(Long.parseLong(budget.trim()) * tolerance);
+				if (allocated > limit) {
+					exceeded.add(key + ": " + allocated + " bytes (limit: " + limit + ")");
+				}
+			}
+		}
+		
+		if (recording) {
+			record(measured);
+		}
+		
+		Assert.assertTrue("Allocation budget exceeded - " + exceeded + " - measured: " + measured, exceeded.isEmpty());
+	}
+	
+	/**
+	 * The median bytes allocated by the current thread to transform the document
+	 */
+	private long measureAllocatedBytes(final String json) throws Exception {
+		// Class loading, lazily created readers, compiled templates, etc. are not counted
+		for (int iteration = 0; iteration < WARM_UP_ITERATIONS; iteration++) {
+			transformer.transform(json);
+		}
+		
+		final long[] samples = new long[MEASURED_ITERATIONS];
+		for (int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++) {
+			final long start = ThreadResources.getAllocatedBytes();
+			transformer.transform(json);
+			samples[iteration] = ThreadResources.getAllocatedBytes() - start;
+		}
+		
+		Arrays.sort(samples);
+		return samples[samples.length / 2];
+	}
+	
+	private static String getJavaVersion() {
+		return System.getProperty("java.specification.version");
+	}
+	
+	private static String getGarbageCollectors() {
+		final List<String> names = Lists.newArrayList();
+		for (final GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+			names.add(collector.getName());
+		}
+		return Joiner.on(", ").join(names);
+	}
+	
+	private Properties loadBudgets() throws Exception {
+		final Properties properties = new Properties();
+		final InputStream in = new ClassPathResource(BUDGETS_RESOURCE, TransformAllocationTest.class).getInputStream();
+		try {
+			properties.load(in);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		return properties;
+	}
+	
+	private void record(final Map<String, Long> measured) throws Exception {
+		final Properties properties = new Properties();
+		properties.setProperty(MEASURED_JAVA, getJavaVersion());
+		properties.setProperty(MEASURED_JVM, System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version"));
+		properties.setProperty(MEASURED_GC, getGarbageCollectors());
+		for (final Map.Entry<String, Long> entry: measured.entrySet()) {
+			properties.setProperty(entry.getKey(), String.valueOf((long)(entry.getValue() * RECORD_HEADROOM)));
+		}
+		
+		final File file = new File("target/allocation-budgets.properties");
+		file.getParentFile().mkdirs();
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, "Measured allocation per document (x" + RECORD_HEADROOM + ")");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package uk.nhs.ciao.cda.builder.processor;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link TransformResultCache}
+ */
+public class TransformResultCacheTest {
+	private ObjectMapper objectMapper;
+	private File folder;
+
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapper();
+		folder = Files.createTempDir();
+	}
+
+	@After
+	public void tearDown() {
+		final File[] files = folder.listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Test
+	public void testStringAndBytesHaveTheSameKey() {
+		final TransformResultCache cache = new TransformResultCache(objectMapper, 10, 60);
+		final String json = "{\"name\": \"café\"}";
+
+		Assert.assertEquals(cache.hash(json), cache.hash(json.getBytes(Charsets.UTF_8)));
+	}
+
+	@Test
+	public void testCachedInMemory() {
+		final TransformResultCache cache = new TransformResultCache(objectMapper, 10, 60);
+		final HashCode key = cache.hash("{}");
+		final ParsedDocument document = createDocument();
+
+		Assert.assertNull(cache.get(key));
+		cache.put(key, document);
+		Assert.assertSame(document, cache.get(key));
+		Assert.assertEquals(1, cache.getStats().hitCount());
+		Assert.assertEquals(1, cache.getStats().missCount());
+	}
+
+	@Test
+	public void testPersistentTierSurvivesRestart() throws Exception {
+		final TransformResultCache cache = new TransformResultCache(objectMapper, 10, 60);
+		cache.setPersistentFolder(folder.getPath());
+		final HashCode key = cache.hash("{}");
+		cache.put(key, createDocument());
+
+		final TransformResultCache restarted = new TransformResultCache(objectMapper, 10, 60);
+		restarted.setPersistentFolder(folder.getPath());
+		final ParsedDocument document = restarted.get(key);
+
+		Assert.assertNotNull(document);
+		Assert.assertEquals("document.xml", document.getOriginalDocument().getName());
+		Assert.assertEquals("value", document.getProperties().get("key"));
+		Assert.assertEquals(1, restarted.getPersistentHitCount());
+	}
+
+	@Test
+	public void testEvictedResultsAreDeletedFromThePersistentTier() throws Exception {
+		final TransformResultCache cache = new TransformResultCache(objectMapper, 1, 60);
+		cache.setPersistentFolder(folder.getPath());
+		final HashCode evictedKey = cache.hash("{\"index\": 1}");
+		final HashCode retainedKey = cache.hash("{\"index\": 2}");
+
+		cache.put(evictedKey, createDocument());
+		cache.put(retainedKey, createDocument());
+
+		Assert.assertFalse(new File(folder, evictedKey + ".json").exists());
+		Assert.assertTrue(new File(folder, retainedKey + ".json").exists());
+		Assert.assertEquals(1, folder.listFiles().length);
+	}
+
+	@Test
+	public void testDisabledWhenMaximumSizeIsZero() throws Exception {
+		final TransformResultCache cache = new TransformResultCache(objectMapper, 0, 60);
+		cache.setPersistentFolder(folder.getPath());
+		final HashCode key = cache.hash("{}");
+		cache.put(key, createDocument());
+
+		Assert.assertFalse(cache.isEnabled());
+		Assert.assertNull(cache.get(key));
+		Assert.assertEquals(0, folder.list().length);
+	}
+
+	private ParsedDocument createDocument() {
+		final Map<String, Object> properties = Collections.<String, Object>singletonMap("key", "value");
+		return new ParsedDocument(new Document("document.xml", "<xml/>".getBytes(Charsets.UTF_8), "text/xml"), properties);
+	}
+}
@@ -0,0 +1,85 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for {@link RawDocumentProcessor}
+ */
+public class RawDocumentProcessorTest {
+	private static final byte[] CONTENT = "<ClinicalDocument/>".getBytes(Charsets.UTF_8);
+	
+	private ObjectMapper objectMapper;
+	private Map<String, Object> properties;
+	private Exchange exchange;
+
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		properties = Maps.newLinkedHashMap();
+		properties.put("itkHandlingSpec", "urn:nhs-itk:interaction:primaryRecipientNHS111Report-v2-0");
+		properties.put("documentTitle", "Discharge Summary");
+		properties.put("clinicalSummary", "Free text which must not be sent as a header");
+		properties.put("patientNHSNoIsTraced", true);
+		exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setBody(new ParsedDocument(new Document("example.xml", CONTENT, "text/xml"), properties));
+	}
+
+	@Test
+	public void testOnlyRoutingPropertiesAreSentAsHeaders() throws Exception {
+		createProcessor(false).process(exchange);
+
+		Assert.assertArrayEquals(CONTENT, exchange.getIn().getBody(byte[].class));
+		Assert.assertEquals("example.xml", exchange.getIn().getHeader(RawDocumentProcessor.HEADER_NAME));
+		Assert.assertEquals("text/xml", exchange.getIn().getHeader(RawDocumentProcessor.HEADER_MEDIA_TYPE));
+		Assert.assertEquals(properties.get("itkHandlingSpec"),
+				exchange.getIn().getHeader(RawDocumentProcessor.HEADER_PROPERTY_PREFIX + "itkHandlingSpec"));
+		Assert.assertNull(exchange.getIn().getHeader(RawDocumentProcessor.HEADER_PROPERTY_PREFIX + "clinicalSummary"));
+		Assert.assertNull(exchange.getProperty(RawDocumentProcessor.PROPERTIES_PROPERTY));
+
+		final ParsedDocument parsedDocument = RawDocumentProcessor.toParsedDocument(objectMapper, exchange.getIn(), null);
+		Assert.assertEquals("example.xml", parsedDocument.getOriginalDocument().getName());
+		Assert.assertArrayEquals(CONTENT, parsedDocument.getOriginalDocument().getContent());
+		Assert.assertEquals(Collections.singletonMap("itkHandlingSpec", properties.get("itkHandlingSpec")),
+				parsedDocument.getProperties());
+	}
+
+	@Test
+	public void testFullPropertiesArePreparedForTheSidecar() throws Exception {
+		createProcessor(true).process(exchange);
+
+		final Exchange sidecar = PropertiesSidecarProcessor.createSidecarExchange(exchange);
+		Assert.assertNotNull(sidecar);
+		Assert.assertEquals("example.xml", sidecar.getIn().getHeader(RawDocumentProcessor.HEADER_NAME));
+
+		final ParsedDocument parsedDocument = RawDocumentProcessor.toParsedDocument(objectMapper, exchange.getIn(),
+				sidecar.getIn().getBody(String.class));
+		Assert.assertArrayEquals(CONTENT, parsedDocument.getOriginalDocument().getContent());
+		Assert.assertEquals(properties, parsedDocument.getProperties());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidHeaderPropertyNamesAreRejected() {
+		new RawDocumentProcessor(objectMapper, ImmutableList.of("itk-handling-spec"), false);
+	}
+
+	private RawDocumentProcessor createProcessor(final boolean sidecar) {
+		return new RawDocumentProcessor(objectMapper, ImmutableList.of("itkHandlingSpec"), sidecar);
+	}
+}
@@ -0,0 +1,186 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.json.TransferOfCareDocument;
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link SchemaValidationProcessor}
+ */
+public class SchemaValidationProcessorTest {
+	private static final File SCHEMA = new File("XSD/Schemas/POCD_MT000002UK01.xsd");
+	private static final byte[] INVALID_DOCUMENT = "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>".getBytes(Charsets.UTF_8);
+
+	private static Schema schema;
+	private static byte[] validDocument;
+
+	@BeforeClass
+	public static void compileSchema() throws Exception {
+		Assert.assertTrue("Missing schema: " + SCHEMA, SCHEMA.isFile());
+		schema = SchemaValidationProcessor.compileSchema(SCHEMA);
+
+		final ObjectMapper objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		final InputStream in = new ClassPathResource("/example.json", SchemaValidationProcessorTest.class).getInputStream();
+		try {
+			final TransferOfCareDocument document = objectMapper.readValue(in, TransferOfCareDocument.class);
+			validDocument = document.createClinicalDocument().serialise().getBytes(Charsets.UTF_8);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	@Test(expected=SAXException.class)
+	public void testInvalidDocumentFails() throws Exception {
+		new SchemaValidationProcessor(schema, 1).process(createExchange(INVALID_DOCUMENT));
+	}
+
+	@Test
+	public void testValidDocumentPasses() throws Exception {
+		new SchemaValidationProcessor(schema, 1).process(createExchange(validDocument));
+	}
+
+	@Test
+	public void testZeroSampleRateSkipsValidation() throws Exception {
+		final CountingSchema countingSchema = new CountingSchema(schema);
+		final SchemaValidationProcessor processor = new SchemaValidationProcessor(countingSchema, 0);
+
+		for (int index = 0; index < 100; index++) {
+			processor.process(createExchange(INVALID_DOCUMENT));
+		}
+		Assert.assertEquals(0, countingSchema.validatorCount);
+	}
+
+	@Test
+	public void testFullSampleRateAlwaysValidates() throws Exception {
+		final SchemaValidationProcessor processor = new SchemaValidationProcessor(schema, 1);
+
+		for (int index = 0; index < 100; index++) {
+			try {
+				processor.process(createExchange(INVALID_DOCUMENT));
+				Assert.fail("Invalid document was not validated");
+			} catch (SAXException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testValidatorsArePooledAndReset() throws Exception {
+		final CountingSchema countingSchema = new CountingSchema(schema);
+		final SchemaValidationProcessor processor = new SchemaValidationProcessor(countingSchema, 1);
+
+		try {
+			processor.process(createExchange(INVALID_DOCUMENT));
+			Assert.fail("Invalid document was not validated");
+		} catch (SAXException e) {
+			// Expected
+		}
+		processor.process(createExchange(validDocument));
+		processor.process(createExchange(validDocument));
+
+		Assert.assertEquals(1, countingSchema.validatorCount);
+		Assert.assertEquals(3, countingSchema.validator.validateCount);
+		Assert.assertEquals(3, countingSchema.validator.resetCount);
+	}
+
+	private static Exchange createExchange(final byte[] content) {
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setBody(new ParsedDocument(new Document("example.xml", content, "text/xml"),
+				Collections.<String, Object>emptyMap()));
+		return exchange;
+	}
+
+	/**
+	 * Schema which counts the validators created (and how they are used)
+	 */
+	private static class CountingSchema extends Schema {
+		private final Schema delegate;
+		private int validatorCount;
+		private CountingValidator validator;
+
+		public CountingSchema(final Schema delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Validator newValidator() {
+			validatorCount++;
+			validator = new CountingValidator(delegate.newValidator());
+			return validator;
+		}
+
+		@Override
+		public ValidatorHandler newValidatorHandler() {
+			return delegate.newValidatorHandler();
+		}
+	}
+
+	private static class CountingValidator extends Validator {
+		private final Validator delegate;
+		private int validateCount;
+		private int resetCount;
+
+		public CountingValidator(final Validator delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void reset() {
+			resetCount++;
+			delegate.reset();
+		}
+
+		@Override
+		public void validate(final Source source, final Result result) throws SAXException, IOException {
+			validateCount++;
+			delegate.validate(source, result);
+		}
+
+		@Override
+		public void setErrorHandler(final ErrorHandler errorHandler) {
+			delegate.setErrorHandler(errorHandler);
+		}
+
+		@Override
+		public ErrorHandler getErrorHandler() {
+			return delegate.getErrorHandler();
+		}
+
+		@Override
+		public void setResourceResolver(final LSResourceResolver resourceResolver) {
+			delegate.setResourceResolver(resourceResolver);
+		}
+
+		@Override
+		public LSResourceResolver getResourceResolver() {
+			return delegate.getResourceResolver();
+		}
+	}
+}
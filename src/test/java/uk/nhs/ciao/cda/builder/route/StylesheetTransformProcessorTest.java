@@ -0,0 +1,78 @@
+package uk.nhs.ciao.cda.builder.route;
+
+import java.io.File;
+import java.io.InputStream;
+
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.processor.JsonToCDADocumentTransformer;
+import uk.nhs.ciao.cda.builder.processor.TransferOfCarePayloadHandler;
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link StylesheetTransformProcessor}
+ * <p>
+ * The built example document is converted with the bundled XSLT 2.0 stylesheet and the
+ * templated result is validated against the templated schema.
+ */
+public class StylesheetTransformProcessorTest {
+	private static final File STYLESHEET = new File("XSD/Transform/TrueCDAToCDALike_v2.xsl");
+	private static final File TEMPLATED_SCHEMA = new File("XSD/Schemas/POCD_MT000026GB01.xsd");
+
+	private StylesheetTransformProcessor processor;
+	private ParsedDocument parsedDocument;
+
+	@Before
+	public void setup() throws Exception {
+		Assert.assertTrue("Missing stylesheet: " + STYLESHEET, STYLESHEET.isFile());
+		processor = new StylesheetTransformProcessor(StylesheetTransformProcessor.compileStylesheet(STYLESHEET));
+
+		final JsonToCDADocumentTransformer transformer = new JsonToCDADocumentTransformer(
+				new ObjectMapperConfigurator().createObjectMapper());
+		transformer.registerPayloadHandler(new TransferOfCarePayloadHandler());
+
+		final InputStream in = new ClassPathResource("/example.json", getClass()).getInputStream();
+		try {
+			parsedDocument = transformer.transform(ByteStreams.toByteArray(in));
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+
+	@Test
+	public void testOutputIsTemplated() throws Exception {
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setBody(parsedDocument);
+
+		processor.process(exchange);
+
+		final ParsedDocument result = exchange.getIn().getBody(ParsedDocument.class);
+		final Document document = result.getOriginalDocument();
+		Assert.assertEquals(parsedDocument.getOriginalDocument().getName(), document.getName());
+		Assert.assertEquals("text/xml", document.getMediaType());
+		Assert.assertEquals(parsedDocument.getProperties(), result.getProperties());
+
+		final String xml = new String(document.getContent(), Charsets.UTF_8);
+		Assert.assertTrue("Output does not reference the templated schema:\n" + xml,
+				xml.contains("Schemas\\POCD_MT000026GB01.xsd"));
+
+		// The true CDA input is only valid against the templated schema once transformed
+		final Schema schema = SchemaValidationProcessor.compileSchema(TEMPLATED_SCHEMA);
+		schema.newValidator().validate(new StreamSource(document.getContentStream()));
+	}
+}
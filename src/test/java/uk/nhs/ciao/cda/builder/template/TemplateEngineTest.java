@@ -0,0 +1,153 @@
+package uk.nhs.ciao.cda.builder.template;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.xml.sax.SAXException;
+
+import uk.nhs.ciao.cda.builder.json.ObjectMapperConfigurator;
+import uk.nhs.ciao.cda.builder.json.TransferOfCareDocument;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link TemplateEngine}
+ * <p>
+ * The expected (golden) output of each document is rendered by itk-payloads - documents are
+ * compared after normalising character escaping. UUIDs which do not appear in the incoming JSON
+ * are treated as generated, any other UUID must be written unchanged.
+ */
+public class TemplateEngineTest {
+	private static final File SCHEMA = new File("XSD/Schemas/POCD_MT000002UK01.xsd");
+	private static final Pattern UUID_PATTERN = Pattern.compile(
+			"[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+	private ObjectMapper objectMapper;
+	private TemplateEngine engine;
+
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapperConfigurator().createObjectMapper();
+		engine = new TemplateEngine();
+		engine.setVerifyInterval(0);
+	}
+
+	@Test
+	public void testExampleMatchesItkPayloads() throws Exception {
+		assertMatchesItkPayloads(loadJson("/example.json", false));
+	}
+
+	@Test
+	public void testExampleWithAttachmentMatchesItkPayloads() throws Exception {
+		assertMatchesItkPayloads(loadJson("/example.json", true));
+	}
+
+	@Test
+	public void testPartialExampleMatchesItkPayloads() throws Exception {
+		assertMatchesItkPayloads(loadJson("/partial-example.json", false));
+	}
+
+	@Test
+	public void testTemplateIsReusedWithEscapedValues() throws Exception {
+		assertMatchesItkPayloads(loadJson("/example.json", false));
+
+		final ObjectNode rootNode = loadJson("/example.json", false);
+		rootNode.with("properties").put("documentTitle", "O'Brien & <Sons> \"Discharge\" é");
+		assertMatchesItkPayloads(rootNode);
+	}
+
+	@Test
+	public void testSentUuidsAreNotReplaced() throws Exception {
+		final String documentSetId = "6b2f4d1e-3c5a-4e7b-9d8f-0a1b2c3d4e5f";
+		final ObjectNode rootNode = loadJson("/example.json", false);
+		rootNode.with("properties").put("documentSetID", documentSetId);
+
+		final byte[] actual = assertMatchesItkPayloads(rootNode);
+		Assert.assertTrue(new String(actual, Charsets.UTF_8).toLowerCase(Locale.ROOT).contains(documentSetId));
+	}
+
+	@Test
+	public void testOutputIsValidAgainstSchema() throws Exception {
+		Assert.assertTrue("Missing schema: " + SCHEMA, SCHEMA.isFile());
+
+		final Schema schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(SCHEMA);
+		final TransferOfCareDocument document = loadDocument("/example.json", true);
+
+		final String expected = document.createClinicalDocument().serialise();
+		Assert.assertTrue("itk-payloads output is not valid against the schema", isValid(schema, expected.getBytes(Charsets.UTF_8)));
+		Assert.assertTrue("Template output is not valid against the schema", isValid(schema, write(document)));
+	}
+
+	private byte[] assertMatchesItkPayloads(final ObjectNode rootNode) throws Exception {
+		final TransferOfCareDocument document = objectMapper.treeToValue(rootNode, TransferOfCareDocument.class);
+		final byte[] actual = write(document);
+		final String expected = document.createClinicalDocument().serialise();
+
+		// Any UUID not sent in the incoming JSON must have been generated
+		final Set<String> sentUuids = findUuids(objectMapper.writeValueAsString(rootNode));
+		final Set<String> generatedUuids = findUuids(new String(actual, Charsets.UTF_8));
+		generatedUuids.removeAll(sentUuids);
+
+		Assert.assertTrue("Template output does not match itk-payloads:\n" + new String(actual, Charsets.UTF_8),
+				TemplateEngine.isEquivalent(expected, actual, generatedUuids));
+		return actual;
+	}
+
+	private static Set<String> findUuids(final String text) {
+		final Set<String> uuids = Sets.newHashSet();
+		final Matcher matcher = UUID_PATTERN.matcher(text);
+		while (matcher.find()) {
+			uuids.add(matcher.group().toLowerCase(Locale.ROOT));
+		}
+		return uuids;
+	}
+
+	private byte[] write(final TransferOfCareDocument document) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertTrue("Document is not supported by the template engine", engine.write(document, out));
+		return out.toByteArray();
+	}
+
+	private boolean isValid(final Schema schema, final byte[] xml) throws Exception {
+		try {
+			schema.newValidator().validate(new StreamSource(new ByteArrayInputStream(xml)));
+			return true;
+		} catch (SAXException e) {
+			return false;
+		}
+	}
+
+	private TransferOfCareDocument loadDocument(final String path, final boolean attachOriginalDocument) throws Exception {
+		return objectMapper.treeToValue(loadJson(path, attachOriginalDocument), TransferOfCareDocument.class);
+	}
+
+	private ObjectNode loadJson(final String path, final boolean attachOriginalDocument) throws Exception {
+		final InputStream in = new ClassPathResource(path, TemplateEngineTest.class).getInputStream();
+		try {
+			final ObjectNode rootNode = (ObjectNode)objectMapper.readTree(in);
+			rootNode.with("properties").put("attachOriginalDocument", attachOriginalDocument);
+			return rootNode;
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+}